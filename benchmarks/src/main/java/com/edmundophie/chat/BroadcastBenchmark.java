@@ -0,0 +1,70 @@
+package com.edmundophie.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a BROADCAST from a user in {@link #CHANNELS} channels whose members
+ * overlap: each of the {@link #USERS} users is in {@code overlap} of the
+ * channels, so the channels hold {@code USERS * overlap} memberships but only
+ * {@code USERS} distinct recipients. The publishes per broadcast are printed
+ * next to both numbers after the run: the direct router publishes once per
+ * recipient, the fanout router once per channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final int USERS = 1000;
+    private static final int CHANNELS = 20;
+
+    @Param({"1", "5", "20"})
+    public int overlap;
+
+    @Param({"direct", "fanout"})
+    public String router;
+
+    private PrintStream console;
+    private StubBroker broker;
+    private RpcServer server;
+    private long memberships;
+    private long broadcasts;
+    private long publishesBefore;
+
+    @Setup
+    public void setUp() throws Exception {
+        console = StubBroker.silenceConsole();
+        broker = new StubBroker();
+        server = ServerState.initialize(broker, router.equals("fanout")
+                ? new FanoutMessageRouter("messages")
+                : new DirectMessageRouter("messages"));
+        ServerState.login("sender");
+        for(int c=0; c<CHANNELS; c++)
+            ServerState.join("sender", "community" + c);
+        for(int i=0; i<USERS; i++) {
+            ServerState.login("member" + i);
+            for(int j=0; j<overlap; j++)
+                ServerState.join("member" + i, "community" + (i + j) % CHANNELS);
+        }
+        memberships = CHANNELS + (long) USERS * overlap;
+        publishesBefore = broker.getPublishCount();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+        System.out.printf("%n%s, overlap %d: %d memberships, %d recipients, %.1f publishes per broadcast%n",
+                router, overlap, memberships, USERS + 1, (broker.getPublishCount() - publishesBefore) / (double) broadcasts);
+    }
+
+    @Benchmark
+    public Response broadcast() {
+        broadcasts++;
+        return server.broadcastMessage("sender", "hello everyone, is the build green again?");
+    }
+}
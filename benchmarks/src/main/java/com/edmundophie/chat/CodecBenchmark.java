@@ -0,0 +1,75 @@
+package com.edmundophie.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of each {@link WireCodec}. The setup also checks that
+ * every codec round-trips the protocol objects and prints their encoded sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"json", "binary"})
+    public String codecName;
+
+    private WireCodec codec;
+    private Request request;
+    private Response response;
+    private byte[] encodedRequest;
+    private byte[] encodedResponse;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = WireCodecs.forName(codecName);
+
+        request = new Request();
+        request.setCommand("SEND");
+        request.setNickname("user12345");
+        request.setChannelName("general");
+        request.setMessage("hello everyone, is the build green again?");
+        response = new Response(true, "* #general joined successfully", "user12345");
+        Message message = new Message("user12345", "hello everyone, is the build green again?");
+
+        encodedRequest = codec.encodeRequest(request);
+        encodedResponse = codec.encodeResponse(response);
+        byte[] encodedMessage = codec.encodeMessage(message);
+
+        Request decodedRequest = codec.decodeRequest(encodedRequest);
+        Response decodedResponse = codec.decodeResponse(encodedResponse);
+        Message decodedMessage = codec.decodeMessage(encodedMessage);
+        if(!request.getMessage().equals(decodedRequest.getMessage()) || !request.getChannelName().equals(decodedRequest.getChannelName())
+                || !response.getMessage().equals(decodedResponse.getMessage()) || response.isStatus()!=decodedResponse.isStatus()
+                || !message.getText().equals(decodedMessage.getText()) || message.getTimestamp()!=decodedMessage.getTimestamp())
+            throw new IllegalStateException(codec.getContentType() + " does not round-trip");
+
+        System.out.println(codec.getContentType() + ": request " + encodedRequest.length + " B, response "
+                + encodedResponse.length + " B, message " + encodedMessage.length + " B");
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() throws IOException {
+        return codec.encodeRequest(request);
+    }
+
+    @Benchmark
+    public Request decodeRequest() throws IOException {
+        return codec.decodeRequest(encodedRequest);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() throws IOException {
+        return codec.encodeResponse(response);
+    }
+
+    @Benchmark
+    public Response decodeResponse() throws IOException {
+        return codec.decodeResponse(encodedResponse);
+    }
+}
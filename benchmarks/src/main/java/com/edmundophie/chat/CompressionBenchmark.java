@@ -0,0 +1,98 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Cost of compressing and decompressing a chat message body of {@code size}
+ * bytes, which the server pays once per message and every recipient once per
+ * delivery. The setup prints the compressed size next to that of plain deflate
+ * without the preset dictionary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    // Not taken from the dictionary, so that it does not flatter the numbers
+    private static final String[] LINES = {
+            "anyone around? the staging deploy is stuck on the migration step again",
+            "I restarted the worker and it picked up the queue, looks fine now",
+            "can we move standup to 10:30 tomorrow, I have a dentist appointment",
+            "pushed the fix, CI should be green in a few minutes",
+            "nope, still seeing timeouts from the payment service in eu-west",
+            "lunch? thinking about the ramen place around the corner",
+            "here is the stack trace from last night, it fails right after the retry",
+            "ok merging once the second review is in",
+            "did the customer confirm the new export format works for them?",
+            "yes, they sent a thumbs up and asked for the same thing in csv",
+    };
+
+    @Param({"64", "256", "1024", "4096", "16384"})
+    public int size;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private Compression compression;
+    private byte[] body;
+    private byte[] compressed;
+    private AMQP.BasicProperties properties;
+
+    @Setup
+    public void setUp() throws IOException {
+        compression = new Compression(1, level);
+
+        StringBuilder text = new StringBuilder(size);
+        Random random = new Random(size);
+        while(text.length() < size) {
+            if(text.length() > 0) text.append(' ');
+            text.append(LINES[random.nextInt(LINES.length)]);
+        }
+        Message message = new Message("user12345", text.toString());
+        message.setSequence(1234);
+        byte[] payload = ChatPayload.encode("general", message);
+        body = Arrays.copyOf(payload, Math.min(payload.length, size));
+
+        compressed = compression.compress(body);
+        properties = ChatPayload.COMPRESSED_PROPERTIES;
+        // A body that does not shrink is sent as it is
+        if(compressed==null) {
+            compressed = body;
+            properties = ChatPayload.PROPERTIES;
+        }
+        byte[] restored = Compression.decompress(properties, compressed);
+        if(!Arrays.equals(body, restored))
+            throw new IllegalStateException("Compression does not round-trip");
+
+        Deflater plain = new Deflater(level);
+        plain.setInput(body);
+        plain.finish();
+        byte[] out = new byte[body.length * 2 + 64];
+        int plainLength = 0;
+        while(!plain.finished())
+            plainLength += plain.deflate(out, plainLength, out.length - plainLength);
+        plain.end();
+
+        System.out.println(body.length + " B at level " + level + ": " + compressed.length
+                + " B compressed, " + plainLength + " B without the dictionary");
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compression.compress(body);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return Compression.decompress(properties, compressed);
+    }
+}
@@ -0,0 +1,75 @@
+package com.edmundophie.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link RpcServer#processMessage} for the common commands, including
+ * the command lookup and the handler, with a ten member channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final int MEMBERS = 10;
+
+    private PrintStream console;
+    private RpcServer server;
+    private Request send;
+    private Request join;
+    private Request leave;
+    private Request history;
+
+    @Setup
+    public void setUp() throws Exception {
+        console = StubBroker.silenceConsole();
+        server = ServerState.initialize();
+        for(int i=0; i<MEMBERS; i++) {
+            ServerState.login("member" + i);
+            ServerState.join("member" + i, "general");
+        }
+        ServerState.login("visitor");
+
+        send = request("SEND", "member0", "general", "hello everyone, is the build green again?");
+        join = request("JOIN", "visitor", "general", null);
+        leave = request("LEAVE", "visitor", "general", null);
+        history = request("HISTORY", "member0", "general", null);
+        for(int i=0; i<100; i++)
+            server.processMessage(send);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public Response send() {
+        return server.processMessage(send);
+    }
+
+    @Benchmark
+    public Response joinAndLeave() {
+        server.processMessage(join);
+        return server.processMessage(leave);
+    }
+
+    @Benchmark
+    public Response history() {
+        return server.processMessage(history);
+    }
+
+    private static Request request(String command, String nickname, String channelName, String message) {
+        Request request = new Request();
+        request.setCommand(command);
+        request.setNickname(nickname);
+        request.setChannelName(channelName);
+        request.setMessage(message);
+        return request;
+    }
+}
@@ -0,0 +1,46 @@
+package com.edmundophie.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link RpcServer#distributeMessage(Message, String)} as the channel
+ * grows, publishing to a stub broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    @Param({"10", "100", "1000", "5000"})
+    public int members;
+
+    private PrintStream console;
+    private RpcServer server;
+    private Message message;
+
+    @Setup
+    public void setUp() throws Exception {
+        console = StubBroker.silenceConsole();
+        server = ServerState.initialize();
+        for(int i=0; i<members; i++) {
+            ServerState.login("member" + i);
+            ServerState.join("member" + i, "general");
+        }
+        message = new Message("member0", "hello everyone, is the build green again?");
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void distribute() throws Exception {
+        server.distributeMessage(message, "general");
+    }
+}
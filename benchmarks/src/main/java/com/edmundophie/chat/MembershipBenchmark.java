@@ -0,0 +1,71 @@
+package com.edmundophie.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JOIN, LEAVE and LOGOUT against 100,000 users spread over a growing number of
+ * channels. Every user is in the same number of channels, so none of these
+ * should get slower as the channel count grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class MembershipBenchmark {
+    private static final int USERS = 100000;
+    private static final int CHANNELS_PER_USER = 10;
+
+    @Param({"1000", "10000", "100000"})
+    public int channels;
+
+    private PrintStream console;
+    private RpcServer server;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        console = StubBroker.silenceConsole();
+        server = ServerState.initialize();
+        for(int u=0; u<USERS; u++) {
+            ServerState.login("user" + u);
+            for(int j=0; j<CHANNELS_PER_USER; j++)
+                ServerState.join("user" + u, channelFor(u, j));
+        }
+        ServerState.login("visitor");
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public Response joinAndLeave() {
+        String channelName = channelFor(next++ % USERS, 0);
+        server.join("visitor", channelName);
+        return server.leave("visitor", channelName);
+    }
+
+    /**
+     * Logs a user out and back in to the same channels, so the state stays the same.
+     */
+    @Benchmark
+    public Response logoutAndRejoin() {
+        int u = next++ % USERS;
+        String nickname = "user" + u;
+        Response response = server.logout(nickname);
+        ServerState.login(nickname);
+        for(int j=0; j<CHANNELS_PER_USER; j++)
+            server.join(nickname, channelFor(u, j));
+        return response;
+    }
+
+    private String channelFor(int user, int n) {
+        return "channel" + ((user * 31L + n * 1009L) % channels);
+    }
+}
@@ -0,0 +1,48 @@
+package com.edmundophie.chat;
+
+/**
+ * Builds server state for the benchmarks through the regular request handlers.
+ */
+final class ServerState {
+    private static RpcServer server;
+
+    private ServerState() {
+    }
+
+    static RpcServer initialize() throws Exception {
+        return initialize(new StubBroker());
+    }
+
+    static RpcServer initialize(StubBroker broker) throws Exception {
+        return initialize(broker, null);
+    }
+
+    /**
+     * Uses the given router, or the server's default when it is null.
+     */
+    static RpcServer initialize(StubBroker broker, MessageRouter messageRouter) throws Exception {
+        server = new RpcServer();
+        if(messageRouter!=null) server.setMessageRouter(messageRouter);
+        server.initialize(broker);
+        return server;
+    }
+
+    static Response call(String command, String nickname, String channelName, String message) {
+        Request request = new Request();
+        request.setCommand(command);
+        request.setNickname(nickname);
+        request.setChannelName(channelName);
+        request.setMessage(message);
+        return server.processMessage(request);
+    }
+
+    static void login(String nickname) {
+        Response response = call("NICK", nickname, null, null);
+        if(!nickname.equals(response.getNickname()))
+            throw new IllegalStateException("Could not log in as " + nickname);
+    }
+
+    static void join(String nickname, String channelName) {
+        call("JOIN", nickname, channelName, null);
+    }
+}
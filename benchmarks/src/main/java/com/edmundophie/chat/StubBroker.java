@@ -0,0 +1,98 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Broker stand-in for the benchmarks. Its channels accept every call and only
+ * count what gets published, so the server handlers can be measured without
+ * RabbitMQ or the delivery threads of {@link LocalBroker}.
+ */
+final class StubBroker implements Transport {
+    private long publishCount;
+    private long publishedBytes;
+
+    public TransportChannel openChannel() {
+        return new TransportChannel() {
+            public void exchangeDeclare(String exchange, String type) {
+            }
+
+            public void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete) {
+            }
+
+            public String queueDeclare() {
+                return "stub.reply";
+            }
+
+            public void queueBind(String queue, String exchange, String routingKey) {
+            }
+
+            public void queueUnbind(String queue, String exchange, String routingKey) {
+            }
+
+            public void queueDelete(String queue) {
+            }
+
+            public void queuePurge(String queue) {
+            }
+
+            public void basicQos(int prefetchCount) {
+            }
+
+            public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+                publishCount++;
+                publishedBytes += body.length;
+            }
+
+            public String basicConsume(String queue, boolean autoAck, DeliveryHandler handler) {
+                return "stub.consumer";
+            }
+
+            public void basicCancel(String consumerTag) {
+            }
+
+            public void basicAck(long deliveryTag) {
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public void close() {
+    }
+
+    long getPublishCount() {
+        return publishCount;
+    }
+
+    long getPublishedBytes() {
+        return publishedBytes;
+    }
+
+    /**
+     * The handlers print a line per request; that console I/O would dominate
+     * every measurement, so the benchmarks silence it.
+     */
+    static PrintStream silenceConsole() {
+        PrintStream original = System.out;
+        PrintStream silent = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        System.setOut(silent);
+        System.setErr(silent);
+        return original;
+    }
+}
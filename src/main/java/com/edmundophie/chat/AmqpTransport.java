@@ -0,0 +1,109 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Transport} over a RabbitMQ connection.
+ */
+public class AmqpTransport implements Transport {
+    private final Connection connection;
+
+    public AmqpTransport(String host) throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(host);
+        try {
+            connection = factory.newConnection();
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out connecting to " + host, e);
+        }
+    }
+
+    public TransportChannel openChannel() throws IOException {
+        return new AmqpChannel(connection.createChannel());
+    }
+
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    private static class AmqpChannel implements TransportChannel {
+        private final com.rabbitmq.client.Channel channel;
+
+        AmqpChannel(com.rabbitmq.client.Channel channel) {
+            this.channel = channel;
+        }
+
+        public void exchangeDeclare(String exchange, String type) throws IOException {
+            channel.exchangeDeclare(exchange, type);
+        }
+
+        public void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete) throws IOException {
+            channel.queueDeclare(queue, durable, exclusive, autoDelete, null);
+        }
+
+        public String queueDeclare() throws IOException {
+            return channel.queueDeclare().getQueue();
+        }
+
+        public void queueBind(String queue, String exchange, String routingKey) throws IOException {
+            channel.queueBind(queue, exchange, routingKey);
+        }
+
+        public void queueUnbind(String queue, String exchange, String routingKey) throws IOException {
+            channel.queueUnbind(queue, exchange, routingKey);
+        }
+
+        public void queueDelete(String queue) throws IOException {
+            channel.queueDelete(queue);
+        }
+
+        public void queuePurge(String queue) throws IOException {
+            channel.queuePurge(queue);
+        }
+
+        public void basicQos(int prefetchCount) throws IOException {
+            channel.basicQos(prefetchCount);
+        }
+
+        public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            channel.basicPublish(exchange, routingKey, properties, body);
+        }
+
+        public String basicConsume(String queue, boolean autoAck, final DeliveryHandler handler) throws IOException {
+            return channel.basicConsume(queue, autoAck, new DefaultConsumer(channel) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope,
+                                           AMQP.BasicProperties properties, byte[] body) throws IOException {
+                    handler.handleDelivery(envelope.getDeliveryTag(), properties, body);
+                }
+            });
+        }
+
+        public void basicCancel(String consumerTag) throws IOException {
+            channel.basicCancel(consumerTag);
+        }
+
+        public void basicAck(long deliveryTag) throws IOException {
+            channel.basicAck(deliveryTag, false);
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out closing channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.edmundophie.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact length-prefixed format. Every object starts with a one byte type tag,
+ * followed by its fields in declaration order. Strings are written as a varint
+ * of (byte length + 1) and their UTF-8 bytes, where 0 marks a null string.
+ * Optional non-negative numbers and list sizes use the same (value + 1) varint
+ * scheme, and the response status is a single byte. The requests of a batch and
+ * their responses follow the other fields as an optional list; frames without
+ * that list end before it.
+ */
+public class BinaryWireCodec implements WireCodec {
+    public static final String CONTENT_TYPE = "application/x-chat-binary";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte REQUEST_TAG = 'Q';
+    private static final byte RESPONSE_TAG = 'R';
+    private static final byte MESSAGE_TAG = 'M';
+    private static final byte STATUS_NULL = -1;
+
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    public byte[] encodeRequest(Request request) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(REQUEST_TAG);
+        writeRequestFields(out, request, true);
+        return out.toByteArray();
+    }
+
+    public Request decodeRequest(byte[] body) throws IOException {
+        ByteBuffer in = open(body, REQUEST_TAG);
+        try {
+            return readRequestFields(in, true);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated request");
+        }
+    }
+
+    public byte[] encodeResponse(Response response) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(RESPONSE_TAG);
+        writeResponseFields(out, response, true);
+        return out.toByteArray();
+    }
+
+    public Response decodeResponse(byte[] body) throws IOException {
+        ByteBuffer in = open(body, RESPONSE_TAG);
+        try {
+            return readResponseFields(in, true);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated response");
+        }
+    }
+
+    public byte[] encodeMessage(Message message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(MESSAGE_TAG);
+        writeMessageFields(out, message);
+        return out.toByteArray();
+    }
+
+    public Message decodeMessage(byte[] body) throws IOException {
+        ByteBuffer in = open(body, MESSAGE_TAG);
+        try {
+            return readMessageFields(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        }
+    }
+
+    /**
+     * Writes the fields of a request. Only a top-level request carries a batch
+     * list, so the items of a batch end right after their limit.
+     */
+    private static void writeRequestFields(ByteArrayOutputStream out, Request request, boolean topLevel) {
+        writeString(out, request.getCommand());
+        writeString(out, request.getNickname());
+        writeString(out, request.getChannelName());
+        writeString(out, request.getMessage());
+        writeOptional(out, request.getBefore());
+        writeOptional(out, request.getBeforeTimestamp());
+        writeOptional(out, request.getLimit()==null ? null : Long.valueOf(request.getLimit()));
+        List<Request> requests = request.getRequests();
+        if(topLevel && requests!=null) {
+            Varints.write(out, requests.size() + 1L);
+            for(Request item:requests)
+                writeRequestFields(out, item, false);
+        }
+    }
+
+    private static Request readRequestFields(ByteBuffer in, boolean topLevel) throws IOException {
+        Request request = new Request();
+        request.setCommand(readString(in));
+        request.setNickname(readString(in));
+        request.setChannelName(readString(in));
+        request.setMessage(readString(in));
+        request.setBefore(readOptional(in));
+        request.setBeforeTimestamp(readOptional(in));
+        Long limit = readOptional(in);
+        request.setLimit(limit==null ? null : Integer.valueOf(limit.intValue()));
+        if(topLevel && in.hasRemaining()) {
+            long count = Varints.read(in) - 1;
+            if(count < 0 || count > in.remaining())
+                throw new IOException("Request count " + count + " exceeds frame");
+            List<Request> requests = new ArrayList<Request>((int) count);
+            for(long i=0; i<count; i++)
+                requests.add(readRequestFields(in, false));
+            request.setRequests(requests);
+        }
+        return request;
+    }
+
+    private static void writeResponseFields(ByteArrayOutputStream out, Response response, boolean topLevel) {
+        out.write(response.getStatus()==null ? STATUS_NULL : (byte) (response.isStatus() ? 1 : 0));
+        writeString(out, response.getMessage());
+        writeString(out, response.getNickname());
+        List<Message> messages = response.getMessages();
+        writeOptional(out, messages==null ? null : Long.valueOf(messages.size()));
+        if(messages!=null) {
+            for(Message message:messages)
+                writeMessageFields(out, message);
+        }
+        List<Response> responses = response.getResponses();
+        if(topLevel && responses!=null) {
+            Varints.write(out, responses.size() + 1L);
+            for(Response item:responses)
+                writeResponseFields(out, item, false);
+        }
+    }
+
+    private static Response readResponseFields(ByteBuffer in, boolean topLevel) throws IOException {
+        Response response = new Response();
+        byte status = in.get();
+        if(status!=STATUS_NULL) response.putStatus(status==1);
+        response.setMessage(readString(in));
+        response.setNickname(readString(in));
+        Long count = readOptional(in);
+        if(count!=null) {
+            if(count > in.remaining())
+                throw new IOException("Message count " + count + " exceeds frame");
+            List<Message> messages = new ArrayList<Message>(count.intValue());
+            for(long i=0; i<count; i++)
+                messages.add(readMessageFields(in));
+            response.setMessages(messages);
+        }
+        if(topLevel && in.hasRemaining()) {
+            long responseCount = Varints.read(in) - 1;
+            if(responseCount < 0 || responseCount > in.remaining())
+                throw new IOException("Response count " + responseCount + " exceeds frame");
+            List<Response> responses = new ArrayList<Response>((int) responseCount);
+            for(long i=0; i<responseCount; i++)
+                responses.add(readResponseFields(in, false));
+            response.setResponses(responses);
+        }
+        return response;
+    }
+
+    private static void writeMessageFields(ByteArrayOutputStream out, Message message) {
+        writeString(out, message.getSender());
+        writeString(out, message.getText());
+        Varints.write(out, message.getTimestamp());
+        Varints.write(out, message.getSequence());
+    }
+
+    private static Message readMessageFields(ByteBuffer in) throws IOException {
+        Message message = new Message();
+        message.setSender(readString(in));
+        message.setText(readString(in));
+        message.setTimestamp(Varints.read(in));
+        message.setSequence(Varints.read(in));
+        return message;
+    }
+
+    private static void writeOptional(ByteArrayOutputStream out, Long value) {
+        Varints.write(out, value==null ? 0 : value + 1);
+    }
+
+    private static Long readOptional(ByteBuffer in) throws IOException {
+        long value = Varints.read(in);
+        // Ten byte varints can set the sign bit, which no encoded number has
+        if(value < 0)
+            throw new IOException("Negative number " + value + " in frame");
+        return value==0 ? null : Long.valueOf(value - 1);
+    }
+
+    private static ByteBuffer open(byte[] body, byte expectedTag) throws IOException {
+        if(body==null || body.length==0 || body[0]!=expectedTag)
+            throw new IOException("Not a binary " + (char) expectedTag + " frame");
+        ByteBuffer in = ByteBuffer.wrap(body);
+        in.get();
+        return in;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if(value==null) {
+            Varints.write(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        Varints.write(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        long length = Varints.read(in);
+        if(length==0) return null;
+        return Varints.readUtf8(in, length - 1);
+    }
+}
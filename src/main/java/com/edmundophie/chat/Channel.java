@@ -1,22 +1,18 @@
 package com.edmundophie.chat;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Created by edmundophie on 9/18/15.
  */
 public class Channel {
     private String channelName;
-    private List<Message> messages;
+    private MessageHistory history;
 
     public Channel() {
-        messages = new ArrayList<Message>();
     }
 
-    public Channel(String channelName) {
+    public Channel(String channelName, MessageHistory history) {
         this.channelName = channelName;
-        messages = new ArrayList<Message>();
+        this.history = history;
     }
 
     public String getChannelName() {
@@ -27,11 +23,11 @@ public class Channel {
         this.channelName = channelName;
     }
 
-    public List<Message> getMessages() {
-        return messages;
+    public MessageHistory getHistory() {
+        return history;
     }
 
-    public void setMessages(List<Message> messages) {
-        this.messages = messages;
+    public void setHistory(MessageHistory history) {
+        this.history = history;
     }
 }
@@ -0,0 +1,127 @@
+package com.edmundophie.chat;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only message log of one channel, split into memory-mapped
+ * {@link LogSegment}s. A new segment is started when the active one is full,
+ * and whole segments are dropped once they are older than the retention period,
+ * checked on every new segment and by {@link #enforceRetention}. A message
+ * without text is logged with empty text.
+ */
+public class ChannelLog {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    public interface RecordHandler {
+        void handle(Message message) throws IOException;
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final long retentionMillis;
+    private final List<LogSegment> segments = new ArrayList<LogSegment>();
+    // Offset of the next segment, kept when retention drops every segment
+    private long nextOffset;
+
+    public ChannelLog(File dir, int segmentBytes, int indexInterval, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.retentionMillis = retentionMillis;
+
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create log directory " + dir);
+
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".log");
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for(File file:files)
+            segments.add(LogSegment.open(file, indexInterval));
+        if(!segments.isEmpty())
+            nextOffset = segments.get(segments.size() - 1).getNextOffset();
+    }
+
+    public synchronized void append(Message message) throws IOException {
+        byte[] sender = message.getSender().getBytes(UTF_8);
+        byte[] text = message.getText()==null ? EMPTY : message.getText().getBytes(UTF_8);
+        if(sender.length > Short.MAX_VALUE * 2 + 1 || LogSegment.recordSize(sender, text) > segmentBytes)
+            throw new IOException("Message of " + message.getSender() + " is too large for a log segment");
+
+        LogSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if(active==null || !active.append(message.getTimestamp(), sender, text)) {
+            // A full segment is never written again, so it is synced once here
+            if(active!=null) active.flush();
+            active = LogSegment.create(dir, nextOffset, segmentBytes, indexInterval);
+            segments.add(active);
+            active.append(message.getTimestamp(), sender, text);
+            enforceRetention(message.getTimestamp());
+        }
+        nextOffset = active.getNextOffset();
+    }
+
+    /**
+     * Streams every record newer than {@code sinceTimestamp} to the handler, oldest
+     * first. Records are decoded one at a time straight from the mapped segments.
+     */
+    public void replay(long sinceTimestamp, RecordHandler handler) throws IOException {
+        List<LogSegment> snapshot = new ArrayList<LogSegment>();
+        List<int[]> ranges = new ArrayList<int[]>();
+        synchronized (this) {
+            for(LogSegment segment:segments) {
+                if(segment.isEmpty() || segment.getMaxTimestamp() <= sinceTimestamp) continue;
+                snapshot.add(segment);
+                ranges.add(new int[] {segment.positionFor(sinceTimestamp), segment.getPosition()});
+            }
+        }
+
+        Message message = new Message();
+        for(int i=0; i<snapshot.size(); i++) {
+            LogSegment segment = snapshot.get(i);
+            ByteBuffer view = segment.view();
+            int pos = ranges.get(i)[0];
+            int end = ranges.get(i)[1];
+            while(pos < end) {
+                pos = segment.read(view, pos, message);
+                if(message.getTimestamp() > sinceTimestamp)
+                    handler.handle(message);
+            }
+        }
+    }
+
+    /**
+     * Syncs the active segment to disk.
+     */
+    public synchronized void flush() {
+        if(!segments.isEmpty())
+            segments.get(segments.size() - 1).flush();
+    }
+
+    /**
+     * Deletes the segments whose newest record is older than the retention
+     * period, the active one included once the channel has been quiet that long.
+     */
+    public synchronized void enforceRetention(long now) {
+        while(!segments.isEmpty() && segments.get(0).getMaxTimestamp() < now - retentionMillis) {
+            LogSegment expired = segments.remove(0);
+            if(!expired.delete())
+                System.err.println("- Failed to delete expired log segment in " + dir);
+        }
+    }
+}
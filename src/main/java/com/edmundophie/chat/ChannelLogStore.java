@@ -0,0 +1,89 @@
+package com.edmundophie.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Opens the {@link ChannelLog} of each channel under one root directory. Channel
+ * names are URL encoded and prefixed, so any name maps to a single safe directory.
+ * {@link #maintain} is meant to be called periodically.
+ */
+public class ChannelLogStore {
+    private static final String DIRECTORY_PREFIX = "channel-";
+
+    private final File root;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final long retentionMillis;
+    private final ConcurrentMap<String, ChannelLog> logs = new ConcurrentHashMap<String, ChannelLog>();
+
+    public ChannelLogStore(File root, int segmentBytes, int indexInterval, long retentionMillis) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.retentionMillis = retentionMillis;
+    }
+
+    public ChannelLog get(String channelName) throws IOException {
+        ChannelLog log = logs.get(channelName);
+        if(log!=null) return log;
+
+        synchronized (logs) {
+            log = logs.get(channelName);
+            if(log==null) {
+                log = new ChannelLog(directoryFor(channelName), segmentBytes, indexInterval, retentionMillis);
+                logs.put(channelName, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Returns the log of a channel only if something has been written for it.
+     */
+    public ChannelLog find(String channelName) throws IOException {
+        ChannelLog log = logs.get(channelName);
+        if(log!=null || !directoryFor(channelName).isDirectory()) return log;
+        return get(channelName);
+    }
+
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    public void flush() {
+        for(ChannelLog log:logs.values())
+            log.flush();
+    }
+
+    /**
+     * Syncs every log and drops what is past the retention period, also from
+     * channels nobody wrote to since the server started.
+     */
+    public void maintain(long now) throws IOException {
+        File[] dirs = root.listFiles();
+        if(dirs!=null) {
+            for(File dir:dirs) {
+                if(dir.isDirectory() && dir.getName().startsWith(DIRECTORY_PREFIX))
+                    get(URLDecoder.decode(dir.getName().substring(DIRECTORY_PREFIX.length()), "UTF-8"));
+            }
+        }
+        for(ChannelLog log:logs.values()) {
+            log.flush();
+            log.enforceRetention(now);
+        }
+    }
+
+    private File directoryFor(String channelName) {
+        try {
+            return new File(root, DIRECTORY_PREFIX + URLEncoder.encode(channelName, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
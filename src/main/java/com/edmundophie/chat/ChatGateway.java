@@ -0,0 +1,311 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Embeddable client running many chat sessions over one transport, for
+ * services that act for many users at once. All sessions share a single
+ * {@link RpcClient}: requests are published on a pool of channels and every
+ * reply arrives on one reply queue, where it is matched to its call by
+ * correlation id. Each session consumes its own message queue on one of a
+ * second pool of channels and hands the chat messages to its listener.
+ *
+ * Listeners are called on the transport's delivery threads and should not
+ * block. Unlike {@link RpcClient#main}, nothing is read from or printed to the
+ * console.
+ */
+public class ChatGateway {
+    private static final String MESSAGE_EXCHANGE_NAME = "messages";
+
+    /**
+     * Receives the events of one session.
+     */
+    public interface SessionListener {
+        void onMessage(Session session, ChatPayload message);
+
+        /**
+         * Called once the server dropped the session, e.g. because its lease
+         * expired. The session is closed by then.
+         */
+        void onExpired(Session session, String reason);
+    }
+
+    /**
+     * One logged in user. Its calls complete with the server's response, which
+     * tells whether the request succeeded.
+     */
+    public class Session {
+        private final String nickname;
+        private final SessionListener listener;
+        private final TransportChannel deliveryChannel;
+        private String consumerTag;
+        private volatile boolean open = true;
+
+        private Session(String nickname, SessionListener listener, TransportChannel deliveryChannel) {
+            this.nickname = nickname;
+            this.listener = listener;
+            this.deliveryChannel = deliveryChannel;
+        }
+
+        public String getNickname() {
+            return nickname;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public CompletableFuture<Response> join(String channelName) {
+            return call(channelRequest("JOIN", channelName));
+        }
+
+        public CompletableFuture<Response> leave(String channelName) {
+            return call(channelRequest("LEAVE", channelName));
+        }
+
+        public CompletableFuture<Response> send(String channelName, String text) {
+            Request request = channelRequest("SEND", channelName);
+            request.setMessage(text);
+            return call(request);
+        }
+
+        public CompletableFuture<Response> broadcast(String text) {
+            Request request = request("BROADCAST");
+            request.setMessage(text);
+            return call(request);
+        }
+
+        public CompletableFuture<Response> history(String channelName, int limit) {
+            Request request = channelRequest("HISTORY", channelName);
+            request.setLimit(limit);
+            return call(request);
+        }
+
+        /**
+         * Sends any request on behalf of this session.
+         */
+        public CompletableFuture<Response> call(Request request) {
+            if(!open) {
+                CompletableFuture<Response> closed = new CompletableFuture<Response>();
+                closed.completeExceptionally(new IllegalStateException("Session " + nickname + " is closed"));
+                return closed;
+            }
+            request.setNickname(nickname);
+            return rpcClient.callAsync(request);
+        }
+
+        /**
+         * Logs out and stops consuming the session's queue.
+         */
+        public CompletableFuture<Response> logout() {
+            return call(request("LOGOUT")).thenApply(new Function<Response, Response>() {
+                public Response apply(Response response) {
+                    if(response.isStatus()) {
+                        try {
+                            unsubscribe();
+                        } catch (IOException e) {
+                            System.err.println("* Failed to stop consuming the queue of " + nickname + ": " + e.getMessage());
+                        }
+                    }
+                    return response;
+                }
+            });
+        }
+
+        private Request request(String command) {
+            Request request = new Request();
+            request.setCommand(command);
+            request.setNickname(nickname);
+            return request;
+        }
+
+        private Request channelRequest(String command, String channelName) {
+            Request request = request(command);
+            request.setChannelName(channelName);
+            return request;
+        }
+
+        private void subscribe() throws IOException {
+            synchronized (deliveryChannel) {
+                deliveryChannel.queueDeclare(nickname, false, false, true);
+                deliveryChannel.queueBind(nickname, MESSAGE_EXCHANGE_NAME, nickname);
+                consumerTag = deliveryChannel.basicConsume(nickname, true, new DeliveryHandler() {
+                    public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                        for(ChatPayload payload:ChatPayload.payloads(properties, body))
+                            listener.onMessage(Session.this, payload);
+                    }
+                });
+            }
+        }
+
+        // The queue is auto-delete, so cancelling its only consumer removes it
+        private void unsubscribe() throws IOException {
+            if(!sessions.remove(nickname, this)) return;
+            open = false;
+            synchronized (deliveryChannel) {
+                if(!deliveryChannel.isOpen()) return;
+                deliveryChannel.basicCancel(consumerTag);
+            }
+        }
+    }
+
+    private final RpcClient rpcClient;
+    private final TransportChannel[] deliveryChannels;
+    private final AtomicInteger nextDeliveryChannel = new AtomicInteger();
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final ScheduledExecutorService heartbeatScheduler;
+    private ScheduledFuture<?> heartbeat;
+
+    /**
+     * Creates a gateway on a transport owned by the caller, publishing requests
+     * on {@code channelPoolSize} channels and consuming session queues on as
+     * many more.
+     */
+    public ChatGateway(Transport transport, int channelPoolSize, long callTimeoutMillis, WireCodec codec) throws Exception {
+        if(channelPoolSize < 1)
+            throw new IllegalArgumentException("Channel pool size must be positive: " + channelPoolSize);
+        rpcClient = new RpcClient(transport, callTimeoutMillis, codec, channelPoolSize);
+        deliveryChannels = new TransportChannel[channelPoolSize];
+        for(int i=0; i<channelPoolSize; i++)
+            deliveryChannels[i] = transport.openChannel();
+        deliveryChannels[0].exchangeDeclare(MESSAGE_EXCHANGE_NAME, "direct");
+
+        heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gateway-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Routes requests to the shards of a cluster, see {@link RpcClient#setShards}.
+     */
+    public void setShards(Collection<String> shardIds) throws IOException {
+        rpcClient.setShards(shardIds);
+    }
+
+    /**
+     * Logs in and starts consuming the user's messages. The future fails when
+     * the server rejects the login, with the server's message.
+     */
+    public CompletableFuture<Session> login(String nickname, final SessionListener listener) {
+        Request request = new Request();
+        request.setCommand("NICK");
+        request.setNickname(nickname);
+        return rpcClient.callAsync(request).thenCompose(new Function<Response, CompletionStage<Session>>() {
+            public CompletionStage<Session> apply(Response response) {
+                CompletableFuture<Session> result = new CompletableFuture<Session>();
+                if(!response.isStatus()) {
+                    result.completeExceptionally(new IllegalStateException(response.getMessage()));
+                    return result;
+                }
+
+                TransportChannel deliveryChannel = deliveryChannels[(nextDeliveryChannel.getAndIncrement() & Integer.MAX_VALUE) % deliveryChannels.length];
+                Session session = new Session(response.getNickname(), listener, deliveryChannel);
+                try {
+                    session.subscribe();
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                    return result;
+                }
+                sessions.put(session.getNickname(), session);
+                result.complete(session);
+                return result;
+            }
+        });
+    }
+
+    public Session getSession(String nickname) {
+        return sessions.get(nickname);
+    }
+
+    /**
+     * Compresses requests that reach the threshold of {@code compression}, see
+     * {@link RpcClient#setCompression}.
+     */
+    public void setCompression(Compression compression) {
+        rpcClient.setCompression(compression);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public int getPendingCallCount() {
+        return rpcClient.getPendingCallCount();
+    }
+
+    /**
+     * Pings the server for every open session each {@code intervalSeconds},
+     * renewing their leases. Sessions the server no longer knows are closed
+     * and reported to their listener. Zero stops the heartbeat.
+     */
+    public synchronized void setHeartbeatInterval(long intervalSeconds) {
+        if(intervalSeconds < 0)
+            throw new IllegalArgumentException("Heartbeat interval must not be negative: " + intervalSeconds);
+        if(heartbeat!=null) heartbeat.cancel(false);
+        heartbeat = null;
+        if(intervalSeconds==0) return;
+
+        heartbeat = heartbeatScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for(Session session:new ArrayList<Session>(sessions.values()))
+                    ping(session);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void ping(final Session session) {
+        Request request = new Request();
+        request.setCommand("PING");
+        session.call(request).thenAccept(new Consumer<Response>() {
+            public void accept(Response response) {
+                // A lost ping is retried with the next one; only a rejection ends the session
+                if(response.isStatus() || !session.isOpen()) return;
+                try {
+                    session.unsubscribe();
+                } catch (IOException ignore) {
+                }
+                session.listener.onExpired(session, response.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Stops every session's consumer and closes the gateway's channels. The
+     * sessions stay logged in on the server until they log out or their
+     * leases expire; the transport stays open.
+     */
+    public void close() throws Exception {
+        heartbeatScheduler.shutdownNow();
+        List<Session> open = new ArrayList<Session>(sessions.values());
+        for(Session session:open) {
+            try {
+                session.unsubscribe();
+            } catch (IOException ignore) {
+            }
+        }
+        for(TransportChannel deliveryChannel:deliveryChannels)
+            deliveryChannel.close();
+        rpcClient.close();
+    }
+}
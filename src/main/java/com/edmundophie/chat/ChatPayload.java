@@ -0,0 +1,226 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Body of a chat message delivered to a member queue. A small binary header
+ * carries the channel, sender, timestamp and sequence number, followed by the
+ * UTF-8 text up to the end of the body:
+ * <pre>
+ * version byte, varint channel length, channel, varint sender length, sender,
+ * varint timestamp, varint sequence, text
+ * </pre>
+ * The server encodes a message once and publishes the same bytes to every
+ * recipient; clients format the line themselves. With {@link Compression}
+ * enabled, bodies above its threshold are compressed once as well and sent
+ * with {@link #COMPRESSED_PROPERTIES}.
+ *
+ * A broadcast reaching a member through several channels is delivered once,
+ * listing all of them with the sequence number the message got in each:
+ * <pre>
+ * version byte 2, varint channel count, (varint channel length, channel,
+ * varint sequence) per channel, varint sender length, sender, varint timestamp, text
+ * </pre>
+ */
+public class ChatPayload {
+    public static final String TYPE = "chat_message";
+    /** Properties of every chat message delivery, shared by all of them. */
+    public static final AMQP.BasicProperties PROPERTIES = new AMQP.BasicProperties
+            .Builder()
+            .type(TYPE)
+            .build();
+    /** Properties of a chat message delivery whose body is compressed. */
+    public static final AMQP.BasicProperties COMPRESSED_PROPERTIES = Compression.encoded(PROPERTIES);
+
+    private static final byte VERSION = 1;
+    private static final byte MULTI_CHANNEL_VERSION = 2;
+
+    private final List<String> channelNames;
+    private final long[] sequences;
+    private final Message message;
+
+    public ChatPayload(String channelName, Message message) {
+        this(Collections.singletonList(channelName), new long[] {message.getSequence()}, message);
+    }
+
+    private ChatPayload(List<String> channelNames, long[] sequences, Message message) {
+        this.channelNames = channelNames;
+        this.sequences = sequences;
+        this.message = message;
+    }
+
+    /**
+     * Returns the first channel the message was sent to.
+     */
+    public String getChannelName() {
+        return channelNames.get(0);
+    }
+
+    public List<String> getChannelNames() {
+        return channelNames;
+    }
+
+    /**
+     * Returns the sequence number of the message in the channel at {@code index}
+     * of {@link #getChannelNames()}.
+     */
+    public long getSequence(int index) {
+        return sequences[index];
+    }
+
+    /**
+     * Returns the message, with the sequence number it has in the first channel.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the line shown to a user, "@channel sender: text", or
+     * "@channel @channel sender: text" for a message sent to several channels.
+     */
+    public String format() {
+        StringBuilder line = new StringBuilder();
+        for(String channelName:channelNames)
+            line.append('@').append(channelName).append(' ');
+        return line.append(message.getSender()).append(": ").append(message.getText()).toString();
+    }
+
+    public static byte[] encode(String channelName, Message message) {
+        byte[] channel = channelName.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getText()==null ? new byte[0] : message.getText().getBytes(StandardCharsets.UTF_8);
+
+        byte[] body = new byte[1 + Varints.size(channel.length) + channel.length + Varints.size(sender.length) + sender.length
+                + Varints.size(message.getTimestamp()) + Varints.size(message.getSequence()) + text.length];
+        ByteBuffer out = ByteBuffer.wrap(body);
+        out.put(VERSION);
+        Varints.write(out, channel.length);
+        out.put(channel);
+        Varints.write(out, sender.length);
+        out.put(sender);
+        Varints.write(out, message.getTimestamp());
+        Varints.write(out, message.getSequence());
+        out.put(text);
+        return body;
+    }
+
+    /**
+     * Encodes the copies of one message stored in several channels, which
+     * differ only in their sequence numbers, as a single payload.
+     */
+    public static byte[] encode(List<String> channelNames, List<Message> messages) {
+        if(channelNames.size()==1) return encode(channelNames.get(0), messages.get(0));
+
+        byte[][] channels = new byte[channelNames.size()][];
+        int size = 1 + Varints.size(channels.length);
+        for(int i=0; i<channels.length; i++) {
+            channels[i] = channelNames.get(i).getBytes(StandardCharsets.UTF_8);
+            size += Varints.size(channels[i].length) + channels[i].length + Varints.size(messages.get(i).getSequence());
+        }
+        Message message = messages.get(0);
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getText()==null ? new byte[0] : message.getText().getBytes(StandardCharsets.UTF_8);
+        size += Varints.size(sender.length) + sender.length + Varints.size(message.getTimestamp()) + text.length;
+
+        byte[] body = new byte[size];
+        ByteBuffer out = ByteBuffer.wrap(body);
+        out.put(MULTI_CHANNEL_VERSION);
+        Varints.write(out, channels.length);
+        for(int i=0; i<channels.length; i++) {
+            Varints.write(out, channels[i].length);
+            out.put(channels[i]);
+            Varints.write(out, messages.get(i).getSequence());
+        }
+        Varints.write(out, sender.length);
+        out.put(sender);
+        Varints.write(out, message.getTimestamp());
+        out.put(text);
+        return body;
+    }
+
+    public static ChatPayload decode(byte[] body) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        try {
+            byte version = in.get();
+            if(version==MULTI_CHANNEL_VERSION)
+                return decodeMultiChannel(body, in);
+            if(version!=VERSION)
+                throw new IOException("Unknown chat payload version " + version);
+            String channelName = readString(in);
+            Message message = new Message();
+            message.setSender(readString(in));
+            message.setTimestamp(Varints.read(in));
+            message.setSequence(Varints.read(in));
+            message.setText(new String(body, in.position(), in.remaining(), StandardCharsets.UTF_8));
+            return new ChatPayload(channelName, message);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated chat payload");
+        }
+    }
+
+    private static ChatPayload decodeMultiChannel(byte[] body, ByteBuffer in) throws IOException {
+        long count = Varints.read(in);
+        // Every channel takes at least two bytes
+        if(count < 1 || count > in.remaining() / 2)
+            throw new IOException("Invalid channel count " + count);
+        List<String> channelNames = new ArrayList<String>((int) count);
+        long[] sequences = new long[(int) count];
+        for(int i=0; i<count; i++) {
+            channelNames.add(readString(in));
+            sequences[i] = Varints.read(in);
+        }
+        Message message = new Message();
+        message.setSender(readString(in));
+        message.setTimestamp(Varints.read(in));
+        message.setSequence(sequences[0]);
+        message.setText(new String(body, in.position(), in.remaining(), StandardCharsets.UTF_8));
+        return new ChatPayload(channelNames, sequences, message);
+    }
+
+    /**
+     * Returns the lines of a delivery to a member queue: the chat messages of a
+     * single or batched delivery, or the body itself when it is plain text.
+     * Compressed deliveries are decompressed first.
+     */
+    public static List<String> lines(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        String type = properties==null ? null : properties.getType();
+        List<String> lines = new ArrayList<String>();
+        if(OutboundBatcher.BATCH_TYPE.equals(type) || TYPE.equals(type)) {
+            for(ChatPayload payload:payloads(properties, body))
+                lines.add(payload.format());
+        } else {
+            lines.add(new String(Compression.decompress(properties, body), StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the chat messages of a single or batched delivery to a member
+     * queue, or none when the delivery holds no chat message.
+     */
+    public static List<ChatPayload> payloads(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        String type = properties==null ? null : properties.getType();
+        body = Compression.decompress(properties, body);
+        List<ChatPayload> payloads = new ArrayList<ChatPayload>();
+        if(OutboundBatcher.BATCH_TYPE.equals(type)) {
+            for(byte[] part:OutboundBatcher.unpack(properties, body))
+                payloads.add(decode(part));
+        } else if(TYPE.equals(type)) {
+            payloads.add(decode(body));
+        }
+        return payloads;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        return Varints.readUtf8(in, Varints.read(in));
+    }
+}
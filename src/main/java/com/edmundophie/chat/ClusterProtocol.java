@@ -0,0 +1,51 @@
+package com.edmundophie.chat;
+
+/**
+ * Queue names and message types shared by the shards of a cluster and the
+ * clients that route to them.
+ */
+public final class ClusterProtocol {
+    public static final String RPC_QUEUE_NAME = "rpc_queue";
+    public static final String INGEST_QUEUE_NAME = "message_ingest";
+    /** Fanout exchange on which shards announce themselves. */
+    public static final String CLUSTER_EXCHANGE_NAME = "cluster";
+    /** Type of an announcement whose body is the id of a shard that joined. */
+    public static final String SHARD_JOIN_TYPE = "shard_join";
+    /** Type of a {@link ShardHandoff} published to the RPC queue of the new owner. */
+    public static final String HANDOFF_TYPE = "handoff";
+    /** Header naming the shard that forwarded a request; forwarded requests are never bounced back. */
+    public static final String FORWARDED_BY_HEADER = "x-forwarded-by";
+
+    private ClusterProtocol() {
+    }
+
+    /**
+     * Returns the RPC queue of a shard, or the single server queue when
+     * {@code shardId} is null.
+     */
+    public static String rpcQueue(String shardId) {
+        return shardId==null ? RPC_QUEUE_NAME : RPC_QUEUE_NAME + "." + shardId;
+    }
+
+    public static String ingestQueue(String shardId) {
+        return shardId==null ? INGEST_QUEUE_NAME : INGEST_QUEUE_NAME + "." + shardId;
+    }
+
+    /**
+     * Whether a command only touches one channel and is therefore served by the
+     * shard that owns the channel.
+     */
+    public static boolean isChannelCommand(String command) {
+        return command!=null && (command.equalsIgnoreCase("JOIN") || command.equalsIgnoreCase("LEAVE")
+                || command.equalsIgnoreCase("SEND") || command.equalsIgnoreCase("HISTORY"));
+    }
+
+    /**
+     * Whether a command acts on every channel of a user and is therefore sent to
+     * all shards.
+     */
+    public static boolean isUserWideCommand(String command) {
+        return command!=null && (command.equalsIgnoreCase("LOGOUT") || command.equalsIgnoreCase("EXIT")
+                || command.equalsIgnoreCase("BROADCAST") || command.equalsIgnoreCase("REPLAY"));
+    }
+}
@@ -0,0 +1,191 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional zlib compression of message bodies. A body is compressed only when
+ * it is at least as long as the threshold and shrinks, and a compressed body
+ * is marked with the content encoding {@link #DEFLATE}; everything else goes
+ * out unchanged, so receivers handle both.
+ *
+ * Bodies up to {@link #DICTIONARY_LIMIT} bytes are compressed with a preset
+ * dictionary of common chat text and protocol field names, which gives deflate
+ * something to refer back to from the first byte. The dictionary is written by
+ * hand, not trained on a corpus; CompressionTest checks that it still beats
+ * plain deflate on representative bodies. The zlib header names the
+ * dictionary by its checksum, so {@link #decompress} finds it on its own.
+ * Larger bodies have enough context of their own and skip the cost of loading it.
+ *
+ * Deflaters and inflaters are kept per thread and reused.
+ */
+public class Compression {
+    public static final String DEFLATE = "deflate";
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    public static final int DICTIONARY_LIMIT = 1024;
+
+    // zlib looks back from the end, so the most common strings come last
+    private static final byte[] DICTIONARY = (
+            "https://www. .com/ .org/ github.com/ docs.google.com/ "
+            + "Exception in thread \"main\" java.lang.NullPointerException at com. .java:"
+            + "Traceback (most recent call last): File \"\", line Error: error: warning: "
+            + "```\n```\n    }\n}\n    return ;\n    if (\n"
+            + "good morning, good night, happy birthday! congratulations! "
+            + "what do you think about this? does anyone know how to "
+            + "can someone take a look at the pull request? I pushed a fix for the build "
+            + "sorry, I was in a meeting. let me check and get back to you. "
+            + "I don't know, I'm not sure, I think so, I guess it's fine. "
+            + "yeah, yes, no, okay, ok, sure, thanks, thank you, please, "
+            + "lol haha :) :D ;) "
+            + "\"sender\":\"\",\"text\":\"\",\"timestamp\":,\"sequence\":"
+            + "{\"status\":\"true\",\"message\":\"* \",\"nickname\":\"\",\"messages\":[{"
+            + "{\"command\":\"SEND\",\"nickname\":\"\",\"channelName\":\"\",\"message\":\""
+            + " the same thing, I will be there in a few minutes. "
+            + " is it working now? it works for me, but not on the server. "
+            + " we should talk about it tomorrow, today, tonight, this week. "
+            + " what about you? how are you? are you there? "
+            + " I have a question about the new release and the deadline. "
+            + " it is, it was, this is, that is, there is, have you, do you, did you, can you, "
+            + " and the to of in that for with on at from by about as not but or if "
+            + " you I we they he she it is are was be have has do what when where why how "
+    ).getBytes(StandardCharsets.UTF_8);
+    private static final int DICTIONARY_ID;
+    // Inflated bodies beyond this are rejected rather than expanded
+    private static final int MAX_INFLATED_BYTES = 64 * 1024 * 1024;
+
+    static {
+        Adler32 adler = new Adler32();
+        adler.update(DICTIONARY, 0, DICTIONARY.length);
+        DICTIONARY_ID = (int) adler.getValue();
+    }
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[DICTIONARY_LIMIT];
+        }
+    };
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public Compression(int threshold, final int level) {
+        if(threshold < 1)
+            throw new IllegalArgumentException("Compression threshold must be positive: " + threshold);
+        if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        this.threshold = threshold;
+        deflaters = new ThreadLocal<Deflater>() {
+            protected Deflater initialValue() {
+                return new Deflater(level);
+            }
+        };
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the compressed body, or null when the body is below the
+     * threshold or does not shrink. Send it with {@link #encoded} properties.
+     */
+    public byte[] compress(byte[] body) {
+        if(body.length < threshold) return null;
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if(body.length <= DICTIONARY_LIMIT)
+            deflater.setDictionary(DICTIONARY);
+        deflater.setInput(body);
+        deflater.finish();
+
+        byte[] out = buffers.get();
+        if(out.length < body.length) {
+            out = new byte[body.length];
+            buffers.set(out);
+        }
+        // Output that does not fit into fewer bytes than the body is not worth sending
+        int length = 0;
+        while(!deflater.finished() && length < body.length - 1)
+            length += deflater.deflate(out, length, body.length - 1 - length);
+        if(!deflater.finished()) return null;
+
+        compressedCount.incrementAndGet();
+        bytesSaved.addAndGet(body.length - length);
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Returns a copy of {@code properties} marking the body as compressed.
+     */
+    public static AMQP.BasicProperties encoded(AMQP.BasicProperties properties) {
+        return properties.builder().contentEncoding(DEFLATE).build();
+    }
+
+    /**
+     * Returns the body of a delivery as it was before compression; a body
+     * without content encoding is returned as it is.
+     */
+    public static byte[] decompress(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        String encoding = properties==null ? null : properties.getContentEncoding();
+        if(encoding==null) return body;
+        if(!DEFLATE.equals(encoding))
+            throw new IOException("Unsupported content encoding " + encoding);
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(body);
+        byte[] out = new byte[Math.max(64, body.length * 4)];
+        int length = 0;
+        try {
+            while(!inflater.finished()) {
+                if(length==out.length) {
+                    if(out.length >= MAX_INFLATED_BYTES)
+                        throw new IOException("Compressed body inflates beyond " + MAX_INFLATED_BYTES + " bytes");
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_INFLATED_BYTES));
+                }
+                int inflated = inflater.inflate(out, length, out.length - length);
+                length += inflated;
+                if(inflated > 0) continue;
+
+                if(inflater.needsDictionary()) {
+                    if(inflater.getAdler()!=DICTIONARY_ID)
+                        throw new IOException("Compressed body uses an unknown dictionary");
+                    inflater.setDictionary(DICTIONARY);
+                } else if(inflater.needsInput()) {
+                    throw new IOException("Truncated compressed body");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed body: " + e.getMessage());
+        }
+        return length==out.length ? out : Arrays.copyOf(out, length);
+    }
+
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * Returns the bytes compression kept off the wire so far, counted once per
+     * compressed body however many recipients it went to.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+}
@@ -0,0 +1,113 @@
+package com.edmundophie.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring of shard ids. Every shard is placed on the ring
+ * at a number of virtual points and a key belongs to the shard of the first
+ * point at or after the hash of the key, so adding a shard only moves the keys
+ * that now fall in front of its points. The hash only depends on the bytes of
+ * the strings, so servers and clients in different processes agree on owners.
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        if(nodes.isEmpty())
+            throw new IllegalArgumentException("A ring needs at least one node");
+        if(virtualNodes < 1)
+            throw new IllegalArgumentException("Virtual node count must be positive: " + virtualNodes);
+
+        this.virtualNodes = virtualNodes;
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(nodes)));
+
+        TreeMap<Long, String> ring = new TreeMap<Long, String>();
+        for(String node:this.nodes) {
+            for(int i=0; i<virtualNodes; i++)
+                ring.put(hash(node + "#" + i), node);
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for(Map.Entry<Long, String> point:ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            i++;
+        }
+    }
+
+    public String ownerOf(String key) {
+        long hash = hash(key==null ? "" : key);
+        int low = 0;
+        int high = points.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(points[mid] < hash) low = mid + 1;
+            else high = mid;
+        }
+        return owners[low==points.length ? 0 : low];
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * Returns the shard ids in sorted order.
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public ConsistentHashRing withNode(String node) {
+        if(contains(node)) return this;
+        List<String> grown = new ArrayList<String>(nodes);
+        grown.add(node);
+        return new ConsistentHashRing(grown, virtualNodes);
+    }
+
+    /**
+     * Returns the ring without the given node, or null if it is the only one.
+     */
+    public ConsistentHashRing withoutNode(String node) {
+        if(!contains(node)) return this;
+        if(nodes.size()==1) return null;
+        List<String> shrunk = new ArrayList<String>(nodes);
+        shrunk.remove(node);
+        return new ConsistentHashRing(shrunk, virtualNodes);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, followed by the MurmurHash3 finalizer
+     * to spread the short, similar keys of virtual nodes over the whole ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b:key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
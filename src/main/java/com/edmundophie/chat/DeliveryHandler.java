@@ -0,0 +1,13 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+
+/**
+ * Receives the deliveries of a consumer registered with
+ * {@link TransportChannel#basicConsume}.
+ */
+public interface DeliveryHandler {
+    void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException;
+}
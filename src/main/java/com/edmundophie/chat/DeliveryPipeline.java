@@ -0,0 +1,211 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Receives the chat messages of one session and hands them to a renderer on
+ * its own thread, so a slow terminal never blocks the broker delivery thread.
+ * The session queue has a single consumer with manual acks and a prefetch
+ * limit, and at most {@code capacity} messages wait for the renderer. What
+ * happens when they would exceed it is decided by the flood policy:
+ * <ul>
+ * <li>{@link #BACKPRESSURE}: a delivery is acknowledged only once rendered, so
+ * at most the prefetch is outstanding and the rest waits on the broker.</li>
+ * <li>{@link #DROP_OLDEST}: deliveries are acknowledged on arrival and the
+ * oldest waiting message is dropped; the renderer reports how many were.</li>
+ * <li>{@link #COALESCE}: like drop-oldest, but a new message replaces the
+ * oldest waiting message of the same channel, which is rendered with the
+ * number of messages it stands for.</li>
+ * </ul>
+ */
+public class DeliveryPipeline {
+    public static final String BACKPRESSURE = "backpressure";
+    public static final String DROP_OLDEST = "drop-oldest";
+    public static final String COALESCE = "coalesce";
+
+    public interface Renderer {
+        void render(String message);
+    }
+
+    private static class Entry {
+        private final String channelName;
+        private String text;
+        private int skipped;
+        // Acknowledged once rendered; -1 when already acknowledged
+        private long deliveryTag = -1;
+
+        Entry(String channelName, String text) {
+            this.channelName = channelName;
+            this.text = text;
+        }
+    }
+
+    private final TransportChannel channel;
+    private final int prefetchCount;
+    private final int capacity;
+    private final String floodPolicy;
+    private final Renderer renderer;
+    private final ArrayDeque<Entry> waiting = new ArrayDeque<Entry>();
+    private final Thread renderThread;
+    private String consumerTag;
+    private long droppedCount;
+    private long droppedSinceRender;
+    private boolean running = true;
+
+    public DeliveryPipeline(TransportChannel channel, int prefetchCount, int capacity, String floodPolicy, Renderer renderer) {
+        if(prefetchCount < 1)
+            throw new IllegalArgumentException("Prefetch must be positive: " + prefetchCount);
+        if(capacity < 1)
+            throw new IllegalArgumentException("Render queue capacity must be positive: " + capacity);
+        if(!BACKPRESSURE.equals(floodPolicy) && !DROP_OLDEST.equals(floodPolicy) && !COALESCE.equals(floodPolicy))
+            throw new IllegalArgumentException("Unknown flood policy: " + floodPolicy);
+        this.channel = channel;
+        this.prefetchCount = prefetchCount;
+        // A batched delivery may bring more messages than the prefetch, so backpressure keeps some slack
+        this.capacity = BACKPRESSURE.equals(floodPolicy) ? Math.max(capacity, prefetchCount) : capacity;
+        this.floodPolicy = floodPolicy;
+        this.renderer = renderer;
+
+        renderThread = new Thread(new Runnable() {
+            public void run() {
+                renderLoop();
+            }
+        }, "delivery-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    /**
+     * Consumes the given queue, replacing the consumer of a previous subscription.
+     */
+    public synchronized void subscribe(String queueName) throws IOException {
+        unsubscribe();
+        synchronized (channel) {
+            channel.basicQos(prefetchCount);
+            consumerTag = channel.basicConsume(queueName, false, new DeliveryHandler() {
+                public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                    deliver(deliveryTag, properties, body);
+                }
+            });
+        }
+    }
+
+    public synchronized void unsubscribe() throws IOException {
+        if(consumerTag==null) return;
+        synchronized (channel) {
+            if(channel.isOpen()) channel.basicCancel(consumerTag);
+        }
+        consumerTag = null;
+    }
+
+    /**
+     * Returns the number of messages dropped or coalesced away so far.
+     */
+    public long getDroppedCount() {
+        synchronized (waiting) {
+            return droppedCount;
+        }
+    }
+
+    public void close() throws IOException {
+        unsubscribe();
+        synchronized (waiting) {
+            running = false;
+            waiting.notifyAll();
+        }
+    }
+
+    private void deliver(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        List<String> messages = ChatPayload.lines(properties, body);
+        boolean backpressure = BACKPRESSURE.equals(floodPolicy);
+        if(!backpressure || messages.isEmpty())
+            ack(deliveryTag);
+
+        synchronized (waiting) {
+            for(int i=0; i<messages.size(); i++) {
+                String text = messages.get(i);
+                Entry entry = new Entry(channelOf(text), text);
+                // The last message of a delivery acknowledges all of it
+                if(backpressure && i==messages.size() - 1)
+                    entry.deliveryTag = deliveryTag;
+                enqueue(entry);
+            }
+            waiting.notifyAll();
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        if(waiting.size() < capacity || BACKPRESSURE.equals(floodPolicy)) {
+            waiting.addLast(entry);
+            return;
+        }
+
+        if(COALESCE.equals(floodPolicy) && entry.channelName!=null) {
+            for(Entry queued:waiting) {
+                if(entry.channelName.equals(queued.channelName)) {
+                    queued.text = entry.text;
+                    queued.skipped++;
+                    droppedCount++;
+                    return;
+                }
+            }
+        }
+        Entry oldest = waiting.pollFirst();
+        droppedSinceRender += 1 + oldest.skipped;
+        droppedCount++;
+        waiting.addLast(entry);
+    }
+
+    private void renderLoop() {
+        while(true) {
+            Entry entry;
+            long dropped;
+            synchronized (waiting) {
+                while(running && waiting.isEmpty()) {
+                    try {
+                        waiting.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(waiting.isEmpty()) return;
+                entry = waiting.pollFirst();
+                dropped = droppedSinceRender;
+                droppedSinceRender = 0;
+            }
+
+            if(dropped > 0)
+                renderer.render("* " + dropped + " message(s) dropped, the terminal could not keep up");
+            renderer.render(entry.text);
+            if(entry.skipped > 0)
+                renderer.render("* " + entry.skipped + " earlier message(s) in #" + entry.channelName + " skipped");
+            if(entry.deliveryTag >= 0) {
+                try {
+                    ack(entry.deliveryTag);
+                } catch (IOException e) {
+                    System.err.println("* Failed to acknowledge a message: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void ack(long deliveryTag) throws IOException {
+        synchronized (channel) {
+            if(channel.isOpen()) channel.basicAck(deliveryTag);
+        }
+    }
+
+    /**
+     * Returns the channel of an "@channel sender: text" line, or null for any
+     * other message.
+     */
+    private static String channelOf(String text) {
+        if(!text.startsWith("@")) return null;
+        int end = text.indexOf(' ');
+        return end < 0 ? null : text.substring(1, end);
+    }
+}
@@ -0,0 +1,55 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Publishes one copy of a message per channel member on the shared direct
+ * exchange, using the member nickname as routing key. With an
+ * {@link OutboundBatcher} the copies for one member are batched.
+ */
+public class DirectMessageRouter implements MessageRouter {
+    private final String exchangeName;
+    private final OutboundBatcher batcher;
+
+    public DirectMessageRouter(String exchangeName) {
+        this(exchangeName, null);
+    }
+
+    public DirectMessageRouter(String exchangeName, OutboundBatcher batcher) {
+        this.exchangeName = exchangeName;
+        this.batcher = batcher;
+    }
+
+    public void declare(TransportChannel channel) throws IOException {
+        channel.exchangeDeclare(exchangeName, "direct");
+    }
+
+    public void memberJoined(TransportChannel channel, String channelName, String nickname) {
+        // The client binds its own queue to the direct exchange
+    }
+
+    public void memberLeft(TransportChannel channel, String channelName, String nickname) {
+    }
+
+    public boolean publishesPerMember() {
+        return true;
+    }
+
+    public void publish(TransportChannel channel, String channelName, List<String> members,
+                        AMQP.BasicProperties properties, byte[] body) throws IOException {
+        publishToMembers(channel, members, properties, body);
+    }
+
+    public void publishToMembers(TransportChannel channel, List<String> members,
+                                 AMQP.BasicProperties properties, byte[] body) throws IOException {
+        for(String routingKey:members) {
+            if(batcher!=null)
+                batcher.publish(channel, exchangeName, routingKey, properties, body);
+            else
+                channel.basicPublish(exchangeName, routingKey, properties, body);
+        }
+    }
+}
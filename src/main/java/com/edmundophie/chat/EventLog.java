@@ -0,0 +1,274 @@
+package com.edmundophie.chat;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured event log written by a background thread. An event is declared
+ * once with its level and field names, and logging it only copies the field
+ * values into a preallocated slot of a ring buffer; the writer formats it as
+ * "time LEVEL event field=value ..." later. Events below the log level or
+ * skipped by sampling return before touching the buffer and allocate nothing.
+ *
+ * Slots are claimed with a compare-and-set, so any number of threads can log
+ * without a lock. When the writer falls a full buffer behind, new events are
+ * dropped and counted rather than blocking the caller.
+ */
+public class EventLog {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    /**
+     * A kind of event with up to three string fields.
+     */
+    public static class Event {
+        private final EventLog log;
+        private final String name;
+        private final int level;
+        private final String[] fieldNames;
+        private volatile int sampleEvery = 1;
+        // Not atomic: a lost increment under contention only shifts the sample
+        private int sampleCount;
+
+        private Event(EventLog log, String name, int level, String[] fieldNames) {
+            this.log = log;
+            this.name = name;
+            this.level = level;
+            this.fieldNames = fieldNames;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void log() {
+            log(null, null, null);
+        }
+
+        public void log(String value) {
+            log(value, null, null);
+        }
+
+        public void log(String value1, String value2) {
+            log(value1, value2, null);
+        }
+
+        public void log(String value1, String value2, String value3) {
+            if(level < log.level) return;
+            int every = sampleEvery;
+            if(every > 1) {
+                if(++sampleCount < every) return;
+                sampleCount = 0;
+            }
+            log.append(this, value1, value2, value3);
+        }
+    }
+
+    private static class Slot {
+        // Sequence of the event held by the slot; set last, so it publishes the other fields
+        private volatile long sequence = -1;
+        private long timestamp;
+        private Event event;
+        private String value1;
+        private String value2;
+        private String value3;
+    }
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final ConcurrentMap<String, Event> events = new ConcurrentHashMap<String, Event>();
+    private final Map<String, Integer> sampling = new ConcurrentHashMap<String, Integer>();
+    private volatile int level = INFO;
+    private Thread writer;
+    private volatile boolean running;
+
+    /**
+     * Creates a log whose buffer holds {@code capacity} events, rounded up to a
+     * power of two. Warnings and errors go to {@code err}, the rest to {@code out}.
+     */
+    public EventLog(PrintStream out, PrintStream err, int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Event log capacity must be positive: " + capacity);
+        this.out = out;
+        this.err = err;
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+        slots = new Slot[size];
+        for(int i=0; i<size; i++)
+            slots[i] = new Slot();
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the event with the given name, declaring it on first use.
+     */
+    public Event event(String name, int level, String... fieldNames) {
+        if(fieldNames.length > 3)
+            throw new IllegalArgumentException("An event has at most 3 fields: " + name);
+        Event event = events.get(name);
+        if(event!=null) return event;
+
+        event = new Event(this, name, level, fieldNames);
+        Integer every = sampling.get(name);
+        if(every!=null) event.sampleEvery = every;
+        Event existing = events.putIfAbsent(name, event);
+        return existing==null ? event : existing;
+    }
+
+    public void setLevel(int level) {
+        if(level < DEBUG || level > OFF)
+            throw new IllegalArgumentException("Unknown log level: " + level);
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Keeps only every {@code every}-th occurrence of the named event.
+     */
+    public void setSampling(String name, int every) {
+        if(every < 1)
+            throw new IllegalArgumentException("Sampling of " + name + " must be positive: " + every);
+        sampling.put(name, every);
+        Event event = events.get(name);
+        if(event!=null) event.sampleEvery = every;
+    }
+
+    /**
+     * Applies a sampling list such as "send=100,broadcast=10".
+     */
+    public void setSampling(String spec) {
+        for(String entry:spec.split(",")) {
+            entry = entry.trim();
+            if(entry.isEmpty()) continue;
+            int separator = entry.indexOf('=');
+            if(separator < 1)
+                throw new IllegalArgumentException("Expected event=rate, got " + entry);
+            setSampling(entry.substring(0, separator).trim(), Integer.parseInt(entry.substring(separator + 1).trim()));
+        }
+    }
+
+    /**
+     * Returns the number of events dropped because the writer fell behind.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public static int parseLevel(String name) {
+        for(int i=0; i<LEVEL_NAMES.length; i++) {
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    public synchronized void start() {
+        if(running) return;
+        running = true;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes the events still in the buffer and stops the writer.
+     */
+    public void close() {
+        synchronized (this) {
+            if(!running) return;
+            running = false;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(Event event, String value1, String value2, String value3) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if(sequence - tail >= slots.length) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+        } while(!head.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.timestamp = System.currentTimeMillis();
+        slot.event = event;
+        slot.value1 = value1;
+        slot.value2 = value2;
+        slot.value3 = value3;
+        slot.sequence = sequence;
+    }
+
+    private void writeLoop() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT);
+        StringBuilder line = new StringBuilder(128);
+        long next = tail;
+        while(true) {
+            Slot slot = slots[(int) next & mask];
+            if(slot.sequence!=next) {
+                // Events claimed before the close are still written
+                if(!running && head.get()==next) return;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            Event event = slot.event;
+            line.setLength(0);
+            line.append("- ").append(dateFormat.format(new Date(slot.timestamp)))
+                    .append(' ').append(LEVEL_NAMES[event.level])
+                    .append(' ').append(event.name);
+            appendField(line, event, 0, slot.value1);
+            appendField(line, event, 1, slot.value2);
+            appendField(line, event, 2, slot.value3);
+            slot.event = null;
+            slot.value1 = null;
+            slot.value2 = null;
+            slot.value3 = null;
+            tail = ++next;
+
+            (event.level >= WARN ? err : out).println(line);
+        }
+    }
+
+    private static void appendField(StringBuilder line, Event event, int index, String value) {
+        if(index >= event.fieldNames.length) return;
+        line.append(' ').append(event.fieldNames[index]).append('=');
+        if(value==null) {
+            line.append('-');
+        } else if(value.isEmpty() || value.indexOf(' ')>=0 || value.indexOf('"')>=0) {
+            line.append('"').append(value.replace("\"", "\\\"")).append('"');
+        } else {
+            line.append(value);
+        }
+    }
+}
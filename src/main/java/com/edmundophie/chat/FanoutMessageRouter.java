@@ -0,0 +1,75 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Gives every chat channel its own fanout exchange and binds the member queues
+ * to it, so a message is published once and copied to the members by the broker.
+ * With an {@link OutboundBatcher} the messages of one channel are batched.
+ */
+public class FanoutMessageRouter implements MessageRouter {
+    private final String exchangePrefix;
+    private final OutboundBatcher batcher;
+
+    public FanoutMessageRouter(String exchangePrefix) {
+        this(exchangePrefix, null);
+    }
+
+    public FanoutMessageRouter(String exchangePrefix, OutboundBatcher batcher) {
+        this.exchangePrefix = exchangePrefix;
+        this.batcher = batcher;
+    }
+
+    public String exchangeFor(String channelName) {
+        return exchangePrefix + "." + channelName;
+    }
+
+    public void declare(TransportChannel channel) {
+    }
+
+    public void memberJoined(TransportChannel channel, String channelName, String nickname) throws IOException {
+        String exchangeName = exchangeFor(channelName);
+        channel.exchangeDeclare(exchangeName, "fanout");
+        // Same arguments the client uses, so whichever side declares first wins
+        channel.queueDeclare(nickname, false, false, true);
+        channel.queueBind(nickname, exchangeName, "");
+    }
+
+    public void memberLeft(TransportChannel channel, String channelName, String nickname) throws IOException {
+        channel.queueUnbind(nickname, exchangeFor(channelName), "");
+    }
+
+    /**
+     * The broker copies a channel message to the members, so publishing once
+     * per channel is cheaper than once per distinct member.
+     */
+    public boolean publishesPerMember() {
+        return false;
+    }
+
+    public void publish(TransportChannel channel, String channelName, List<String> members,
+                        AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if(members.isEmpty()) return;
+        if(batcher!=null)
+            batcher.publish(channel, exchangeFor(channelName), "", properties, body);
+        else
+            channel.basicPublish(exchangeFor(channelName), "", properties, body);
+    }
+
+    /**
+     * Bypasses the channel exchanges and publishes to the member queues through
+     * the default exchange.
+     */
+    public void publishToMembers(TransportChannel channel, List<String> members,
+                                 AMQP.BasicProperties properties, byte[] body) throws IOException {
+        for(String queueName:members) {
+            if(batcher!=null)
+                batcher.publish(channel, "", queueName, properties, body);
+            else
+                channel.basicPublish("", queueName, properties, body);
+        }
+    }
+}
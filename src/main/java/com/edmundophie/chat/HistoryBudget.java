@@ -0,0 +1,86 @@
+package com.edmundophie.chat;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte budget shared by the {@link MessageHistory} of every channel. Stored
+ * messages are queued in the order they were stored, whichever channel they
+ * are in, and when the budget is exceeded the oldest of them are evicted, so
+ * quiet channels give up old messages before busy ones lose recent messages.
+ *
+ * A history also evicts messages on its own when its ring is full. Their queue
+ * entries are skipped when they come up, and dropped in one pass once they
+ * outnumber the stored messages.
+ */
+public class HistoryBudget {
+    // Dead entries tolerated before a pass, so small histories never pay for one
+    private static final int COMPACTION_SLACK = 1024;
+
+    private static class Entry {
+        private final MessageHistory history;
+        private final Message message;
+
+        Entry(MessageHistory history, Message message) {
+            this.history = history;
+            this.message = message;
+        }
+    }
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicInteger storedCount = new AtomicInteger();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+
+    public HistoryBudget(long maxBytes) {
+        if(maxBytes < 1)
+            throw new IllegalArgumentException("History memory must be positive: " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    void stored(MessageHistory history, Message message, long bytes) {
+        usedBytes.addAndGet(bytes);
+        storedCount.incrementAndGet();
+        entries.add(new Entry(history, message));
+        queuedCount.incrementAndGet();
+    }
+
+    void evicted(long bytes) {
+        usedBytes.addAndGet(-bytes);
+        storedCount.decrementAndGet();
+    }
+
+    /**
+     * Evicts the oldest messages until the budget holds. Called by a history
+     * after releasing its own lock, since this locks the other histories.
+     */
+    void trim() {
+        while(usedBytes.get() > maxBytes) {
+            Entry entry = entries.poll();
+            if(entry==null) break;
+            queuedCount.decrementAndGet();
+            entry.history.evictIfOldest(entry.message);
+        }
+        if(queuedCount.get() > 2 * storedCount.get() + COMPACTION_SLACK)
+            compact();
+    }
+
+    private synchronized void compact() {
+        if(queuedCount.get() <= 2 * storedCount.get() + COMPACTION_SLACK) return;
+        Iterator<Entry> it = entries.iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next();
+            if(!entry.history.holds(entry.message)) {
+                it.remove();
+                queuedCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.edmundophie.chat;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing set of non-negative ints with linear probing. Removal shifts
+ * the following entries back, so there are no tombstones and lookups stay
+ * short after heavy churn. Not thread-safe.
+ */
+class IntHashSet {
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] slots;
+    private int size;
+
+    IntHashSet() {
+        this(0);
+    }
+
+    /**
+     * Creates a set that holds {@code expectedSize} values without resizing.
+     */
+    IntHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while(expectedSize * 4 > capacity * 3)
+            capacity <<= 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size==0;
+    }
+
+    boolean contains(int value) {
+        int mask = slots.length - 1;
+        for(int i=mix(value) & mask; ; i=(i + 1) & mask) {
+            int slot = slots[i];
+            if(slot==value) return true;
+            if(slot==EMPTY) return false;
+        }
+    }
+
+    boolean add(int value) {
+        if(value < 0) throw new IllegalArgumentException("Negative value: " + value);
+        if((size + 1) * 4 > slots.length * 3) resize(slots.length * 2);
+
+        int mask = slots.length - 1;
+        for(int i=mix(value) & mask; ; i=(i + 1) & mask) {
+            int slot = slots[i];
+            if(slot==value) return false;
+            if(slot==EMPTY) {
+                slots[i] = value;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    boolean remove(int value) {
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while(slots[i]!=value) {
+            if(slots[i]==EMPTY) return false;
+            i = (i + 1) & mask;
+        }
+
+        // Shift back every following entry that would no longer be reachable
+        int hole = i;
+        for(int j=(i + 1) & mask; slots[j]!=EMPTY; j=(j + 1) & mask) {
+            int home = mix(slots[j]) & mask;
+            if(((j - home) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for(int slot:slots) {
+            if(slot!=EMPTY) values[n++] = slot;
+        }
+        return values;
+    }
+
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+        for(int slot:old) {
+            if(slot!=EMPTY) add(slot);
+        }
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
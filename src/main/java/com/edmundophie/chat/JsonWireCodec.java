@@ -0,0 +1,65 @@
+package com.edmundophie.chat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+
+/**
+ * The original JSON format. Readers and writers are built once and shared, as
+ * they are immutable and thread-safe.
+ */
+public class JsonWireCodec implements WireCodec {
+    public static final String CONTENT_TYPE = "application/json";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectReader REQUEST_READER = MAPPER.readerFor(Request.class);
+    private static final ObjectReader RESPONSE_READER = MAPPER.readerFor(Response.class);
+    private static final ObjectReader MESSAGE_READER = MAPPER.readerFor(Message.class);
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    public byte[] encodeRequest(Request request) throws IOException {
+        return WRITER.writeValueAsBytes(request);
+    }
+
+    public Request decodeRequest(byte[] body) throws IOException {
+        return REQUEST_READER.readValue(body);
+    }
+
+    public byte[] encodeResponse(Response response) throws IOException {
+        return WRITER.writeValueAsBytes(response);
+    }
+
+    public Response decodeResponse(byte[] body) throws IOException {
+        return RESPONSE_READER.readValue(body);
+    }
+
+    public byte[] encodeMessage(Message message) throws IOException {
+        return WRITER.writeValueAsBytes(message);
+    }
+
+    public Message decodeMessage(byte[] body) throws IOException {
+        return MESSAGE_READER.readValue(body);
+    }
+
+    /**
+     * The mapper behind this codec, for the other JSON bodies of the protocol.
+     */
+    static ObjectMapper mapper() {
+        return MAPPER;
+    }
+
+    static String toJson(Object value) {
+        try {
+            return WRITER.writeValueAsString(value);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.edmundophie.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values in the style of HdrHistogram.
+ * Every power of two is split into the same number of linear sub-buckets, so a
+ * recorded value is kept with a relative error below 2^-(precisionBits-1) from
+ * zero up to {@link Long#MAX_VALUE}. Recording is lock-free and does not
+ * allocate, so any number of threads may record into one histogram.
+ */
+public class LatencyHistogram {
+    private final int precisionBits;
+    private final int subBucketCount;
+    private final int halfCount;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(8);
+    }
+
+    public LatencyHistogram(int precisionBits) {
+        if(precisionBits < 2 || precisionBits > 16)
+            throw new IllegalArgumentException("Precision must be between 2 and 16 bits: " + precisionBits);
+
+        this.precisionBits = precisionBits;
+        subBucketCount = 1 << precisionBits;
+        halfCount = subBucketCount >> 1;
+        counts = new AtomicLongArray(subBucketCount + (64 - precisionBits) * halfCount);
+    }
+
+    public void record(long value) {
+        if(value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+
+        long max = maxValue.get();
+        while(value > max && !maxValue.compareAndSet(max, value))
+            max = maxValue.get();
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return count==0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * Returns the highest value that is equivalent, within the precision of the
+     * histogram, to the value at the given percentile, or 0 if nothing has been
+     * recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if(count==0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for(int i=0; i<counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target)
+                return Math.min(highestEquivalentValue(i), maxValue.get());
+        }
+        return maxValue.get();
+    }
+
+    public void reset() {
+        for(int i=0; i<counts.length(); i++)
+            counts.set(i, 0);
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+    private int indexOf(long value) {
+        if(value < subBucketCount) return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (precisionBits - 1);
+        return subBucketCount + (shift - 1) * halfCount + (int) ((value >>> shift) - halfCount);
+    }
+
+    private long highestEquivalentValue(int index) {
+        if(index < subBucketCount) return index;
+        int shift = (index - subBucketCount) / halfCount + 1;
+        long mantissa = (index - subBucketCount) % halfCount + halfCount;
+        long highest = ((mantissa + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
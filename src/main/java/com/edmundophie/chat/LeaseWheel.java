@@ -0,0 +1,171 @@
+package com.edmundophie.chat;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel tracking session leases. Time is cut into ticks and a
+ * lease sits in the bucket of the tick it expires in; the wheel has at least
+ * as many buckets as a lease lasts ticks, so a bucket only ever holds leases
+ * due in the tick being swept. A sweep therefore costs the number of leases
+ * due, however many sessions there are.
+ *
+ * Renewing a lease only moves its deadline. When its bucket comes up, a
+ * renewed lease is put into the bucket of its new deadline, so a session that
+ * keeps renewing costs one move per lease period rather than one per renewal.
+ * Cancelled leases are dropped when their bucket comes up.
+ *
+ * Leases may be added, renewed and cancelled from any thread; the buckets are
+ * only touched by the sweeper thread.
+ */
+public class LeaseWheel {
+    public interface ExpiryHandler {
+        void expired(Lease lease);
+    }
+
+    public static class Lease {
+        private final String key;
+        private volatile long deadlineNanos;
+        private volatile boolean cancelled;
+        // Owned by the sweeper thread
+        private Lease next;
+
+        private Lease(String key, long deadlineNanos) {
+            this.key = key;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isExpired(long nowNanos) {
+            return deadlineNanos - nowNanos <= 0;
+        }
+    }
+
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final Lease[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Lease> scheduled = new ConcurrentLinkedQueue<Lease>();
+    private final long startNanos;
+    // Ticks swept so far, owned by the sweeper thread
+    private long tick;
+    private Thread sweeper;
+    private volatile boolean running;
+
+    public LeaseWheel(long timeoutMillis, long tickMillis) {
+        if(tickMillis < 1)
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        if(timeoutMillis < tickMillis)
+            throw new IllegalArgumentException("Lease timeout " + timeoutMillis + " ms is shorter than a tick");
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        long ticks = timeoutMillis / tickMillis + 2;
+        int size = Integer.highestOneBit((int) Math.min(ticks, 1 << 30));
+        if(size < ticks) size <<= 1;
+        buckets = new Lease[size];
+        mask = size - 1;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Grants a lease that expires after the timeout unless renewed.
+     */
+    public Lease add(String key) {
+        Lease lease = new Lease(key, System.nanoTime() + timeoutNanos);
+        scheduled.add(lease);
+        return lease;
+    }
+
+    public void renew(Lease lease) {
+        lease.deadlineNanos = System.nanoTime() + timeoutNanos;
+    }
+
+    public void cancel(Lease lease) {
+        lease.cancelled = true;
+    }
+
+    /**
+     * Tracks a lease again that was handed to the expiry handler but renewed
+     * before it was acted on.
+     */
+    public void reschedule(Lease lease) {
+        if(!lease.cancelled) scheduled.add(lease);
+    }
+
+    /**
+     * Starts sweeping once per tick, handing expired leases to {@code handler}
+     * on the sweeper thread.
+     */
+    public synchronized void start(final ExpiryHandler handler) {
+        if(running) return;
+        running = true;
+        sweeper = new Thread(new Runnable() {
+            public void run() {
+                while(running) {
+                    try {
+                        advance(System.nanoTime(), handler);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(tickNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "lease-wheel");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    public synchronized void stop() {
+        if(!running) return;
+        running = false;
+        sweeper.interrupt();
+    }
+
+    /**
+     * Sweeps every tick that ended by {@code nowNanos}. Only called by the
+     * sweeper thread.
+     */
+    void advance(long nowNanos, ExpiryHandler handler) {
+        Lease lease;
+        while((lease = scheduled.poll())!=null)
+            insert(lease);
+
+        while(nowNanos - (startNanos + (tick + 1) * tickNanos) >= 0) {
+            int index = (int) (tick & mask);
+            Lease due = buckets[index];
+            buckets[index] = null;
+            tick++;
+            while(due!=null) {
+                Lease current = due;
+                due = due.next;
+                current.next = null;
+                if(current.cancelled) continue;
+                if(current.isExpired(nowNanos))
+                    handler.expired(current);
+                else
+                    insert(current);
+            }
+        }
+    }
+
+    private void insert(Lease lease) {
+        if(lease.cancelled) return;
+        long deadlineTick = (lease.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        // Already due leases go into the next tick swept
+        if(deadlineTick < tick) deadlineTick = tick;
+        int index = (int) (deadlineTick & mask);
+        lease.next = buckets[index];
+        buckets[index] = lease;
+    }
+}
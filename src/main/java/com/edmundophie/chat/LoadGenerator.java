@@ -0,0 +1,482 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives an {@link RpcServer} with simulated chat sessions and reports round-trip
+ * and delivery latencies. Every session logs in, joins channels picked from a
+ * configurable popularity distribution and then sends SEND and BROADCAST requests
+ * at fixed aggregate rates. Requests are issued on schedule whether or not earlier
+ * ones have been answered, and latencies are measured from the scheduled send
+ * time, so a stalled server shows up in the percentiles instead of slowing the
+ * load down.
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_HOSTNAME = "localhost";
+    private static final String MESSAGE_EXCHANGE_NAME = "messages";
+    private static final String PAYLOAD_MARKER = "lg:";
+    private static final int DEFAULT_SESSION_COUNT = 100;
+    private static final int DEFAULT_CHANNEL_COUNT = 10;
+    private static final int DEFAULT_JOINS_PER_SESSION = 1;
+    private static final double DEFAULT_CHANNEL_SKEW = 0;
+    private static final int DEFAULT_SEND_RATE = 1000;
+    private static final int DEFAULT_BROADCAST_RATE = 0;
+    private static final int DEFAULT_DURATION_SECONDS = 30;
+    private static final int DEFAULT_CLIENT_COUNT = 4;
+    private static final int DEFAULT_MESSAGE_BYTES = 64;
+    private static final int DEFAULT_WORKER_COUNT = 4;
+    private static final int DEFAULT_PREFETCH_COUNT = 256;
+    private static final long CALL_TIMEOUT_MILLIS = 30000;
+    private static final long PACER_TICK_NANOS = 1000000;
+    private static final int DELIVERY_BATCH_MESSAGES = 64;
+    private static final int DELIVERY_BATCH_BYTES = 64 * 1024;
+
+    private final Transport transport;
+    private final WireCodec codec;
+    private final PrintStream report;
+    private final RpcClient[] clients;
+    private final TransportChannel[] inChannels;
+    private String[] nicknames;
+    private String[][] joinedChannels;
+
+    private final LatencyHistogram rpcLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final AtomicLong completedCalls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    private final AtomicLong deliveredMessages = new AtomicLong();
+
+    /**
+     * Creates the RPC clients of the generator. When {@code shards} is not null
+     * the clients route their requests to the shards of a cluster.
+     */
+    public LoadGenerator(Transport transport, int clientCount, WireCodec codec, List<String> shards,
+                         PrintStream report) throws Exception {
+        this.transport = transport;
+        this.codec = codec;
+        this.report = report;
+        clients = new RpcClient[clientCount];
+        inChannels = new TransportChannel[clientCount];
+        for(int i=0; i<clientCount; i++) {
+            clients[i] = new RpcClient(transport, CALL_TIMEOUT_MILLIS, codec);
+            if(shards!=null)
+                clients[i].setShards(shards);
+            inChannels[i] = transport.openChannel();
+            inChannels[i].exchangeDeclare(MESSAGE_EXCHANGE_NAME, "direct");
+        }
+    }
+
+    /**
+     * Logs in the sessions and joins each of them to {@code joinsPerSession}
+     * distinct channels. Channel {@code i} is picked with a weight of
+     * {@code 1/(i+1)^skew}: a skew of 0 spreads sessions evenly and larger skews
+     * make a few channels large and most of them small.
+     */
+    public void connect(String nicknamePrefix, int sessionCount, int channelCount, int joinsPerSession,
+                        double skew, long seed) throws Exception {
+        nicknames = new String[sessionCount];
+        joinedChannels = new String[sessionCount][];
+
+        List<CompletableFuture<Response>> logins = new ArrayList<CompletableFuture<Response>>();
+        for(int i=0; i<sessionCount; i++) {
+            nicknames[i] = nicknamePrefix + i;
+            logins.add(clientOf(i).callAsync(request("NICK", nicknames[i], null, null)));
+        }
+        awaitAll("NICK", logins);
+
+        DeliveryHandler deliveryHandler = new DeliveryHandler() {
+            public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                for(String line:ChatPayload.lines(properties, body))
+                    recordDelivery(line);
+            }
+        };
+        for(int i=0; i<sessionCount; i++) {
+            TransportChannel inChannel = inChannels[i % inChannels.length];
+            synchronized (inChannel) {
+                inChannel.queueDeclare(nicknames[i], false, false, true);
+                inChannel.queueBind(nicknames[i], MESSAGE_EXCHANGE_NAME, nicknames[i]);
+                inChannel.basicConsume(nicknames[i], true, deliveryHandler);
+            }
+        }
+
+        double[] cumulativeWeights = cumulativeWeights(channelCount, skew);
+        int joins = Math.min(joinsPerSession, channelCount);
+        Random random = new Random(seed);
+        List<CompletableFuture<Response>> joinCalls = new ArrayList<CompletableFuture<Response>>();
+        int[] channelSizes = new int[channelCount];
+        for(int i=0; i<sessionCount; i++) {
+            boolean[] picked = new boolean[channelCount];
+            joinedChannels[i] = new String[joins];
+            List<Request> sessionJoins = new ArrayList<Request>(joins);
+            for(int j=0; j<joins; j++) {
+                int channel;
+                do {
+                    channel = pick(cumulativeWeights, random.nextDouble());
+                } while(picked[channel]);
+                picked[channel] = true;
+                channelSizes[channel]++;
+                joinedChannels[i][j] = "load" + channel;
+                sessionJoins.add(request("JOIN", nicknames[i], joinedChannels[i][j], null));
+            }
+            if(sessionJoins.isEmpty()) continue;
+            // All channels of a session are joined in one round trip
+            Request batch = request("BATCH", nicknames[i], null, null);
+            batch.setRequests(sessionJoins);
+            joinCalls.add(clientOf(i).callAsync(batch));
+        }
+        awaitAll("JOIN", joinCalls);
+
+        int[] sortedSizes = channelSizes.clone();
+        Arrays.sort(sortedSizes);
+        report.println("- " + sessionCount + " session(s) joined " + channelCount + " channel(s); members per channel: min "
+                + sortedSizes[0] + ", median " + sortedSizes[channelCount/2] + ", max " + sortedSizes[channelCount-1]);
+    }
+
+    /**
+     * Sends for the given number of seconds and prints a progress line every second.
+     */
+    public void run(int sendRate, int broadcastRate, int durationSeconds, int messageBytes) throws InterruptedException {
+        String padding = padding(messageBytes);
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1000000000L;
+        long sendInterval = sendRate > 0 ? 1000000000L / sendRate : 0;
+        long broadcastInterval = broadcastRate > 0 ? 1000000000L / broadcastRate : 0;
+        long nextSend = sendRate > 0 ? start : end;
+        long nextBroadcast = broadcastRate > 0 ? start : end;
+        long nextProgress = start + 1000000000L;
+        long sent = 0;
+
+        while(true) {
+            long now = System.nanoTime();
+            if(now >= end) break;
+
+            while(nextSend <= now && nextSend < end) {
+                int session = ThreadLocalRandom.current().nextInt(nicknames.length);
+                String[] channels = joinedChannels[session];
+                if(channels.length > 0) {
+                    String channelName = channels[ThreadLocalRandom.current().nextInt(channels.length)];
+                    issue(session, "SEND", channelName, nextSend, padding);
+                    sent++;
+                }
+                nextSend += sendInterval;
+            }
+            while(nextBroadcast <= now && nextBroadcast < end) {
+                issue(ThreadLocalRandom.current().nextInt(nicknames.length), "BROADCAST", null, nextBroadcast, padding);
+                sent++;
+                nextBroadcast += broadcastInterval;
+            }
+
+            if(now >= nextProgress) {
+                report.println("- " + (nextProgress - start) / 1000000000L + "s: sent " + sent + ", completed "
+                        + completedCalls.get() + ", failed " + failedCalls.get() + ", delivered " + deliveredMessages.get());
+                nextProgress += 1000000000L;
+            }
+
+            long sleepNanos = Math.min(Math.min(nextSend, nextBroadcast), nextProgress) - System.nanoTime();
+            if(sleepNanos > 0)
+                Thread.sleep(Math.min(sleepNanos, PACER_TICK_NANOS) / 1000000, (int) (Math.min(sleepNanos, PACER_TICK_NANOS) % 1000000));
+        }
+    }
+
+    /**
+     * Waits up to {@code drainMillis} for outstanding calls to finish and then
+     * prints the latency percentiles and throughput of the run.
+     */
+    public void printReport(int durationSeconds, long drainMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + drainMillis;
+        while(System.currentTimeMillis() < deadline && pendingCallCount() > 0)
+            Thread.sleep(10);
+
+        report.println("- Codec " + codec.getContentType() + ", " + clients.length + " client(s), " + pendingCallCount()
+                + " call(s) still pending");
+        printHistogram("rpc round-trip", rpcLatency, durationSeconds);
+        printHistogram("delivery", deliveryLatency, durationSeconds);
+        report.println("- Failed calls: " + failedCalls.get());
+    }
+
+    public void close() throws Exception {
+        if(nicknames!=null) {
+            List<CompletableFuture<Response>> logouts = new ArrayList<CompletableFuture<Response>>();
+            for(int i=0; i<nicknames.length; i++)
+                logouts.add(clientOf(i).callAsync(request("LOGOUT", nicknames[i], null, null)));
+            try {
+                awaitAll("LOGOUT", logouts);
+            } catch (Exception e) {
+                report.println("- " + e.getMessage());
+            }
+        }
+        for(int i=0; i<clients.length; i++) {
+            clients[i].close();
+            inChannels[i].close();
+        }
+    }
+
+    private void issue(int session, String command, String channelName, final long scheduledNanos, String padding) {
+        Request request = request(command, nicknames[session], channelName, PAYLOAD_MARKER + scheduledNanos + ":" + padding);
+        clientOf(session).callAsync(request).whenComplete(new BiConsumer<Response, Throwable>() {
+            public void accept(Response response, Throwable error) {
+                if(error==null && response.isStatus()) {
+                    rpcLatency.record(System.nanoTime() - scheduledNanos);
+                    completedCalls.incrementAndGet();
+                } else {
+                    failedCalls.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void recordDelivery(String text) {
+        long receivedNanos = System.nanoTime();
+        int start = text.indexOf(PAYLOAD_MARKER);
+        if(start < 0) return;
+        start += PAYLOAD_MARKER.length();
+        int end = text.indexOf(':', start);
+        if(end < 0) return;
+
+        try {
+            deliveryLatency.record(receivedNanos - Long.parseLong(text.substring(start, end)));
+            deliveredMessages.incrementAndGet();
+        } catch (NumberFormatException ignore) {
+        }
+    }
+
+    private void printHistogram(String name, LatencyHistogram histogram, int durationSeconds) {
+        report.println(String.format("- %-15s count %d, %.0f/s, mean %.1f us, p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us",
+                name, histogram.getTotalCount(), (double) histogram.getTotalCount() / durationSeconds,
+                histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0));
+    }
+
+    private int pendingCallCount() {
+        int count = 0;
+        for(RpcClient client:clients)
+            count += client.getPendingCallCount();
+        return count;
+    }
+
+    private RpcClient clientOf(int session) {
+        return clients[session % clients.length];
+    }
+
+    private static void awaitAll(String command, List<CompletableFuture<Response>> calls) throws Exception {
+        int rejected = 0;
+        String reason = null;
+        for(CompletableFuture<Response> call:calls) {
+            Response response = call.get();
+            if(!response.isStatus()) {
+                rejected++;
+                reason = response.getMessage();
+            }
+        }
+        if(rejected > 0)
+            throw new IOException(rejected + " " + command + " request(s) rejected: " + reason);
+    }
+
+    private static Request request(String command, String nickname, String channelName, String message) {
+        Request request = new Request();
+        request.setCommand(command);
+        request.setNickname(nickname);
+        request.setChannelName(channelName);
+        request.setMessage(message);
+        return request;
+    }
+
+    private static double[] cumulativeWeights(int channelCount, double skew) {
+        double[] cumulative = new double[channelCount];
+        double sum = 0;
+        for(int i=0; i<channelCount; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for(int i=0; i<channelCount; i++)
+            cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulativeWeights, double r) {
+        int index = Arrays.binarySearch(cumulativeWeights, r);
+        if(index < 0) index = -index - 1;
+        return Math.min(index, cumulativeWeights.length - 1);
+    }
+
+    private static String padding(int messageBytes) {
+        char[] padding = new char[Math.max(0, messageBytes - PAYLOAD_MARKER.length() - 20)];
+        Arrays.fill(padding, 'x');
+        return new String(padding);
+    }
+
+    private static void startLocalServer(Transport transport, String shardId, List<String> shards,
+                                         int workerCount, int prefetchCount, long batchDelayMicros) {
+        RpcServer server = new RpcServer();
+        if(shardId!=null)
+            server.setShard(shardId, shards);
+        if(batchDelayMicros > 0) {
+            OutboundBatcher batcher = new OutboundBatcher(DELIVERY_BATCH_MESSAGES, DELIVERY_BATCH_BYTES, batchDelayMicros);
+            server.setMessageRouter(new DirectMessageRouter(MESSAGE_EXCHANGE_NAME, batcher));
+            server.setOutboundBatcher(batcher);
+        }
+        server.start(transport, workerCount, prefetchCount);
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("b", "broker", true, "RabbitMQ host of a running RpcServer (default " + DEFAULT_HOSTNAME + ")");
+        options.addOption("L", "local", false, "start an RpcServer on an in-process broker instead of using RabbitMQ");
+        options.addOption("w", "workers", true, "dispatch threads of the in-process server (default " + DEFAULT_WORKER_COUNT + ")");
+        options.addOption("p", "prefetch", true, "prefetch of the in-process server (default " + DEFAULT_PREFETCH_COUNT + ")");
+        options.addOption("u", "sessions", true, "number of simulated sessions (default " + DEFAULT_SESSION_COUNT + ")");
+        options.addOption("k", "channels", true, "number of channels (default " + DEFAULT_CHANNEL_COUNT + ")");
+        options.addOption("j", "joins", true, "channels joined by every session (default " + DEFAULT_JOINS_PER_SESSION + ")");
+        options.addOption("z", "skew", true, "channel popularity exponent; 0 is uniform (default " + DEFAULT_CHANNEL_SKEW + ")");
+        options.addOption("s", "send-rate", true, "SEND requests per second across all sessions (default " + DEFAULT_SEND_RATE + ")");
+        options.addOption("a", "broadcast-rate", true, "BROADCAST requests per second across all sessions (default " + DEFAULT_BROADCAST_RATE + ")");
+        options.addOption("d", "duration", true, "seconds to send for (default " + DEFAULT_DURATION_SECONDS + ")");
+        options.addOption("x", "clients", true, "RPC clients the sessions are spread over (default " + DEFAULT_CLIENT_COUNT + ")");
+        options.addOption("m", "message-bytes", true, "approximate size of a chat message (default " + DEFAULT_MESSAGE_BYTES + ")");
+        options.addOption("c", "codec", true, "wire codec: json or binary (default json)");
+        options.addOption("H", "local-shards", true, "number of in-process server shards (default 1, unsharded)");
+        options.addOption("G", "add-shard-at", true, "second of the run at which one more in-process shard joins");
+        options.addOption("S", "shards", true, "comma-separated shard ids of a running cluster");
+        options.addOption("B", "batch-delay", true, "milliseconds the in-process server batches deliveries per recipient (disabled by default)");
+        options.addOption("h", "help", false, "print this help");
+
+        boolean local;
+        int localShards, addShardAt;
+        List<String> shards;
+        String hostname;
+        int workerCount, prefetchCount, sessionCount, channelCount, joinsPerSession;
+        int sendRate, broadcastRate, durationSeconds, clientCount, messageBytes;
+        double skew;
+        long batchDelayMicros;
+        WireCodec codec;
+        try {
+            CommandLine cmd = new GnuParser().parse(options, args);
+            if(cmd.hasOption("h")) {
+                new HelpFormatter().printHelp("LoadGenerator", options);
+                return;
+            }
+            local = cmd.hasOption("L");
+            hostname = cmd.getOptionValue("b", DEFAULT_HOSTNAME);
+            workerCount = Integer.parseInt(cmd.getOptionValue("w", String.valueOf(DEFAULT_WORKER_COUNT)));
+            prefetchCount = Integer.parseInt(cmd.getOptionValue("p", String.valueOf(DEFAULT_PREFETCH_COUNT)));
+            sessionCount = Integer.parseInt(cmd.getOptionValue("u", String.valueOf(DEFAULT_SESSION_COUNT)));
+            channelCount = Integer.parseInt(cmd.getOptionValue("k", String.valueOf(DEFAULT_CHANNEL_COUNT)));
+            joinsPerSession = Integer.parseInt(cmd.getOptionValue("j", String.valueOf(DEFAULT_JOINS_PER_SESSION)));
+            skew = Double.parseDouble(cmd.getOptionValue("z", String.valueOf(DEFAULT_CHANNEL_SKEW)));
+            sendRate = Integer.parseInt(cmd.getOptionValue("s", String.valueOf(DEFAULT_SEND_RATE)));
+            broadcastRate = Integer.parseInt(cmd.getOptionValue("a", String.valueOf(DEFAULT_BROADCAST_RATE)));
+            durationSeconds = Integer.parseInt(cmd.getOptionValue("d", String.valueOf(DEFAULT_DURATION_SECONDS)));
+            clientCount = Integer.parseInt(cmd.getOptionValue("x", String.valueOf(DEFAULT_CLIENT_COUNT)));
+            messageBytes = Integer.parseInt(cmd.getOptionValue("m", String.valueOf(DEFAULT_MESSAGE_BYTES)));
+            codec = WireCodecs.forName(cmd.getOptionValue("c", "json"));
+            localShards = Integer.parseInt(cmd.getOptionValue("H", "1"));
+            addShardAt = Integer.parseInt(cmd.getOptionValue("G", "-1"));
+            batchDelayMicros = Math.round(Double.parseDouble(cmd.getOptionValue("B", "0")) * 1000);
+            shards = cmd.hasOption("S") ? Arrays.asList(cmd.getOptionValue("S").split(",")) : null;
+        } catch (ParseException e) {
+            System.err.println("- " + e.getMessage());
+            new HelpFormatter().printHelp("LoadGenerator", options);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("- Invalid option: " + e.getMessage());
+            return;
+        }
+        if(sessionCount < 1 || channelCount < 1 || clientCount < 1 || durationSeconds < 1) {
+            System.err.println("- Sessions, channels, clients and duration must be positive");
+            return;
+        }
+
+        if(addShardAt >= 0 && !local) {
+            System.err.println("- --add-shard-at needs --local");
+            return;
+        }
+
+        PrintStream report = System.out;
+        Transport transport = null;
+        LoadGenerator generator = null;
+        ScheduledExecutorService shardStarter = null;
+        try {
+            if(local) {
+                // The server logs every request; keep that out of the report.
+                System.setOut(new PrintStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                }));
+                transport = new LocalBroker();
+                if(localShards > 1 || addShardAt >= 0) {
+                    shards = new ArrayList<String>();
+                    for(int i=0; i<localShards; i++)
+                        shards.add("shard" + i);
+                    for(String shard:shards)
+                        startLocalServer(transport, shard, shards, workerCount, prefetchCount, batchDelayMicros);
+                    report.println("- Started " + localShards + " in-process shard(s) with " + workerCount
+                            + " worker(s) and prefetch " + prefetchCount + " each");
+                } else {
+                    startLocalServer(transport, null, null, workerCount, prefetchCount, batchDelayMicros);
+                    report.println("- Started in-process server with " + workerCount + " worker(s) and prefetch " + prefetchCount);
+                }
+            } else {
+                transport = new AmqpTransport(hostname);
+            }
+
+            generator = new LoadGenerator(transport, clientCount, codec, shards, report);
+            generator.connect("load" + Long.toString(System.currentTimeMillis() % 100000, 36) + "-",
+                    sessionCount, channelCount, joinsPerSession, skew, 42);
+            if(addShardAt >= 0) {
+                final Transport localTransport = transport;
+                final List<String> grown = new ArrayList<String>(shards);
+                final String newShard = "shard" + shards.size();
+                grown.add(newShard);
+                final int workers = workerCount;
+                final int prefetch = prefetchCount;
+                final long batchDelay = batchDelayMicros;
+                final PrintStream out = report;
+                shardStarter = Executors.newSingleThreadScheduledExecutor();
+                shardStarter.schedule(new Runnable() {
+                    public void run() {
+                        startLocalServer(localTransport, newShard, grown, workers, prefetch, batchDelay);
+                        out.println("- Shard " + newShard + " joined");
+                    }
+                }, addShardAt, TimeUnit.SECONDS);
+            }
+            generator.run(sendRate, broadcastRate, durationSeconds, messageBytes);
+            generator.printReport(durationSeconds, CALL_TIMEOUT_MILLIS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if(shardStarter!=null) shardStarter.shutdownNow();
+            try {
+                if(generator!=null) generator.close();
+                if(transport!=null) transport.close();
+            } catch (Exception ignore) {}
+        }
+        System.exit(0);
+    }
+}
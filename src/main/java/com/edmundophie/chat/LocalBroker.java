@@ -0,0 +1,401 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for RabbitMQ with the routing the chat relies on: the
+ * default exchange, direct and fanout exchanges, queue bindings, consumer
+ * prefetch with manual acks, and auto-delete and exclusive queues.
+ *
+ * Routing is built on concurrent maps and lock-free queues. Each queue hands its
+ * messages to its consumers from a shared pool of delivery threads, and at most
+ * one thread drains a given queue at a time, so deliveries from a queue arrive
+ * in order. Exclusive queues belong to the channel that declared them rather than
+ * to a connection, and unacknowledged messages are requeued when their channel
+ * closes. Nothing is persisted.
+ */
+public class LocalBroker implements Transport {
+    private static final int DRAIN_BATCH = 256;
+
+    private final ConcurrentMap<String, Exchange> exchanges = new ConcurrentHashMap<String, Exchange>();
+    private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<String, Queue>();
+    private final ExecutorService deliveryExecutor;
+    private final AtomicLong generatedNames = new AtomicLong();
+
+    public LocalBroker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public LocalBroker(int deliveryThreads) {
+        final AtomicInteger count = new AtomicInteger();
+        deliveryExecutor = Executors.newFixedThreadPool(deliveryThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "local-broker-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public TransportChannel openChannel() {
+        return new LocalChannel();
+    }
+
+    public void close() {
+        deliveryExecutor.shutdownNow();
+    }
+
+    /**
+     * Number of messages waiting in a queue, or -1 if it does not exist.
+     */
+    public int getQueueDepth(String queueName) {
+        Queue queue = queues.get(queueName);
+        return queue==null ? -1 : queue.depth.get();
+    }
+
+    private Queue queue(String name) throws IOException {
+        Queue queue = queues.get(name);
+        if(queue==null) throw new IOException("NOT_FOUND - no queue '" + name + "'");
+        return queue;
+    }
+
+    private Exchange exchange(String name) throws IOException {
+        Exchange exchange = exchanges.get(name);
+        if(exchange==null) throw new IOException("NOT_FOUND - no exchange '" + name + "'");
+        return exchange;
+    }
+
+    private void deleteQueue(Queue queue) {
+        if(!queues.remove(queue.name, queue)) return;
+        for(Binding binding:queue.bindings) {
+            Exchange exchange = exchanges.get(binding.exchange);
+            if(exchange!=null) exchange.unbind(binding.routingKey, queue);
+        }
+        for(Consumer consumer:queue.consumers)
+            consumer.channel.consumers.remove(consumer.tag);
+        queue.consumers.clear();
+        queue.messages.clear();
+        queue.depth.set(0);
+    }
+
+    private static final class Delivery {
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+
+        Delivery(AMQP.BasicProperties properties, byte[] body) {
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+
+    private static final class Binding {
+        final String exchange;
+        final String routingKey;
+
+        Binding(String exchange, String routingKey) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Binding && ((Binding) o).exchange.equals(exchange) && ((Binding) o).routingKey.equals(routingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return exchange.hashCode() * 31 + routingKey.hashCode();
+        }
+    }
+
+    private static final class Exchange {
+        final boolean fanout;
+        final ConcurrentMap<String, Set<Queue>> bindings = new ConcurrentHashMap<String, Set<Queue>>();
+
+        Exchange(String type) throws IOException {
+            if(!type.equals("direct") && !type.equals("fanout"))
+                throw new IOException("Unsupported exchange type " + type);
+            fanout = type.equals("fanout");
+        }
+
+        void bind(String routingKey, Queue queue) {
+            String key = fanout ? "" : routingKey;
+            Set<Queue> bound = bindings.get(key);
+            if(bound==null) {
+                Set<Queue> created = ConcurrentHashMap.newKeySet();
+                bound = bindings.putIfAbsent(key, created);
+                if(bound==null) bound = created;
+            }
+            bound.add(queue);
+        }
+
+        void unbind(String routingKey, Queue queue) {
+            Set<Queue> bound = bindings.get(fanout ? "" : routingKey);
+            if(bound!=null) bound.remove(queue);
+        }
+
+        void route(String routingKey, Delivery delivery) {
+            Set<Queue> bound = bindings.get(fanout ? "" : routingKey);
+            if(bound==null) return;
+            for(Queue queue:bound)
+                queue.enqueue(delivery);
+        }
+    }
+
+    private final class Queue implements Runnable {
+        final String name;
+        final boolean autoDelete;
+        final LocalChannel owner;
+        final ConcurrentLinkedQueue<Delivery> messages = new ConcurrentLinkedQueue<Delivery>();
+        final AtomicInteger depth = new AtomicInteger();
+        final CopyOnWriteArrayList<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+        final Set<Binding> bindings = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean draining = new AtomicBoolean();
+        private int nextConsumer;
+
+        Queue(String name, boolean autoDelete, LocalChannel owner) {
+            this.name = name;
+            this.autoDelete = autoDelete;
+            this.owner = owner;
+        }
+
+        void enqueue(Delivery delivery) {
+            messages.offer(delivery);
+            depth.incrementAndGet();
+            schedule();
+        }
+
+        void schedule() {
+            if(!messages.isEmpty() && !consumers.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    deliveryExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                for(int i=0; i<DRAIN_BATCH; i++) {
+                    Consumer consumer = nextReadyConsumer();
+                    if(consumer==null) break;
+                    Delivery delivery = messages.poll();
+                    if(delivery==null) break;
+                    depth.decrementAndGet();
+                    consumer.deliver(delivery);
+                }
+            } finally {
+                draining.set(false);
+            }
+            if(nextReadyConsumerExists()) schedule();
+        }
+
+        private Consumer nextReadyConsumer() {
+            int size = consumers.size();
+            for(int i=0; i<size; i++) {
+                Consumer consumer;
+                try {
+                    consumer = consumers.get((nextConsumer + i) % size);
+                } catch (IndexOutOfBoundsException e) {
+                    return null;
+                }
+                if(consumer.isReady()) {
+                    nextConsumer = (nextConsumer + i + 1) % size;
+                    return consumer;
+                }
+            }
+            return null;
+        }
+
+        private boolean nextReadyConsumerExists() {
+            for(Consumer consumer:consumers) {
+                if(consumer.isReady()) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Consumer {
+        final LocalChannel channel;
+        final Queue queue;
+        final String tag;
+        final boolean autoAck;
+        final int prefetch;
+        final DeliveryHandler handler;
+        final AtomicInteger unacked = new AtomicInteger();
+
+        Consumer(LocalChannel channel, Queue queue, String tag, boolean autoAck, int prefetch, DeliveryHandler handler) {
+            this.channel = channel;
+            this.queue = queue;
+            this.tag = tag;
+            this.autoAck = autoAck;
+            this.prefetch = prefetch;
+            this.handler = handler;
+        }
+
+        boolean isReady() {
+            return autoAck || prefetch==0 || unacked.get() < prefetch;
+        }
+
+        void deliver(Delivery delivery) {
+            long deliveryTag = channel.deliveryTags.incrementAndGet();
+            if(!autoAck) {
+                unacked.incrementAndGet();
+                channel.unacked.put(deliveryTag, new Unacked(this, delivery));
+            }
+            try {
+                handler.handleDelivery(deliveryTag, delivery.properties, delivery.body);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private static final class Unacked {
+        final Consumer consumer;
+        final Delivery delivery;
+
+        Unacked(Consumer consumer, Delivery delivery) {
+            this.consumer = consumer;
+            this.delivery = delivery;
+        }
+    }
+
+    private final class LocalChannel implements TransportChannel {
+        final ConcurrentMap<String, Consumer> consumers = new ConcurrentHashMap<String, Consumer>();
+        final Map<Long, Unacked> unacked = new ConcurrentHashMap<Long, Unacked>();
+        final AtomicLong deliveryTags = new AtomicLong();
+        private volatile int prefetch;
+        private volatile boolean open = true;
+
+        public void exchangeDeclare(String exchange, String type) throws IOException {
+            checkOpen();
+            Exchange declared = exchanges.get(exchange);
+            if(declared==null) {
+                Exchange created = new Exchange(type);
+                declared = exchanges.putIfAbsent(exchange, created);
+                if(declared==null) declared = created;
+            }
+            if(declared.fanout!=type.equals("fanout"))
+                throw new IOException("PRECONDITION_FAILED - exchange '" + exchange + "' has a different type");
+        }
+
+        public void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete) throws IOException {
+            checkOpen();
+            Queue created = new Queue(queue, autoDelete, exclusive ? this : null);
+            Queue declared = queues.putIfAbsent(queue, created);
+            if(declared!=null && declared.owner!=null && declared.owner!=this)
+                throw new IOException("RESOURCE_LOCKED - queue '" + queue + "' is exclusive to another channel");
+        }
+
+        public String queueDeclare() throws IOException {
+            String name = "amq.gen-local-" + generatedNames.incrementAndGet();
+            queueDeclare(name, false, true, true);
+            return name;
+        }
+
+        public void queueBind(String queue, String exchange, String routingKey) throws IOException {
+            checkOpen();
+            Queue bound = queue(queue);
+            exchange(exchange).bind(routingKey, bound);
+            bound.bindings.add(new Binding(exchange, routingKey));
+        }
+
+        public void queueUnbind(String queue, String exchange, String routingKey) throws IOException {
+            checkOpen();
+            Queue bound = queue(queue);
+            exchange(exchange).unbind(routingKey, bound);
+            bound.bindings.remove(new Binding(exchange, routingKey));
+        }
+
+        public void queueDelete(String queue) throws IOException {
+            checkOpen();
+            Queue deleted = queues.get(queue);
+            if(deleted!=null) deleteQueue(deleted);
+        }
+
+        public void queuePurge(String queue) throws IOException {
+            checkOpen();
+            Queue purged = queue(queue);
+            while(purged.messages.poll()!=null)
+                purged.depth.decrementAndGet();
+        }
+
+        public void basicQos(int prefetchCount) throws IOException {
+            checkOpen();
+            prefetch = prefetchCount;
+        }
+
+        public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            checkOpen();
+            Delivery delivery = new Delivery(properties==null ? new AMQP.BasicProperties() : properties, body);
+            if(exchange.isEmpty()) {
+                Queue queue = queues.get(routingKey);
+                if(queue!=null) queue.enqueue(delivery);
+            } else {
+                exchange(exchange).route(routingKey, delivery);
+            }
+        }
+
+        public String basicConsume(String queue, boolean autoAck, DeliveryHandler handler) throws IOException {
+            checkOpen();
+            Queue consumed = queue(queue);
+            String tag = "amq.ctag-local-" + generatedNames.incrementAndGet();
+            Consumer consumer = new Consumer(this, consumed, tag, autoAck, prefetch, handler);
+            consumers.put(tag, consumer);
+            consumed.consumers.add(consumer);
+            consumed.schedule();
+            return tag;
+        }
+
+        public void basicCancel(String consumerTag) throws IOException {
+            Consumer consumer = consumers.remove(consumerTag);
+            if(consumer==null) throw new IOException("Unknown consumer tag " + consumerTag);
+            cancel(consumer);
+        }
+
+        public void basicAck(long deliveryTag) throws IOException {
+            Unacked acked = unacked.remove(deliveryTag);
+            if(acked==null) throw new IOException("PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+            acked.consumer.unacked.decrementAndGet();
+            acked.consumer.queue.schedule();
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            if(!open) return;
+            open = false;
+            for(Consumer consumer:consumers.values())
+                cancel(consumer);
+            consumers.clear();
+            for(Unacked pending:unacked.values())
+                pending.consumer.queue.enqueue(pending.delivery);
+            unacked.clear();
+            for(Queue queue:queues.values()) {
+                if(queue.owner==this) deleteQueue(queue);
+            }
+        }
+
+        private void cancel(Consumer consumer) {
+            Queue queue = consumer.queue;
+            queue.consumers.remove(consumer);
+            if(queue.autoDelete && queue.consumers.isEmpty()) deleteQueue(queue);
+        }
+
+        private void checkOpen() throws IOException {
+            if(!open) throw new IOException("Channel is closed");
+        }
+    }
+}
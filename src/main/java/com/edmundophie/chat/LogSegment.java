@@ -0,0 +1,184 @@
+package com.edmundophie.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * One memory-mapped file of a {@link ChannelLog}. Records are laid out as
+ * <pre>
+ *   int length | long timestamp | short senderLength | sender | text
+ * </pre>
+ * where {@code length} covers everything after itself. The file is preallocated
+ * and zero filled, so a zero length marks the end of the written records.
+ *
+ * Every {@code indexInterval} bytes the segment remembers the position of a
+ * record together with the highest timestamp written before it, which lets
+ * readers skip straight to the neighbourhood of a timestamp.
+ */
+class LogSegment {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LENGTH_BYTES = 4;
+    private static final int HEADER_BYTES = 8 + 2;
+
+    private final File file;
+    private final long baseOffset;
+    private final int indexInterval;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long[] indexTimestamps = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexSize;
+    private int nextIndexPosition;
+
+    private LogSegment(File file, long baseOffset, int capacity, int indexInterval) throws IOException {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.indexInterval = indexInterval;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if(raf.length() < capacity) raf.setLength(capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    static LogSegment create(File dir, long baseOffset, int capacity, int indexInterval) throws IOException {
+        return new LogSegment(new File(dir, fileName(baseOffset)), baseOffset, capacity, indexInterval);
+    }
+
+    /**
+     * Maps an existing segment and rebuilds its write position and index.
+     */
+    static LogSegment open(File file, int indexInterval) throws IOException {
+        long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+        LogSegment segment = new LogSegment(file, baseOffset, 0, indexInterval);
+        ByteBuffer view = segment.buffer.duplicate();
+        int pos = 0;
+        while(pos + LENGTH_BYTES + HEADER_BYTES <= view.capacity()) {
+            int length = view.getInt(pos);
+            if(length < HEADER_BYTES || pos + LENGTH_BYTES + length > view.capacity()) break;
+            segment.indexRecord(pos, view.getLong(pos + LENGTH_BYTES));
+            pos += LENGTH_BYTES + length;
+        }
+        segment.position = pos;
+        return segment;
+    }
+
+    static String fileName(long baseOffset) {
+        return String.format("%020d.log", baseOffset);
+    }
+
+    static int recordSize(byte[] sender, byte[] text) {
+        return LENGTH_BYTES + HEADER_BYTES + sender.length + text.length;
+    }
+
+    /**
+     * Appends a record, or returns false if the segment has no room left for it.
+     */
+    boolean append(long timestamp, byte[] sender, byte[] text) {
+        int size = recordSize(sender, text);
+        if(position + size > buffer.capacity()) return false;
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + LENGTH_BYTES);
+        view.putLong(timestamp);
+        view.putShort((short) sender.length);
+        view.put(sender);
+        view.put(text);
+        // Length goes last so a half-written record is never seen as complete
+        buffer.putInt(position, size - LENGTH_BYTES);
+
+        indexRecord(position, timestamp);
+        position += size;
+        return true;
+    }
+
+    /**
+     * Position from which a scan for records newer than {@code timestamp} can start.
+     */
+    int positionFor(long timestamp) {
+        // Entries hold the highest timestamp written before their record, so they are
+        // sorted and everything before the last entry <= timestamp can be skipped
+        int low = 0;
+        int high = indexSize;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(indexTimestamps[mid] <= timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low==0 ? 0 : indexPositions[low - 1];
+    }
+
+    /**
+     * Reads the record at {@code pos} into {@code message} and returns the position
+     * of the next record.
+     */
+    int read(ByteBuffer view, int pos, Message message) {
+        int length = view.getInt(pos);
+        long timestamp = view.getLong(pos + LENGTH_BYTES);
+        int senderLength = view.getShort(pos + LENGTH_BYTES + 8) & 0xFFFF;
+        int textLength = length - HEADER_BYTES - senderLength;
+
+        byte[] bytes = new byte[senderLength + textLength];
+        ByteBuffer source = view.duplicate();
+        source.position(pos + LENGTH_BYTES + HEADER_BYTES);
+        source.get(bytes);
+
+        message.setTimestamp(timestamp);
+        message.setSender(new String(bytes, 0, senderLength, UTF_8));
+        message.setText(new String(bytes, senderLength, textLength, UTF_8));
+        return pos + LENGTH_BYTES + length;
+    }
+
+    ByteBuffer view() {
+        return buffer.duplicate();
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    long getNextOffset() {
+        return baseOffset + position;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    boolean isEmpty() {
+        return position==0;
+    }
+
+    void flush() {
+        buffer.force();
+    }
+
+    boolean delete() {
+        return file.delete();
+    }
+
+    private void indexRecord(int pos, long timestamp) {
+        if(pos >= nextIndexPosition) {
+            if(indexSize==indexPositions.length) {
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+            }
+            indexPositions[indexSize] = pos;
+            indexTimestamps[indexSize] = maxTimestamp;
+            indexSize++;
+            nextIndexPosition = pos + indexInterval;
+        }
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+}
@@ -0,0 +1,293 @@
+package com.edmundophie.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Two-way index of which users are members of which channels. Nicknames and
+ * channel names are interned to small int ids and each side keeps an
+ * {@link IntHashSet} of the other side's ids, so adding, removing and checking
+ * a membership is constant time and removing a user only touches the channels
+ * that user had joined.
+ *
+ * User ids are recycled once a user has left every channel; channel ids are
+ * kept for the lifetime of the index.
+ *
+ * Changes given a {@link StateJournal} are recorded there before the lock is
+ * released, so the journal holds them in the order they were applied even when
+ * a user's joins and logout run on different threads.
+ */
+public class MembershipIndex {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> channelIds = new ConcurrentHashMap<String, Integer>();
+    private String[] userNames = new String[64];
+    private String[] channelNames = new String[64];
+    private IntHashSet[] channelsByUser = new IntHashSet[64];
+    private IntHashSet[] membersByChannel = new IntHashSet[64];
+    private int[] freeUserIds = new int[16];
+    private int freeUserIdCount;
+    private int nextUserId;
+    private int nextChannelId;
+    private long membershipCount;
+
+    public boolean add(String nickname, String channelName) {
+        return add(nickname, channelName, null);
+    }
+
+    /**
+     * Adds the membership and, if it is new, journals the join.
+     */
+    public boolean add(String nickname, String channelName, StateJournal journal) {
+        return add(nickname, channelName, journal, null);
+    }
+
+    /**
+     * Adds and journals the membership only while the user is a key of
+     * {@code users}, checked under the lock. A user removed from it before
+     * {@link #removeUser} then cannot join a channel that removeUser misses.
+     */
+    public boolean add(String nickname, String channelName, StateJournal journal, Map<String, ?> users) {
+        lock.writeLock().lock();
+        try {
+            if(users!=null && !users.containsKey(nickname)) return false;
+            int userId = internUser(nickname);
+            int channelId = internChannel(channelName);
+            if(!channelsByUser[userId].add(channelId)) return false;
+            membersByChannel[channelId].add(userId);
+            membershipCount++;
+            if(journal!=null) journal.logJoin(nickname, channelName);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String nickname, String channelName) {
+        return remove(nickname, channelName, null);
+    }
+
+    /**
+     * Removes the membership and, if there was one, journals the leave.
+     */
+    public boolean remove(String nickname, String channelName, StateJournal journal) {
+        lock.writeLock().lock();
+        try {
+            Integer userId = userId(nickname);
+            Integer channelId = channelId(channelName);
+            if(userId==null || channelId==null || !channelsByUser[userId].remove(channelId)) return false;
+            membersByChannel[channelId].remove(userId);
+            membershipCount--;
+            releaseUserIfUnused(userId);
+            if(journal!=null) journal.logLeave(nickname, channelName);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the user from every joined channel and returns those channel names.
+     */
+    public List<String> removeUser(String nickname) {
+        return removeUser(nickname, null, false);
+    }
+
+    /**
+     * Removes the user from every joined channel and returns those channel
+     * names. The logout is journaled if the user was in a channel or, as told
+     * by {@code registered}, logged in.
+     */
+    public List<String> removeUser(String nickname, StateJournal journal, boolean registered) {
+        lock.writeLock().lock();
+        try {
+            Integer userId = userId(nickname);
+            if(userId==null) {
+                if(journal!=null && registered) journal.logLogout(nickname);
+                return Collections.emptyList();
+            }
+
+            int[] channels = channelsByUser[userId].toArray();
+            List<String> names = new ArrayList<String>(channels.length);
+            for(int channelId:channels) {
+                membersByChannel[channelId].remove(userId);
+                channelsByUser[userId].remove(channelId);
+                names.add(channelNames[channelId]);
+            }
+            membershipCount -= channels.length;
+            releaseUserIfUnused(userId);
+            if(journal!=null) journal.logLogout(nickname);
+            return names;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(String nickname, String channelName) {
+        lock.readLock().lock();
+        try {
+            Integer userId = userId(nickname);
+            Integer channelId = channelId(channelName);
+            return userId!=null && channelId!=null && channelsByUser[userId].contains(channelId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> channelsOf(String nickname) {
+        lock.readLock().lock();
+        try {
+            Integer userId = userId(nickname);
+            if(userId==null) return Collections.emptyList();
+            return names(channelsByUser[userId].toArray(), channelNames);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the channel members, safe to iterate while the
+     * membership keeps changing.
+     */
+    public List<String> membersOf(String channelName) {
+        lock.readLock().lock();
+        try {
+            Integer channelId = channelId(channelName);
+            if(channelId==null) return Collections.emptyList();
+            return names(membersByChannel[channelId].toArray(), userNames);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Groups the distinct members of the given channels by which of them they
+     * are in, each group keyed by the indexes of its channels in the list.
+     */
+    public Map<BitSet, List<String>> membersByChannelSet(List<String> channelNames) {
+        lock.readLock().lock();
+        try {
+            IntHashSet[] channels = new IntHashSet[channelNames.size()];
+            int memberships = 0;
+            for(int i=0; i<channels.length; i++) {
+                Integer channelId = channelId(channelNames.get(i));
+                channels[i] = channelId==null ? new IntHashSet() : membersByChannel[channelId];
+                memberships += channels[i].size();
+            }
+
+            Map<BitSet, List<String>> groups = new HashMap<BitSet, List<String>>();
+            IntHashSet seen = new IntHashSet(memberships);
+            BitSet shared = new BitSet(channels.length);
+            for(int i=0; i<channels.length; i++) {
+                for(int userId:channels[i].toArray()) {
+                    // A user in a single channel cannot be met twice
+                    int unmatched = channelsByUser[userId].size() - 1;
+                    if(unmatched > 0 && !seen.add(userId)) continue;
+                    // First seen in channel i, so the user is in none of the channels before it
+                    shared.clear();
+                    shared.set(i);
+                    // Stops once all the channels the user joined are accounted for
+                    for(int j=i + 1; j<channels.length && unmatched > 0; j++) {
+                        if(channels[j].contains(userId)) {
+                            shared.set(j);
+                            unmatched--;
+                        }
+                    }
+                    List<String> members = groups.get(shared);
+                    if(members==null) {
+                        members = new ArrayList<String>();
+                        groups.put((BitSet) shared.clone(), members);
+                    }
+                    members.add(userNames[userId]);
+                }
+            }
+            return groups;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int memberCount(String channelName) {
+        lock.readLock().lock();
+        try {
+            Integer channelId = channelId(channelName);
+            return channelId==null ? 0 : membersByChannel[channelId].size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return membershipCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The id maps take no null keys; a missing name is simply not a member
+    private Integer userId(String nickname) {
+        return nickname==null ? null : userIds.get(nickname);
+    }
+
+    private Integer channelId(String channelName) {
+        return channelName==null ? null : channelIds.get(channelName);
+    }
+
+    private int internUser(String nickname) {
+        Integer userId = userIds.get(nickname);
+        if(userId!=null) return userId;
+
+        int id = freeUserIdCount > 0 ? freeUserIds[--freeUserIdCount] : nextUserId++;
+        if(id >= userNames.length) {
+            userNames = Arrays.copyOf(userNames, userNames.length * 2);
+            channelsByUser = Arrays.copyOf(channelsByUser, channelsByUser.length * 2);
+        }
+        userNames[id] = nickname;
+        channelsByUser[id] = new IntHashSet();
+        userIds.put(nickname, id);
+        return id;
+    }
+
+    private int internChannel(String channelName) {
+        Integer channelId = channelIds.get(channelName);
+        if(channelId!=null) return channelId;
+
+        int id = nextChannelId++;
+        if(id >= channelNames.length) {
+            channelNames = Arrays.copyOf(channelNames, channelNames.length * 2);
+            membersByChannel = Arrays.copyOf(membersByChannel, membersByChannel.length * 2);
+        }
+        channelNames[id] = channelName;
+        membersByChannel[id] = new IntHashSet();
+        channelIds.put(channelName, id);
+        return id;
+    }
+
+    private void releaseUserIfUnused(int userId) {
+        if(!channelsByUser[userId].isEmpty()) return;
+
+        userIds.remove(userNames[userId]);
+        userNames[userId] = null;
+        channelsByUser[userId] = null;
+        if(freeUserIdCount==freeUserIds.length)
+            freeUserIds = Arrays.copyOf(freeUserIds, freeUserIds.length * 2);
+        freeUserIds[freeUserIdCount++] = userId;
+    }
+
+    private static List<String> names(int[] ids, String[] names) {
+        List<String> result = new ArrayList<String>(ids.length);
+        for(int id:ids)
+            result.add(names[id]);
+        return result;
+    }
+}
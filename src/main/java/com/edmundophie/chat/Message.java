@@ -7,6 +7,7 @@ public class Message implements Comparable<Message>{
     private String sender;
     private String text;
     private long timestamp;
+    private long sequence;
 
     public Message() {
     }
@@ -41,6 +42,14 @@ public class Message implements Comparable<Message>{
         this.timestamp = timestamp;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     public int compareTo(Message o) {
         return (this.timestamp<=o.getTimestamp())?-1:1;
     }
@@ -0,0 +1,131 @@
+package com.edmundophie.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed-capacity ring buffer with the most recent messages of one channel.
+ * Every stored message gets the next sequence number of the channel.
+ *
+ * All histories of a server share one {@link HistoryBudget}. When it is
+ * exceeded the oldest messages across all channels are evicted.
+ */
+public class MessageHistory {
+    private static final int MESSAGE_OVERHEAD_BYTES = 64;
+
+    private final Message[] ring;
+    private final HistoryBudget budget;
+    private int head;
+    private int size;
+    private long nextSequence = 1;
+
+    public MessageHistory(int capacity, HistoryBudget budget) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        this.ring = new Message[capacity];
+        this.budget = budget;
+    }
+
+    public Message append(String sender, String text, long timestamp) {
+        Message message = new Message();
+        message.setSender(sender);
+        message.setText(text);
+        message.setTimestamp(timestamp);
+        synchronized (this) {
+            message.setSequence(nextSequence++);
+            store(message);
+        }
+        budget.trim();
+        return message;
+    }
+
+    /**
+     * Appends a message taken over from another history and keeps its sequence
+     * number. Restored messages must come oldest first and before any message
+     * appended with {@link #append}.
+     */
+    public void restore(Message message) {
+        synchronized (this) {
+            store(message);
+            nextSequence = Math.max(nextSequence, message.getSequence() + 1);
+        }
+        budget.trim();
+    }
+
+    /**
+     * Returns up to {@code limit} messages, oldest first, that are older than both
+     * {@code beforeSequence} and {@code beforeTimestamp}. Pass {@code Long.MAX_VALUE}
+     * to leave a bound open.
+     */
+    public synchronized List<Message> page(long beforeSequence, long beforeTimestamp, int limit) {
+        if(size==0 || limit<=0) return Collections.emptyList();
+
+        long oldestSequence = nextSequence - size;
+        // Index one past the newest candidate, in logical (oldest = 0) order
+        int end = (int) Math.max(0, Math.min(size, beforeSequence - oldestSequence));
+        end = Math.min(end, firstAtOrAfter(beforeTimestamp, end));
+
+        int start = Math.max(0, end - limit);
+        List<Message> page = new ArrayList<Message>(end - start);
+        for(int i=start; i<end; i++)
+            page.add(ring[(head + i) % ring.length]);
+        return page;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public synchronized void clear() {
+        while(size > 0) evictOldest();
+    }
+
+    /**
+     * Evicts the message if it is the oldest one held; the budget evicts every
+     * history's messages in the order they were stored.
+     */
+    synchronized void evictIfOldest(Message message) {
+        if(size > 0 && ring[head]==message) evictOldest();
+    }
+
+    synchronized boolean holds(Message message) {
+        return size > 0 && message.getSequence() >= ring[head].getSequence() && message.getSequence() < nextSequence;
+    }
+
+    private void store(Message message) {
+        if(size==ring.length) evictOldest();
+        ring[(head + size) % ring.length] = message;
+        size++;
+        budget.stored(this, message, sizeOf(message));
+    }
+
+    private int firstAtOrAfter(long timestamp, int end) {
+        int low = 0;
+        int high = end;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(ring[(head + mid) % ring.length].getTimestamp() < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private void evictOldest() {
+        Message oldest = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+        budget.evicted(sizeOf(oldest));
+    }
+
+    private static long sizeOf(Message message) {
+        int chars = (message.getSender()==null ? 0 : message.getSender().length())
+                + (message.getText()==null ? 0 : message.getText().length());
+        return MESSAGE_OVERHEAD_BYTES + 2L * chars;
+    }
+}
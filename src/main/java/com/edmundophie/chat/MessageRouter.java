@@ -0,0 +1,42 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decides how a chat message published to a channel reaches the queues of the
+ * channel members.
+ */
+public interface MessageRouter {
+    /**
+     * Declares whatever the broker needs before messages can be published.
+     */
+    void declare(TransportChannel channel) throws IOException;
+
+    void memberJoined(TransportChannel channel, String channelName, String nickname) throws IOException;
+
+    void memberLeft(TransportChannel channel, String channelName, String nickname) throws IOException;
+
+    /**
+     * Publishes the same properties and body to every member; implementations
+     * must not modify either.
+     */
+    void publish(TransportChannel channel, String channelName, List<String> members,
+                 AMQP.BasicProperties properties, byte[] body) throws IOException;
+
+    /**
+     * Whether {@link #publish} costs one broker publish per member. A message
+     * for several channels then goes once to each distinct member through
+     * {@link #publishToMembers}; otherwise it is published once per channel.
+     */
+    boolean publishesPerMember();
+
+    /**
+     * Publishes one copy to each of the given members, whichever channels they
+     * are in, e.g. a broadcast that reaches them through several channels.
+     */
+    void publishToMembers(TransportChannel channel, List<String> members,
+                          AMQP.BasicProperties properties, byte[] body) throws IOException;
+}
@@ -0,0 +1,84 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+
+/**
+ * Counts the publishes and publish failures of a channel in {@link ServerMetrics}
+ * and passes everything else through.
+ */
+class MeteredTransportChannel implements TransportChannel {
+    private final TransportChannel channel;
+    private final ServerMetrics metrics;
+
+    MeteredTransportChannel(TransportChannel channel, ServerMetrics metrics) {
+        this.channel = channel;
+        this.metrics = metrics;
+    }
+
+    public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        try {
+            channel.basicPublish(exchange, routingKey, properties, body);
+        } catch (IOException e) {
+            metrics.recordPublishFailure();
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.recordPublishFailure();
+            throw e;
+        }
+        metrics.recordPublish(body.length);
+    }
+
+    public void exchangeDeclare(String exchange, String type) throws IOException {
+        channel.exchangeDeclare(exchange, type);
+    }
+
+    public void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete) throws IOException {
+        channel.queueDeclare(queue, durable, exclusive, autoDelete);
+    }
+
+    public String queueDeclare() throws IOException {
+        return channel.queueDeclare();
+    }
+
+    public void queueBind(String queue, String exchange, String routingKey) throws IOException {
+        channel.queueBind(queue, exchange, routingKey);
+    }
+
+    public void queueUnbind(String queue, String exchange, String routingKey) throws IOException {
+        channel.queueUnbind(queue, exchange, routingKey);
+    }
+
+    public void queueDelete(String queue) throws IOException {
+        channel.queueDelete(queue);
+    }
+
+    public void queuePurge(String queue) throws IOException {
+        channel.queuePurge(queue);
+    }
+
+    public void basicQos(int prefetchCount) throws IOException {
+        channel.basicQos(prefetchCount);
+    }
+
+    public String basicConsume(String queue, boolean autoAck, DeliveryHandler handler) throws IOException {
+        return channel.basicConsume(queue, autoAck, handler);
+    }
+
+    public void basicCancel(String consumerTag) throws IOException {
+        channel.basicCancel(consumerTag);
+    }
+
+    public void basicAck(long deliveryTag) throws IOException {
+        channel.basicAck(deliveryTag);
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.edmundophie.chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands out random nicknames of the form {@code <prefix><id>} from a fixed id
+ * space. Free ids are kept in a dense array together with each id's position in
+ * it, so allocating a random id, reserving a specific one and releasing one are
+ * all constant time, no matter how full the space is.
+ */
+public class NicknameAllocator {
+    private final String prefix;
+    private final int[] free;
+    private final int[] positions;
+    private int freeCount;
+
+    public NicknameAllocator(String prefix, int size) {
+        if(size < 1)
+            throw new IllegalArgumentException("Nickname space must be positive: " + size);
+        this.prefix = prefix;
+        free = new int[size];
+        positions = new int[size];
+        for(int i=0; i<size; i++) {
+            free[i] = i;
+            positions[i] = i;
+        }
+        freeCount = size;
+    }
+
+    /**
+     * Returns a free nickname, or null when every id of the space is taken.
+     */
+    public synchronized String allocate() {
+        if(freeCount==0) return null;
+        int id = free[ThreadLocalRandom.current().nextInt(freeCount)];
+        take(id);
+        return prefix + id;
+    }
+
+    /**
+     * Marks a nickname chosen by a user as taken, if it belongs to this space.
+     */
+    public synchronized void reserve(String nickname) {
+        int id = idOf(nickname);
+        if(id >= 0 && isFree(id)) take(id);
+    }
+
+    public synchronized void release(String nickname) {
+        int id = idOf(nickname);
+        if(id < 0 || isFree(id)) return;
+        free[freeCount] = id;
+        positions[id] = freeCount;
+        freeCount++;
+    }
+
+    public synchronized int getFreeCount() {
+        return freeCount;
+    }
+
+    public int size() {
+        return free.length;
+    }
+
+    /**
+     * Returns the id of a nickname in this space, or -1 if it is outside of it.
+     * Only the canonical spelling counts, so "user007" is not the same as "user7".
+     */
+    int idOf(String nickname) {
+        if(nickname==null || !nickname.startsWith(prefix)) return -1;
+        int length = nickname.length() - prefix.length();
+        if(length < 1 || length > 10 || (length > 1 && nickname.charAt(prefix.length())=='0')) return -1;
+
+        long id = 0;
+        for(int i=prefix.length(); i<nickname.length(); i++) {
+            char c = nickname.charAt(i);
+            if(c < '0' || c > '9') return -1;
+            id = id * 10 + (c - '0');
+        }
+        return id < free.length ? (int) id : -1;
+    }
+
+    private boolean isFree(int id) {
+        int position = positions[id];
+        return position < freeCount && free[position]==id;
+    }
+
+    private void take(int id) {
+        int position = positions[id];
+        int last = free[freeCount - 1];
+        free[position] = last;
+        positions[last] = position;
+        free[freeCount - 1] = id;
+        positions[id] = freeCount - 1;
+        freeCount--;
+    }
+}
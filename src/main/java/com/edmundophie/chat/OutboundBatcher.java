@@ -0,0 +1,328 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the chat messages published to one destination (exchange and
+ * routing key) for a short time and publishes them as one framed delivery.
+ * A batch is closed when it holds the maximum number of messages or bytes, or
+ * when its time window since the first message has passed. Every closed batch
+ * is published by the flusher thread on its one channel, so the batches of a
+ * destination reach the broker in the order they were closed; the broker only
+ * keeps the order of messages published on the same channel.
+ *
+ * A batch of one message is published as a plain delivery with its own
+ * properties; the messages of a larger batch must not depend on their
+ * properties. A compressed message does, so it closes the pending batch of its
+ * destination and goes out on its own right after it.
+ *
+ * A batch delivery has the type {@link #BATCH_TYPE}; its body is the message
+ * count followed by the length and bytes of every message, see {@link #unpack}.
+ * With {@link #setCompression} the body is compressed when large enough.
+ */
+public class OutboundBatcher {
+    public static final String BATCH_TYPE = "delivery_batch";
+
+    private static final AMQP.BasicProperties BATCH_PROPERTIES = new AMQP.BasicProperties
+            .Builder()
+            .type(BATCH_TYPE)
+            .build();
+    private static final AMQP.BasicProperties COMPRESSED_BATCH_PROPERTIES = Compression.encoded(BATCH_PROPERTIES);
+
+    // What the flusher is waiting for, so that producers only wake it when needed
+    private static final int FLUSHER_BUSY = 0;
+    private static final int FLUSHER_WAITING_FOR_DEADLINE = 1;
+    private static final int FLUSHER_IDLE = 2;
+
+    private static class PendingBatch {
+        private final String key;
+        private final String exchangeName;
+        private final String routingKey;
+        private final AMQP.BasicProperties properties;
+        private final long deadlineNanos;
+        private final List<byte[]> bodies = new ArrayList<byte[]>();
+        private int bytes;
+        private boolean closed;
+
+        PendingBatch(String key, String exchangeName, String routingKey, AMQP.BasicProperties properties, long deadlineNanos) {
+            this.key = key;
+            this.exchangeName = exchangeName;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxDelayNanos;
+    private final ConcurrentMap<String, PendingBatch> pending = new ConcurrentHashMap<String, PendingBatch>();
+    // Every batch has the same window, so batches expire in the order they were opened
+    private final ConcurrentLinkedQueue<PendingBatch> deadlines = new ConcurrentLinkedQueue<PendingBatch>();
+    // Batches closed before their deadline, in the order they were closed
+    private final ConcurrentLinkedQueue<PendingBatch> closed = new ConcurrentLinkedQueue<PendingBatch>();
+    private ServerMetrics metrics;
+    private Compression compression;
+    private TransportChannel flushChannel;
+    private Thread flusher;
+    private volatile int flusherState = FLUSHER_BUSY;
+    private volatile boolean running;
+
+    public OutboundBatcher(int maxMessages, int maxBytes, long maxDelayMicros) {
+        if(maxMessages < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + maxMessages);
+        if(maxBytes < 1)
+            throw new IllegalArgumentException("Batch bytes must be positive: " + maxBytes);
+        if(maxDelayMicros < 1)
+            throw new IllegalArgumentException("Batch delay must be positive: " + maxDelayMicros);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = maxDelayMicros * 1000;
+    }
+
+    /**
+     * Compresses the bodies of large batches. Set before {@link #start}.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Starts the flusher, which publishes every batch on the given channel.
+     * Batch sizes are recorded in {@code metrics} when it is not null.
+     */
+    public synchronized void start(TransportChannel flushChannel, ServerMetrics metrics) {
+        if(running) return;
+        this.flushChannel = flushChannel;
+        this.metrics = metrics;
+        running = true;
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "outbound-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Adds a message to the batch of its destination. Before {@link #start} and
+     * after {@link #close} the message is published on {@code channel} at once.
+     */
+    public void publish(TransportChannel channel, String exchangeName, String routingKey,
+                        AMQP.BasicProperties properties, byte[] body) throws IOException {
+        if(!running) {
+            channel.basicPublish(exchangeName, routingKey, properties, body);
+            return;
+        }
+
+        String key = exchangeName + " " + routingKey;
+        if(properties.getContentEncoding()!=null) {
+            PendingBatch single = new PendingBatch(key, exchangeName, routingKey, properties, 0);
+            single.bodies.add(body);
+            single.closed = true;
+            PendingBatch batch = pending.get(key);
+            if(batch!=null) {
+                // Under the lock of the pending batch, so that it goes out right before this message
+                synchronized (batch) {
+                    if(!batch.closed) closeEarly(batch);
+                    closed.add(single);
+                }
+            } else {
+                closed.add(single);
+            }
+            wakeFlusher(FLUSHER_WAITING_FOR_DEADLINE);
+            return;
+        }
+
+        while(true) {
+            PendingBatch batch = pending.get(key);
+            boolean opened = false;
+            if(batch==null) {
+                batch = new PendingBatch(key, exchangeName, routingKey, properties, System.nanoTime() + maxDelayNanos);
+                PendingBatch existing = pending.putIfAbsent(key, batch);
+                if(existing!=null) {
+                    batch = existing;
+                } else {
+                    deadlines.add(batch);
+                    opened = true;
+                }
+            }
+
+            boolean full;
+            synchronized (batch) {
+                // Lost the race against the closing of this batch, so open the next one
+                if(batch.closed) continue;
+                batch.bodies.add(body);
+                batch.bytes += body.length;
+                full = batch.bodies.size() >= maxMessages || batch.bytes >= maxBytes;
+                if(full) closeEarly(batch);
+            }
+            if(full)
+                wakeFlusher(FLUSHER_WAITING_FOR_DEADLINE);
+            else if(opened)
+                wakeFlusher(FLUSHER_IDLE);
+            return;
+        }
+    }
+
+    /**
+     * Publishes every pending batch and stops the flusher.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if(!running) return;
+            running = false;
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingBatch batch;
+        while((batch = closed.poll())!=null)
+            publish(flushChannel, batch);
+        while((batch = deadlines.poll())!=null) {
+            synchronized (batch) {
+                if(batch.closed) continue;
+                closeExpired(batch);
+            }
+            publish(flushChannel, batch);
+        }
+    }
+
+    /**
+     * Splits a delivery into its messages; a delivery that is not a batch is
+     * returned as its only message.
+     */
+    public static List<byte[]> unpack(AMQP.BasicProperties properties, byte[] body) throws IOException {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        if(properties==null || !BATCH_TYPE.equals(properties.getType())) {
+            messages.add(body);
+            return messages;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(body);
+        if(in.remaining() < 4)
+            throw new IOException("Truncated delivery batch");
+        int count = in.getInt();
+        for(int i=0; i<count; i++) {
+            if(in.remaining() < 4)
+                throw new IOException("Truncated delivery batch");
+            int length = in.getInt();
+            if(length < 0 || length > in.remaining())
+                throw new IOException("Message length " + length + " exceeds delivery batch");
+            byte[] message = new byte[length];
+            in.get(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Closes a batch before its deadline and queues it for the flusher. Called
+     * while holding its lock, so that a message added for the same destination
+     * meanwhile waits and goes into the next batch, which is therefore closed
+     * and published after this one. The batch is queued before the next one
+     * can open, which {@link #flushLoop} relies on.
+     */
+    private void closeEarly(PendingBatch batch) {
+        batch.closed = true;
+        closed.add(batch);
+        pending.remove(batch.key, batch);
+    }
+
+    /**
+     * Closes a batch whose deadline passed; the caller publishes it.
+     */
+    private void closeExpired(PendingBatch batch) {
+        batch.closed = true;
+        pending.remove(batch.key, batch);
+    }
+
+    /**
+     * Publishes a closed batch. Only called by the flusher, or after it stopped.
+     */
+    private void publish(TransportChannel channel, PendingBatch batch) throws IOException {
+        if(metrics!=null) metrics.recordDeliveryBatch(batch.bodies.size());
+
+        if(batch.bodies.size()==1) {
+            channel.basicPublish(batch.exchangeName, batch.routingKey, batch.properties, batch.bodies.get(0));
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(4 + 4 * batch.bodies.size() + batch.bytes);
+        out.putInt(batch.bodies.size());
+        for(byte[] body:batch.bodies) {
+            out.putInt(body.length);
+            out.put(body);
+        }
+        byte[] compressed = compression==null ? null : compression.compress(out.array());
+        if(compressed!=null)
+            channel.basicPublish(batch.exchangeName, batch.routingKey, COMPRESSED_BATCH_PROPERTIES, compressed);
+        else
+            channel.basicPublish(batch.exchangeName, batch.routingKey, BATCH_PROPERTIES, out.array());
+    }
+
+    /**
+     * Wakes the flusher if it waits for no more than {@code state}: a closed
+     * batch must be published whether it waits for a deadline or for work, a
+     * newly opened batch only matters to an idle flusher.
+     */
+    private void wakeFlusher(int state) {
+        if(flusherState >= state) LockSupport.unpark(flusher);
+    }
+
+    private void flushLoop() {
+        while(running) {
+            // Peeked first: a batch of the same destination closed before this one
+            // opened is in the closed queue by now, and goes out first
+            PendingBatch expiring = deadlines.peek();
+            PendingBatch batch = closed.poll();
+            if(batch!=null) {
+                publishFromFlusher(batch);
+                continue;
+            }
+
+            if(expiring==null) {
+                // Announce the wait before checking again, so a producer either sees it or is seen
+                flusherState = FLUSHER_IDLE;
+                if(closed.isEmpty() && deadlines.isEmpty() && running) LockSupport.park(this);
+                flusherState = FLUSHER_BUSY;
+                continue;
+            }
+            long now = System.nanoTime();
+            if(expiring.deadlineNanos - now > 0) {
+                flusherState = FLUSHER_WAITING_FOR_DEADLINE;
+                if(closed.isEmpty() && running) LockSupport.parkNanos(this, expiring.deadlineNanos - now);
+                flusherState = FLUSHER_BUSY;
+                continue;
+            }
+
+            deadlines.poll();
+            synchronized (expiring) {
+                // Closed early, then it was in the closed queue
+                if(expiring.closed) continue;
+                closeExpired(expiring);
+            }
+            publishFromFlusher(expiring);
+        }
+    }
+
+    private void publishFromFlusher(PendingBatch batch) {
+        try {
+            publish(flushChannel, batch);
+        } catch (IOException e) {
+            System.err.println("- Failed to publish a delivery batch to " + batch.routingKey + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.edmundophie.chat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets keyed by name, e.g. one per nickname or per channel. Every
+ * bucket refills at the same rate up to the same burst and starts full. A
+ * bucket is only touched by the key it belongs to, so checking one costs a map
+ * lookup and a few arithmetic operations.
+ *
+ * A bucket that has refilled is no different from a new one, so
+ * {@link #expireIdle} drops those, keeping the map to the keys that sent
+ * recently. Buckets are never dropped earlier, e.g. on logout, since logging
+ * in again would then refill the burst.
+ */
+public class RateLimiter {
+    private static class Bucket {
+        private double tokens;
+        private long updatedNanos;
+        // Set once expired, so that a caller still holding the bucket looks up its successor
+        private boolean expired;
+
+        Bucket(double tokens, long updatedNanos) {
+            this.tokens = tokens;
+            this.updatedNanos = updatedNanos;
+        }
+    }
+
+    private final double tokensPerNano;
+    private final int burst;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public RateLimiter(double ratePerSecond, int burst) {
+        if(ratePerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive: " + ratePerSecond);
+        if(burst < 1)
+            throw new IllegalArgumentException("Burst must be positive: " + burst);
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Takes {@code permits} tokens from the bucket of {@code key}, or none when
+     * it holds fewer. More permits than the burst are capped to it, so that a
+     * request never becomes impossible.
+     */
+    public boolean tryAcquire(String key, int permits) {
+        double needed = Math.min(permits, burst);
+        while(true) {
+            long now = System.nanoTime();
+            Bucket bucket = buckets.get(key);
+            if(bucket==null) {
+                bucket = new Bucket(burst, now);
+                Bucket existing = buckets.putIfAbsent(key, bucket);
+                if(existing!=null) bucket = existing;
+            }
+
+            synchronized (bucket) {
+                if(bucket.expired) continue;
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updatedNanos) * tokensPerNano);
+                bucket.updatedNanos = now;
+                if(bucket.tokens < needed) {
+                    rejectedCount.incrementAndGet();
+                    return false;
+                }
+                bucket.tokens -= needed;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back tokens taken for a request that was rejected for another reason.
+     */
+    public void release(String key, int permits) {
+        Bucket bucket = buckets.get(key);
+        if(bucket==null) return;
+        synchronized (bucket) {
+            bucket.tokens = Math.min(burst, bucket.tokens + Math.min(permits, burst));
+        }
+    }
+
+    /**
+     * Drops the buckets that have refilled since they were last used and
+     * returns how many.
+     */
+    public int expireIdle() {
+        long now = System.nanoTime();
+        int expired = 0;
+        for(Map.Entry<String, Bucket> entry:buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            synchronized (bucket) {
+                if(bucket.tokens + (now - bucket.updatedNanos) * tokensPerNano < burst) continue;
+                bucket.expired = true;
+            }
+            buckets.remove(entry.getKey(), bucket);
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of keys that currently have a bucket.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Returns the number of rejected acquisitions so far.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -1,7 +1,8 @@
 package com.edmundophie.chat;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
 
 /**
  * Created by edmundophie on 10/9/15.
@@ -11,6 +12,14 @@ public class Request {
     private String nickname;
     private String channelName;
     private String message;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long before;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long beforeTimestamp;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer limit;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<Request> requests;
 
     public Request() {
 
@@ -48,14 +57,43 @@ public class Request {
         this.message = message;
     }
 
+    public Long getBefore() {
+        return before;
+    }
+
+    public void setBefore(Long before) {
+        this.before = before;
+    }
+
+    public Long getBeforeTimestamp() {
+        return beforeTimestamp;
+    }
+
+    public void setBeforeTimestamp(Long beforeTimestamp) {
+        this.beforeTimestamp = beforeTimestamp;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the requests of a BATCH, which the server runs in order and
+     * answers with one response each.
+     */
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<Request> requests) {
+        this.requests = requests;
+    }
+
     public String toString() {
-        String json = null;
-        try{
-            json = new ObjectMapper().writeValueAsString(this);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-        }
-
-        return json;
+        return JsonWireCodec.toJson(this);
     }
 }
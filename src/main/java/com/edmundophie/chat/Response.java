@@ -1,7 +1,8 @@
 package com.edmundophie.chat;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
 
 /**
  * Created by edmundophie on 10/9/15.
@@ -10,6 +11,10 @@ public class Response {
     private String status;
     private String message;
     private String nickname;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<Message> messages;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<Response> responses;
 
     public Response () {
 
@@ -32,6 +37,26 @@ public class Response {
         this.message = message;
     }
 
+    /**
+     * Builds the response to a BATCH. It succeeds when all of the given responses
+     * did and its message repeats the messages of those that failed.
+     */
+    public static Response ofBatch(String nickname, List<Response> responses) {
+        boolean status = true;
+        StringBuilder message = new StringBuilder();
+        for(Response response:responses) {
+            if(response.isStatus()) continue;
+            status = false;
+            if(response.getMessage()!=null && !response.getMessage().isEmpty()) {
+                if(message.length() > 0) message.append("\n");
+                message.append(response.getMessage());
+            }
+        }
+        Response batch = new Response(status, message.toString(), nickname);
+        batch.setResponses(responses);
+        return batch;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -63,14 +88,26 @@ public class Response {
         this.nickname = nickname;
     }
 
-    public String toString() {
-        String json = null;
-        try{
-            json = new ObjectMapper().writeValueAsString(this);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-        }
+    public List<Message> getMessages() {
+        return messages;
+    }
 
-        return json;
+    public void setMessages(List<Message> messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Returns the responses to the requests of a BATCH, in request order.
+     */
+    public List<Response> getResponses() {
+        return responses;
+    }
+
+    public void setResponses(List<Response> responses) {
+        this.responses = responses;
+    }
+
+    public String toString() {
+        return JsonWireCodec.toJson(this);
     }
 }
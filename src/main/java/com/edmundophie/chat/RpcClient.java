@@ -1,99 +1,559 @@
 package com.edmundophie.chat;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.rabbitmq.client.*;
-import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.AMQP;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Created by edmundophie on 10/9/15.
  */
 public class RpcClient {
-    private static final String HOSTNAME = "localhost";
+    private static final String DEFAULT_HOSTNAME = "localhost";
     private static final String ENCODING = "UTF-8";
     private static final String MESSAGE_EXCHANGE_NAME = "messages";
-
-    private Connection connection;
-    private Channel channel;
-    private Channel messageInChannel;
-    private String requestQueueName = "rpc_queue";
+    private static final long DEFAULT_CALL_TIMEOUT_MILLIS = 30000;
+    private static final String INGEST_ERROR_TYPE = "ingest_error";
+    private static final int DEFAULT_DELIVERY_PREFETCH = 100;
+    private static final int DEFAULT_RENDER_QUEUE_CAPACITY = 1000;
+    private static final String DEFAULT_FLOOD_POLICY = DeliveryPipeline.COALESCE;
+    private static final long DEFAULT_HEARTBEAT_SECONDS = 10;
+
+    private final Transport transport;
+    private final boolean ownsTransport;
+    private TransportChannel channel;
+    // Requests are published round-robin on these; the first one is channel
+    private final TransportChannel[] requestChannels;
+    private final AtomicInteger nextRequestChannel = new AtomicInteger();
+    private TransportChannel messageInChannel;
+    private String requestQueueName = ClusterProtocol.rpcQueue(null);
     private String replyQueueName;
-    private QueueingConsumer consumer;
-    private Consumer messageInConsumer;
-
-    private ObjectMapper mapper;
-    private boolean isLoggedIn;
-    private String nickname;
+    // Null unless requests are routed to the shards of a cluster
+    private volatile ConsistentHashRing shardRing;
+    private String clusterQueueName;
+    private DeliveryPipeline deliveryPipeline;
+    private final ConcurrentMap<String, PendingCall> pendingCalls;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final long callTimeoutMillis;
+
+    private final WireCodec codec;
+    // Null unless requests above a threshold are compressed
+    private volatile Compression compression;
+    private volatile boolean isLoggedIn;
+    private boolean oneWay;
+    private volatile String nickname;
+    private ScheduledFuture<?> heartbeat;
 
     public RpcClient() throws Exception {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(HOSTNAME);
-        factory.setConnectionTimeout(0);
-        Connection connection = factory.newConnection();
-        channel = connection.createChannel();
+        this(new AmqpTransport(DEFAULT_HOSTNAME), true, DEFAULT_CALL_TIMEOUT_MILLIS, WireCodecs.JSON, 1);
+    }
 
-        replyQueueName = channel.queueDeclare().getQueue();
-        consumer = new QueueingConsumer(channel);
-        channel.basicConsume(replyQueueName, true, consumer);
+    /**
+     * Creates a client on a transport owned by the caller, which stays open when
+     * the client is closed.
+     */
+    public RpcClient(Transport transport, long callTimeoutMillis, WireCodec codec) throws Exception {
+        this(transport, false, callTimeoutMillis, codec, 1);
+    }
 
-        messageInChannel = connection.createChannel();
-        messageInChannel.exchangeDeclare(MESSAGE_EXCHANGE_NAME, "direct");
+    /**
+     * Creates a client that publishes its requests on a pool of
+     * {@code requestChannelCount} channels, for callers that send from many
+     * threads at once such as a {@link ChatGateway}.
+     */
+    public RpcClient(Transport transport, long callTimeoutMillis, WireCodec codec, int requestChannelCount) throws Exception {
+        this(transport, false, callTimeoutMillis, codec, requestChannelCount);
+    }
 
-        messageInConsumer = new DefaultConsumer(messageInChannel) {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope,
-                                       AMQP.BasicProperties properties, byte[] body) throws IOException {
-                String message = new String(body, "UTF-8");
-                System.out.println(message);
+    private RpcClient(Transport transport, boolean ownsTransport, long callTimeoutMillis, WireCodec codec,
+                      int requestChannelCount) throws Exception {
+        if(requestChannelCount < 1)
+            throw new IllegalArgumentException("Request channel count must be positive: " + requestChannelCount);
+        this.transport = transport;
+        this.ownsTransport = ownsTransport;
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.codec = codec;
+        pendingCalls = new ConcurrentHashMap<String, PendingCall>();
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rpc-call-timeout");
+                thread.setDaemon(true);
+                return thread;
             }
-        };
+        });
+
+        channel = transport.openChannel();
+        requestChannels = new TransportChannel[requestChannelCount];
+        requestChannels[0] = channel;
+        for(int i=1; i<requestChannelCount; i++)
+            requestChannels[i] = transport.openChannel();
+
+        replyQueueName = channel.queueDeclare();
+        channel.basicConsume(replyQueueName, true, new DeliveryHandler() {
+            public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                if(INGEST_ERROR_TYPE.equals(properties.getType()))
+                    System.err.println(WireCodecs.forContentType(properties.getContentType())
+                            .decodeResponse(Compression.decompress(properties, body)).getMessage());
+                else
+                    completeCall(properties, body);
+            }
+        });
+
+        messageInChannel = transport.openChannel();
+        messageInChannel.exchangeDeclare(MESSAGE_EXCHANGE_NAME, "direct");
+
+        setDeliveryOptions(DEFAULT_DELIVERY_PREFETCH, DEFAULT_RENDER_QUEUE_CAPACITY, DEFAULT_FLOOD_POLICY);
 
-        mapper = new ObjectMapper();
         isLoggedIn = false;
         nickname = "";
     }
 
-    public String call(String message) throws Exception {
-        String response = null;
-        String corrId = UUID.randomUUID().toString();
+    /**
+     * Publishes a request without waiting for its reply. Any number of calls may be
+     * in flight; replies are matched by correlation id and calls that get no reply
+     * within the call timeout complete exceptionally with a {@link TimeoutException}.
+     */
+    public CompletableFuture<Response> callAsync(Request request) {
+        ConsistentHashRing ring = shardRing;
+        if(ring==null)
+            return callAsync(request, requestQueueName);
+
+        String command = request.getCommand();
+        if(ClusterProtocol.isUserWideCommand(command))
+            return callShards(request, ring.getNodes());
+        if(command!=null && command.equalsIgnoreCase("NICK"))
+            return loginOnShards(request, ring);
+        if(command!=null && command.equalsIgnoreCase("BATCH"))
+            return batchOnShards(request, ring);
+        return callAsync(request, ClusterProtocol.rpcQueue(shardOf(request, ring)));
+    }
+
+    private CompletableFuture<Response> callAsync(Request request, String queueName) {
+        final String corrId = UUID.randomUUID().toString();
+        final PendingCall pendingCall = new PendingCall();
+        pendingCalls.put(corrId, pendingCall);
 
+        pendingCall.timeout = timeoutScheduler.schedule(new Runnable() {
+            public void run() {
+                PendingCall expired = pendingCalls.remove(corrId);
+                if(expired!=null)
+                    expired.future.completeExceptionally(new TimeoutException("No reply to " + corrId + " within " + callTimeoutMillis + " ms"));
+            }
+        }, callTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            byte[] body = codec.encodeRequest(request);
+            byte[] compressed = compress(body);
+            AMQP.BasicProperties props = new AMQP.BasicProperties
+                    .Builder()
+                    .correlationId(corrId)
+                    .replyTo(replyQueueName)
+                    .contentType(codec.getContentType())
+                    .contentEncoding(compressed==null ? null : Compression.DEFLATE)
+                    .build();
+            if(compressed!=null) body = compressed;
+            TransportChannel requestChannel = requestChannels[(nextRequestChannel.getAndIncrement() & Integer.MAX_VALUE) % requestChannels.length];
+            synchronized (requestChannel) {
+                requestChannel.basicPublish("", queueName, props, body);
+            }
+        } catch (IOException e) {
+            pendingCalls.remove(corrId);
+            pendingCall.timeout.cancel(false);
+            pendingCall.future.completeExceptionally(e);
+        }
+
+        return pendingCall.future;
+    }
+
+    /**
+     * Routes requests to the shards of a cluster instead of the single server
+     * queue. Channel commands go to the shard owning the channel, a login to the
+     * shard owning the nickname, and LOGOUT, EXIT and BROADCAST to every shard
+     * with their replies merged. Shards announced later are added to the ring.
+     */
+    public void setShards(Collection<String> shardIds) throws IOException {
+        shardRing = new ConsistentHashRing(shardIds);
+        if(clusterQueueName!=null) return;
+
+        synchronized (channel) {
+            channel.exchangeDeclare(ClusterProtocol.CLUSTER_EXCHANGE_NAME, "fanout");
+            clusterQueueName = channel.queueDeclare();
+            channel.queueBind(clusterQueueName, ClusterProtocol.CLUSTER_EXCHANGE_NAME, "");
+            channel.basicConsume(clusterQueueName, true, new DeliveryHandler() {
+                public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) {
+                    if(ClusterProtocol.SHARD_JOIN_TYPE.equals(properties.getType()))
+                        shardRing = shardRing.withNode(new String(body, StandardCharsets.UTF_8));
+                }
+            });
+        }
+    }
+
+    private static String shardOf(Request request, ConsistentHashRing ring) {
+        if(ClusterProtocol.isChannelCommand(request.getCommand()))
+            return ring.ownerOf(request.getChannelName());
+
+        String nickname = request.getNickname();
+        if(nickname==null || nickname.isEmpty()) {
+            List<String> shards = ring.getNodes();
+            return shards.get(ThreadLocalRandom.current().nextInt(shards.size()));
+        }
+        return ring.ownerOf(nickname);
+    }
+
+    /**
+     * Logs in on the shard owning the nickname, then has the other shards replay
+     * what their channels logged while the user was away.
+     */
+    private CompletableFuture<Response> loginOnShards(final Request request, final ConsistentHashRing ring) {
+        final String home = shardOf(request, ring);
+        return callAsync(request, ClusterProtocol.rpcQueue(home)).thenCompose(new Function<Response, CompletionStage<Response>>() {
+            public CompletionStage<Response> apply(final Response login) {
+                if(!login.isStatus() || !login.getNickname().equals(request.getNickname()) || ring.getNodes().size()==1)
+                    return CompletableFuture.completedFuture(login);
+
+                Request replay = new Request();
+                replay.setCommand("REPLAY");
+                replay.setNickname(login.getNickname());
+                List<String> others = new ArrayList<String>(ring.getNodes());
+                others.remove(home);
+                return callShards(replay, others).thenApply(new Function<Response, Response>() {
+                    public Response apply(Response replayed) {
+                        if(replayed.getMessage()!=null && !replayed.getMessage().isEmpty())
+                            login.setMessage(login.getMessage() + "\n" + replayed.getMessage());
+                        return login;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Splits a batch into one batch per shard that keeps the order of its
+     * requests, and puts the responses back into request order. Only channel
+     * commands can be batched in a cluster.
+     */
+    private CompletableFuture<Response> batchOnShards(final Request batch, ConsistentHashRing ring) {
+        final List<Request> items = batch.getRequests();
+        if(items==null || items.isEmpty())
+            return callAsync(batch, ClusterProtocol.rpcQueue(ring.getNodes().get(0)));
+
+        final Map<String, List<Integer>> positions = new LinkedHashMap<String, List<Integer>>();
+        Map<String, List<Request>> shardItems = new LinkedHashMap<String, List<Request>>();
+        for(int i=0; i<items.size(); i++) {
+            Request item = items.get(i);
+            if(!ClusterProtocol.isChannelCommand(item.getCommand())) {
+                CompletableFuture<Response> rejected = new CompletableFuture<Response>();
+                rejected.completeExceptionally(new IllegalArgumentException("Only channel commands can be batched in a cluster: " + item.getCommand()));
+                return rejected;
+            }
+            String shard = ring.ownerOf(item.getChannelName());
+            if(!positions.containsKey(shard)) {
+                positions.put(shard, new ArrayList<Integer>());
+                shardItems.put(shard, new ArrayList<Request>());
+            }
+            positions.get(shard).add(i);
+            shardItems.get(shard).add(item);
+        }
+
+        final Map<String, CompletableFuture<Response>> calls = new LinkedHashMap<String, CompletableFuture<Response>>();
+        for(Map.Entry<String, List<Request>> entry:shardItems.entrySet()) {
+            Request shardBatch = new Request();
+            shardBatch.setCommand(batch.getCommand());
+            shardBatch.setNickname(batch.getNickname());
+            shardBatch.setRequests(entry.getValue());
+            calls.put(entry.getKey(), callAsync(shardBatch, ClusterProtocol.rpcQueue(entry.getKey())));
+        }
+
+        return CompletableFuture.allOf(calls.values().toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, Response>() {
+            public Response apply(Void ignore) {
+                Response[] ordered = new Response[items.size()];
+                for(Map.Entry<String, CompletableFuture<Response>> call:calls.entrySet()) {
+                    Response shardResponse = call.getValue().join();
+                    List<Integer> shardPositions = positions.get(call.getKey());
+                    for(int j=0; j<shardPositions.size(); j++) {
+                        // A shard that rejected its whole batch answers every request with that rejection
+                        ordered[shardPositions.get(j)] = shardResponse.getResponses()==null
+                                ? shardResponse : shardResponse.getResponses().get(j);
+                    }
+                }
+                return Response.ofBatch(batch.getNickname(), Arrays.asList(ordered));
+            }
+        });
+    }
+
+    /**
+     * Sends a request to several shards and merges the replies. A broadcast
+     * succeeds if any shard delivered it, anything else only if all shards
+     * succeeded; the distinct messages of the replies with that outcome are joined.
+     */
+    private CompletableFuture<Response> callShards(final Request request, List<String> shards) {
+        final List<CompletableFuture<Response>> calls = new ArrayList<CompletableFuture<Response>>();
+        for(String shard:shards)
+            calls.add(callAsync(request, ClusterProtocol.rpcQueue(shard)));
+
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, Response>() {
+            public Response apply(Void ignore) {
+                boolean any = false;
+                boolean all = true;
+                for(CompletableFuture<Response> call:calls) {
+                    boolean status = call.join().isStatus();
+                    any |= status;
+                    all &= status;
+                }
+                boolean status = request.getCommand().equalsIgnoreCase("BROADCAST") ? any : all;
+
+                Set<String> messages = new LinkedHashSet<String>();
+                for(CompletableFuture<Response> call:calls) {
+                    Response response = call.join();
+                    if(response.isStatus()==status && response.getMessage()!=null && !response.getMessage().isEmpty())
+                        messages.add(response.getMessage());
+                }
+                StringBuilder message = new StringBuilder();
+                for(String line:messages) {
+                    if(message.length() > 0) message.append("\n");
+                    message.append(line);
+                }
+                return new Response(status, message.toString(), calls.get(0).join().getNickname());
+            }
+        });
+    }
+
+    public Response call(Request request) throws Exception {
+        try {
+            return callAsync(request).get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes a SEND or BROADCAST request to the ingest queue without waiting.
+     * The server only answers when it rejects the message.
+     */
+    public void sendOneWay(Request request) throws IOException {
+        byte[] body = codec.encodeRequest(request);
+        byte[] compressed = compress(body);
         AMQP.BasicProperties props = new AMQP.BasicProperties
                 .Builder()
-                .correlationId(corrId)
                 .replyTo(replyQueueName)
+                .contentType(codec.getContentType())
+                .contentEncoding(compressed==null ? null : Compression.DEFLATE)
                 .build();
-        channel.basicPublish("", requestQueueName, props, message.getBytes(ENCODING));
+        if(compressed!=null) body = compressed;
+
+        ConsistentHashRing ring = shardRing;
+        List<String> shards;
+        if(ring==null)
+            shards = Arrays.asList((String) null);
+        else if(request.getCommand().equalsIgnoreCase("BROADCAST"))
+            shards = ring.getNodes();
+        else
+            shards = Arrays.asList(shardOf(request, ring));
+
+        synchronized (channel) {
+            for(String shard:shards)
+                channel.basicPublish("", ClusterProtocol.ingestQueue(shard), props, body);
+        }
+    }
+
+    /**
+     * Sets how chat messages are received once logged in: how many deliveries
+     * the broker may push ahead, how many messages may wait for the terminal and
+     * the {@link DeliveryPipeline} flood policy applied beyond that.
+     */
+    public void setDeliveryOptions(int prefetchCount, int renderQueueCapacity, String floodPolicy) throws IOException {
+        DeliveryPipeline previous = deliveryPipeline;
+        deliveryPipeline = new DeliveryPipeline(messageInChannel, prefetchCount, renderQueueCapacity, floodPolicy,
+                new DeliveryPipeline.Renderer() {
+                    public void render(String message) {
+                        System.out.println(message);
+                    }
+                });
+        if(previous!=null) previous.close();
+    }
+
+    /**
+     * Pings the server every {@code intervalSeconds} while logged in, renewing
+     * the session lease. A session the server reports as expired is dropped
+     * locally as well. Zero stops the heartbeat.
+     */
+    public synchronized void setHeartbeatInterval(long intervalSeconds) {
+        if(intervalSeconds < 0)
+            throw new IllegalArgumentException("Heartbeat interval must not be negative: " + intervalSeconds);
+        if(heartbeat!=null) heartbeat.cancel(false);
+        heartbeat = null;
+        if(intervalSeconds==0) return;
+
+        heartbeat = timeoutScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                ping();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
 
-        while (true) {
-            QueueingConsumer.Delivery delivery = consumer.nextDelivery();
-            if(delivery.getProperties().getCorrelationId().equals(corrId)) {
-                response = new String(delivery.getBody(), ENCODING);
-                break;
+    private void ping() {
+        final String pinged = nickname;
+        if(!isLoggedIn || pinged==null || pinged.isEmpty()) return;
+
+        Request request = new Request();
+        request.setCommand("PING");
+        request.setNickname(pinged);
+        callAsync(request).thenAccept(new Consumer<Response>() {
+            public void accept(Response response) {
+                // A lost ping is retried with the next one; only a rejection ends the session
+                if(response.isStatus() || !isLoggedIn || !pinged.equals(nickname)) return;
+                try {
+                    deliveryPipeline.unsubscribe();
+                } catch (IOException ignore) {
+                }
+                isLoggedIn = false;
+                nickname = "";
+                System.err.println(response.getMessage());
             }
+        });
+    }
+
+    /**
+     * Compresses requests that reach the threshold of {@code compression}; null
+     * turns it off. Compressed replies and deliveries are decompressed either way.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    private byte[] compress(byte[] body) {
+        Compression compression = this.compression;
+        return compression==null ? null : compression.compress(body);
+    }
+
+    public void setOneWay(boolean oneWay) {
+        this.oneWay = oneWay;
+    }
+
+    /**
+     * Returns the nickname logged in from the console, or an empty string.
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    public int getPendingCallCount() {
+        return pendingCalls.size();
+    }
+
+    private void completeCall(AMQP.BasicProperties properties, byte[] body) {
+        String corrId = properties.getCorrelationId();
+        PendingCall pendingCall = corrId==null ? null : pendingCalls.remove(corrId);
+        if(pendingCall==null) {
+            System.err.println("* Discarded reply to expired or unknown request " + corrId);
+            return;
         }
 
-        return response;
+        pendingCall.timeout.cancel(false);
+        try {
+            pendingCall.future.complete(WireCodecs.forContentType(properties.getContentType())
+                    .decodeResponse(Compression.decompress(properties, body)));
+        } catch (IOException e) {
+            pendingCall.future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            pendingCall.future.completeExceptionally(e);
+        }
     }
 
     public void close() throws Exception {
-        channel.close();
-        connection.close();
+        timeoutScheduler.shutdownNow();
+        for(PendingCall pendingCall:pendingCalls.values())
+            pendingCall.future.completeExceptionally(new IOException("Client closed"));
+        pendingCalls.clear();
+
+        deliveryPipeline.close();
+        for(TransportChannel requestChannel:requestChannels)
+            requestChannel.close();
+        messageInChannel.close();
+        if(ownsTransport)
+            transport.close();
     }
 
     public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("b", "broker", true, "RabbitMQ host (default " + DEFAULT_HOSTNAME + ")");
+        options.addOption("c", "codec", true, "wire codec: json or binary (default json)");
+        options.addOption("o", "one-way", false, "send chat messages without waiting for a reply");
+        options.addOption("S", "shards", true, "comma-separated shard ids of a sharded server cluster");
+        options.addOption("P", "prefetch", true, "chat messages the broker may deliver ahead of the terminal (default " + DEFAULT_DELIVERY_PREFETCH + ")");
+        options.addOption("Q", "render-queue", true, "chat messages that may wait for the terminal (default " + DEFAULT_RENDER_QUEUE_CAPACITY + ")");
+        options.addOption("F", "flood-policy", true, "when the terminal falls behind: backpressure, drop-oldest or coalesce (default " + DEFAULT_FLOOD_POLICY + ")");
+        options.addOption("H", "heartbeat", true, "seconds between pings that keep the session alive, 0 to disable (default " + DEFAULT_HEARTBEAT_SECONDS + ")");
+        options.addOption("z", "compress", true, "compress requests of at least this many bytes (disabled by default)");
+        options.addOption("h", "help", false, "print this help");
+
+        String hostname;
+        int prefetchCount;
+        int renderQueueCapacity;
+        String floodPolicy;
+        long heartbeatSeconds;
+        WireCodec codec;
+        boolean oneWay;
+        List<String> shards;
+        Compression compression = null;
+        try {
+            CommandLine cmd = new GnuParser().parse(options, args);
+            if(cmd.hasOption("h")) {
+                new HelpFormatter().printHelp("RpcClient", options);
+                return;
+            }
+            hostname = cmd.getOptionValue("b", DEFAULT_HOSTNAME);
+            codec = WireCodecs.forName(cmd.getOptionValue("c", "json"));
+            oneWay = cmd.hasOption("o");
+            shards = cmd.hasOption("S") ? Arrays.asList(cmd.getOptionValue("S").split(",")) : null;
+            prefetchCount = Integer.parseInt(cmd.getOptionValue("P", String.valueOf(DEFAULT_DELIVERY_PREFETCH)));
+            renderQueueCapacity = Integer.parseInt(cmd.getOptionValue("Q", String.valueOf(DEFAULT_RENDER_QUEUE_CAPACITY)));
+            floodPolicy = cmd.getOptionValue("F", DEFAULT_FLOOD_POLICY);
+            heartbeatSeconds = Long.parseLong(cmd.getOptionValue("H", String.valueOf(DEFAULT_HEARTBEAT_SECONDS)));
+            if(cmd.hasOption("z"))
+                compression = new Compression(Integer.parseInt(cmd.getOptionValue("z")), Compression.DEFAULT_LEVEL);
+        } catch (ParseException e) {
+            System.err.println("* " + e.getMessage());
+            new HelpFormatter().printHelp("RpcClient", options);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("* " + e.getMessage());
+            return;
+        }
+
         System.out.println("* Starting client...");
 
         RpcClient rpcClient = null;
-        String response = null;
 
         try {
-            rpcClient = new RpcClient();
+            rpcClient = new RpcClient(new AmqpTransport(hostname), true, DEFAULT_CALL_TIMEOUT_MILLIS, codec, 1);
+            rpcClient.setOneWay(oneWay);
+            rpcClient.setCompression(compression);
+            rpcClient.setDeliveryOptions(prefetchCount, renderQueueCapacity, floodPolicy);
+            rpcClient.setHeartbeatInterval(heartbeatSeconds);
+            if(shards!=null)
+                rpcClient.setShards(shards);
 
             rpcClient.perform();
         } catch (Exception e) {
@@ -139,6 +599,8 @@ public class RpcClient {
                     join(command.toUpperCase(), parameter);
                 } else if (command.equalsIgnoreCase("LEAVE")) {
                     leave(command.toUpperCase(), parameter);
+                } else if (command.equalsIgnoreCase("HISTORY")) {
+                    history(command.toUpperCase(), parameter);
                 } else if (command.equalsIgnoreCase("LOGOUT")) {
                     logout(command.toUpperCase());
                 } else if (command.equalsIgnoreCase("EXIT")) {
@@ -152,7 +614,7 @@ public class RpcClient {
         } while (!command.equalsIgnoreCase("EXIT"));
     }
 
-    private void login(String command, String parameter) throws Exception {
+    void login(String command, String parameter) throws Exception {
         if(isLoggedIn) {
             System.err.println("* Please logout first!");
         } else {
@@ -160,12 +622,14 @@ public class RpcClient {
             request.setCommand(command);
             request.setNickname(parameter);
 
-            String responseJson = call(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = call(request);
 
             if(response.isStatus()) {
                 nickname = response.getNickname();
                 isLoggedIn = true;
+                messageInChannel.queueDeclare(nickname, false, false, true);
+                messageInChannel.queueBind(nickname, MESSAGE_EXCHANGE_NAME, nickname);
+                deliveryPipeline.subscribe(nickname);
                 System.out.println(response.getMessage());
             } else {
                 System.err.println(response.getMessage());
@@ -177,24 +641,56 @@ public class RpcClient {
         if(!isLoggedIn) System.err.println("* Please login first!");
         else if(parameter==null || parameter.isEmpty()) printInvalidCommand();
         else {
+            String[] channelNames = parameter.trim().split("\\s+");
+            if(channelNames.length > 1) {
+                joinAll(command, channelNames);
+                return;
+            }
+
             Request request = new Request();
             request.setCommand(command);
             request.setChannelName(parameter);
             request.setNickname(nickname);
 
-            String responseJson = call(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = call(request);
 
             if(response.isStatus()) {
-                messageInChannel.queueDeclare(nickname, false, false, true, null);
-                messageInChannel.queueBind(nickname, MESSAGE_EXCHANGE_NAME, nickname);
-                messageInChannel.basicConsume(nickname, true, messageInConsumer);
                 System.out.println(response.getMessage());
             } else
                 System.err.println(response.getMessage());
         }
     }
 
+    /**
+     * Joins several channels with a single BATCH request.
+     */
+    private void joinAll(String command, String[] channelNames) throws Exception {
+        List<Request> joins = new ArrayList<Request>(channelNames.length);
+        for(String channelName:channelNames) {
+            Request request = new Request();
+            request.setCommand(command);
+            request.setChannelName(channelName);
+            request.setNickname(nickname);
+            joins.add(request);
+        }
+        Request batch = new Request();
+        batch.setCommand("BATCH");
+        batch.setNickname(nickname);
+        batch.setRequests(joins);
+
+        Response response = call(batch);
+        if(response.getResponses()==null) {
+            System.err.println(response.getMessage());
+            return;
+        }
+        for(Response joined:response.getResponses()) {
+            if(joined.isStatus())
+                System.out.println(joined.getMessage());
+            else
+                System.err.println(joined.getMessage());
+        }
+    }
+
     private void leave(String command, String parameter) throws Exception {
         if(!isLoggedIn) System.err.println("* Please login first!");
         else if(parameter==null || parameter.isEmpty()) printInvalidCommand();
@@ -204,8 +700,7 @@ public class RpcClient {
             request.setChannelName(parameter);
             request.setNickname(nickname);
 
-            String responseJson = call(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = call(request);
 
             if(response.isStatus()) {
                 System.out.println(response.getMessage());
@@ -214,19 +709,46 @@ public class RpcClient {
         }
     }
 
-    private void logout(String command) throws Exception {
+    private void history(String command, String parameter) throws Exception {
+        String[] parameters = parameter.isEmpty() ? new String[0] : parameter.split("\\s+");
+        if(!isLoggedIn) System.err.println("* Please login first!");
+        else if(parameters.length < 1 || parameters.length > 3) printInvalidCommand();
+        else {
+            Request request = new Request();
+            request.setCommand(command);
+            request.setChannelName(parameters[0]);
+            request.setNickname(nickname);
+            try {
+                if(parameters.length > 1) request.setLimit(Integer.valueOf(parameters[1]));
+                if(parameters.length > 2) request.setBefore(Long.valueOf(parameters[2]));
+            } catch (NumberFormatException e) {
+                printInvalidCommand();
+                return;
+            }
+
+            Response response = call(request);
+
+            if(response.isStatus()) {
+                for(Message message:response.getMessages())
+                    System.out.println("[" + message.getSequence() + "] @" + request.getChannelName() + " "
+                            + message.getSender() + ": " + message.getText());
+            } else
+                System.err.println(response.getMessage());
+        }
+    }
+
+    void logout(String command) throws Exception {
         if(!isLoggedIn) System.err.println("* Please login first!");
         else {
             Request request = new Request();
             request.setCommand(command);
             request.setNickname(nickname);
 
-            String responseJson = call(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = call(request);
 
             if(response.isStatus()) {
-                messageInChannel.queueUnbind(nickname, MESSAGE_EXCHANGE_NAME, nickname);
-                messageInChannel.queueDelete(nickname);
+                // The queue is auto-delete, so cancelling its only consumer removes it
+                deliveryPipeline.unsubscribe();
                 isLoggedIn = false;
                 nickname = "";
                 System.out.println(response.getMessage());
@@ -254,8 +776,12 @@ public class RpcClient {
             request.setMessage(message);
             request.setNickname(nickname);
 
-            String responseJson = call(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            if(oneWay) {
+                sendOneWay(request);
+                return;
+            }
+
+            Response response = call(request);
 
             if(!response.isStatus()) {
                 System.err.println(response.getMessage());
@@ -271,8 +797,12 @@ public class RpcClient {
             request.setMessage(message);
             request.setNickname(nickname);
 
-            String responseJson = call(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            if(oneWay) {
+                sendOneWay(request);
+                return;
+            }
+
+            Response response = call(request);
 
             if(!response.isStatus()) {
                 System.err.println(response.getMessage());
@@ -280,4 +810,8 @@ public class RpcClient {
         }
     }
 
+    private static class PendingCall {
+        private final CompletableFuture<Response> future = new CompletableFuture<Response>();
+        private volatile ScheduledFuture<?> timeout;
+    }
 }
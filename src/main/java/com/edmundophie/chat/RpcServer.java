@@ -1,218 +1,1654 @@
 package com.edmundophie.chat;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AMQP;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.QueueingConsumer;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by edmundophie on 10/9/15.
  */
 public class RpcServer {
-    private static final String RPC_QUEUE_NAME = "rpc_queue";
-    private static final String HOSTNAME = "localhost";
+    private static final String INGEST_ERROR_TYPE = "ingest_error";
+    private static final String DEFAULT_HOSTNAME = "localhost";
     private static final String ENCODING = "UTF-8";
     private static final String MESSAGE_EXCHANGE_NAME = "messages";
-    private static final int MAX_GENERATED_RANDOM_ACCOUNT_INT = 99999;
-    private static Map<String, User> userMap;
-    private static Map<String, Channel> channelMap;
-    private static Map<String, List<Message>> messageListMap; // TODO HIGH change to publish subscribe
-    private static com.rabbitmq.client.Channel messageOutChannel;
-    private static Map<String, List<String>> channelMemberMap;
+    private static final String GENERATED_NICKNAME_PREFIX = "user";
+    private static final int DEFAULT_NICKNAME_SPACE = 99999;
+    private static final int DEFAULT_WORKER_COUNT = 1;
+    private static final int DEFAULT_PREFETCH_COUNT = 1;
+    private static final String DEFAULT_ROUTING_MODE = "direct";
+    private static final int DEFAULT_HISTORY_SIZE = 100;
+    private static final long DEFAULT_HISTORY_MEMORY_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_HISTORY_PAGE_SIZE = 20;
+    private static final int DEFAULT_LOG_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int LOG_INDEX_INTERVAL_BYTES = 4096;
+    private static final long DEFAULT_LOG_RETENTION_HOURS = 168;
+    private static final long LOG_MAINTENANCE_INTERVAL_SECONDS = 1;
+    private static final long RATE_LIMIT_SWEEP_INTERVAL_SECONDS = 10;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int DEFAULT_DELIVERY_BATCH_MESSAGES = 64;
+    private static final int DELIVERY_BATCH_BYTES = 64 * 1024;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300;
+    private static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 2;
+    private static final String DEFAULT_LOG_LEVEL = "info";
+    private static final int EVENT_LOG_CAPACITY = 8192;
+    private static final int DEFAULT_USER_BURST = 20;
+    private static final int DEFAULT_CHANNEL_BURST = 100;
+    private static final long LEASE_TICK_MILLIS = 100;
+    private static final String METRICS_OBJECT_NAME = "com.edmundophie.chat:type=ServerMetrics";
+    private ConcurrentMap<String, User> userMap;
+    private ConcurrentMap<String, Channel> channelMap;
+    private ThreadLocal<TransportChannel> messageOutChannel;
+    private MembershipIndex membership;
+    private NicknameAllocator nicknameAllocator;
+    private StripedExecutor dispatcher;
+    private MessageRouter messageRouter;
+    private Transport transport;
+    private int historySize = DEFAULT_HISTORY_SIZE;
+    private long historyMemoryBytes = DEFAULT_HISTORY_MEMORY_BYTES;
+    private HistoryBudget historyBudget;
+    private ChannelLogStore channelLogStore;
+    private final ConcurrentMap<String, User> offlineUserMap = new ConcurrentHashMap<String, User>();
+    private ServerMetrics metrics;
+    private int metricsPort = -1;
+    // Null unless the server is one shard of a cluster
+    private String shardId;
+    private volatile ConsistentHashRing ring;
+    // The ring as it would be without this shard, i.e. who owned a key before this shard took it
+    private volatile ConsistentHashRing previousRing;
+    private StateJournal stateJournal;
+    private OutboundBatcher outboundBatcher;
+    // Null unless bodies above a threshold are compressed
+    private Compression compression;
+    private long snapshotIntervalSeconds = DEFAULT_SNAPSHOT_INTERVAL_SECONDS;
+    private final Map<String, CommandHandler> commands = createCommandTable();
+    private RateLimiter userRateLimiter;
+    private RateLimiter channelRateLimiter;
+    private long maxOutboundBacklog = -1;
+    // Deliveries owed by the chat messages dispatched but not processed yet
+    private final AtomicLong outboundBacklog = new AtomicLong();
+    private final AtomicLong backpressurePauses = new AtomicLong();
+    private TransportChannel requestChannel;
+    private String rpcConsumerTag;
+    private String ingestConsumerTag;
+    private volatile boolean consumptionPaused;
+    private volatile boolean stopping;
+    private LeaseWheel leaseWheel;
+    private final ConcurrentMap<String, LeaseWheel.Lease> leases = new ConcurrentHashMap<String, LeaseWheel.Lease>();
+    private final AtomicLong expiredLeases = new AtomicLong();
+    private EventLog eventLog;
+    private EventLog.Event loginEvent;
+    private EventLog.Event nicknamesExhaustedEvent;
+    private EventLog.Event joinEvent;
+    private EventLog.Event leaveEvent;
+    private EventLog.Event leaveRejectedEvent;
+    private EventLog.Event logoutEvent;
+    private EventLog.Event sendEvent;
+    private EventLog.Event sendRejectedEvent;
+    private EventLog.Event broadcastEvent;
+    private EventLog.Event broadcastRejectedEvent;
+    private EventLog.Event historyEvent;
+    private EventLog.Event rateLimitedEvent;
+    private EventLog.Event leaseExpiredEvent;
+    private EventLog.Event replayFailedEvent;
+    private EventLog.Event unbindFailedEvent;
+    private EventLog.Event channelLogFailedEvent;
+
+    /**
+     * Handler of one command, together with the index its metrics are kept under.
+     */
+    private abstract static class CommandHandler {
+        private final int metricIndex;
+
+        CommandHandler(String command) {
+            metricIndex = ServerMetrics.indexOf(command);
+        }
+
+        abstract Response handle(Request request);
+    }
+
+    private interface BatchCompletion {
+        void completed(Response response);
+    }
 
     public static void main (String[] args) {
-        Connection connection = null;
-        com.rabbitmq.client.Channel channel = null;
+        Options options = new Options();
+        options.addOption("b", "broker", true, "RabbitMQ host (default " + DEFAULT_HOSTNAME + ")");
+        options.addOption("w", "workers", true, "number of dispatch threads (default " + DEFAULT_WORKER_COUNT + ")");
+        options.addOption("p", "prefetch", true, "number of unacknowledged requests to prefetch (default " + DEFAULT_PREFETCH_COUNT + ")");
+        options.addOption("r", "routing", true, "message routing mode: direct or fanout (default " + DEFAULT_ROUTING_MODE + ")");
+        options.addOption("s", "history-size", true, "messages kept per channel (default " + DEFAULT_HISTORY_SIZE + ")");
+        options.addOption("m", "history-memory", true, "approximate bytes kept across all channel histories (default " + DEFAULT_HISTORY_MEMORY_BYTES + ")");
+        options.addOption("l", "log-dir", true, "directory of the channel message logs (disabled by default)");
+        options.addOption("g", "log-segment-bytes", true, "size of a channel log segment (default " + DEFAULT_LOG_SEGMENT_BYTES + ")");
+        options.addOption("t", "log-retention-hours", true, "hours a channel log segment is kept (default " + DEFAULT_LOG_RETENTION_HOURS + ")");
+        options.addOption("j", "journal-dir", true, "directory of the state journal and snapshots used to restore logins and memberships on restart (disabled by default)");
+        options.addOption("i", "snapshot-interval", true, "seconds between state snapshots (default " + DEFAULT_SNAPSHOT_INTERVAL_SECONDS + ")");
+        options.addOption("k", "commit-interval", true, "milliseconds state changes are batched before the journal is synced (default " + DEFAULT_COMMIT_INTERVAL_MILLIS + ")");
+        options.addOption("B", "batch-delay", true, "milliseconds messages to one recipient may wait to be delivered together (disabled by default)");
+        options.addOption("N", "batch-messages", true, "most messages delivered together (default " + DEFAULT_DELIVERY_BATCH_MESSAGES + ")");
+        options.addOption("u", "user-rate", true, "chat messages per second a user may send, a broadcast counting once per channel (unlimited by default)");
+        options.addOption("U", "user-burst", true, "chat messages a user may send at once (default " + DEFAULT_USER_BURST + ")");
+        options.addOption("c", "channel-rate", true, "chat messages per second a channel accepts (unlimited by default)");
+        options.addOption("K", "channel-burst", true, "chat messages a channel accepts at once (default " + DEFAULT_CHANNEL_BURST + ")");
+        options.addOption("q", "max-backlog", true, "deliveries owed by queued chat messages above which requests stop being consumed (unlimited by default)");
+        options.addOption("z", "compress", true, "compress chat messages, delivery batches and replies of at least this many bytes (disabled by default)");
+        options.addOption("L", "lease-timeout", true, "seconds without a PING after which a session is logged out (disabled by default)");
+        options.addOption("n", "nickname-space", true, "number of random nicknames that can be generated (default " + DEFAULT_NICKNAME_SPACE + ")");
+        options.addOption("M", "metrics-port", true, "serve metrics as text on http://127.0.0.1:<port>/metrics (disabled by default)");
+        options.addOption("S", "shard", true, "run as the shard with this id (requires --cluster)");
+        options.addOption("C", "cluster", true, "comma-separated ids of all shards, including this one");
+        options.addOption("v", "log-level", true, "lowest level of logged events: debug, info, warn, error or off (default " + DEFAULT_LOG_LEVEL + ")");
+        options.addOption("e", "log-sample", true, "log only every n-th occurrence of some events, e.g. send=100,broadcast=10");
+        options.addOption("h", "help", false, "print this help");
+
+        RpcServer server = new RpcServer();
+        String hostname;
+        int workerCount;
+        int prefetchCount;
+        String routingMode;
+        OutboundBatcher batcher = null;
+        try {
+            CommandLine cmd = new GnuParser().parse(options, args);
+            if(cmd.hasOption("h")) {
+                new HelpFormatter().printHelp("RpcServer", options);
+                return;
+            }
+            hostname = cmd.getOptionValue("b", DEFAULT_HOSTNAME);
+            workerCount = Integer.parseInt(cmd.getOptionValue("w", String.valueOf(DEFAULT_WORKER_COUNT)));
+            prefetchCount = Integer.parseInt(cmd.getOptionValue("p", String.valueOf(DEFAULT_PREFETCH_COUNT)));
+            routingMode = cmd.getOptionValue("r", DEFAULT_ROUTING_MODE);
+            server.setNicknameSpace(Integer.parseInt(cmd.getOptionValue("n", String.valueOf(DEFAULT_NICKNAME_SPACE))));
+            server.setMetricsPort(Integer.parseInt(cmd.getOptionValue("M", "-1")));
+            server.setHistorySize(Integer.parseInt(cmd.getOptionValue("s", String.valueOf(DEFAULT_HISTORY_SIZE))));
+            server.setHistoryMemoryBytes(Long.parseLong(cmd.getOptionValue("m", String.valueOf(DEFAULT_HISTORY_MEMORY_BYTES))));
+            if(cmd.hasOption("u"))
+                server.setUserRateLimiter(new RateLimiter(Double.parseDouble(cmd.getOptionValue("u")),
+                        Integer.parseInt(cmd.getOptionValue("U", String.valueOf(DEFAULT_USER_BURST)))));
+            if(cmd.hasOption("c"))
+                server.setChannelRateLimiter(new RateLimiter(Double.parseDouble(cmd.getOptionValue("c")),
+                        Integer.parseInt(cmd.getOptionValue("K", String.valueOf(DEFAULT_CHANNEL_BURST)))));
+            server.setMaxOutboundBacklog(Long.parseLong(cmd.getOptionValue("q", "-1")));
+            if(cmd.hasOption("L"))
+                server.setLeaseTimeout(Long.parseLong(cmd.getOptionValue("L")));
+            if(cmd.hasOption("z"))
+                server.setCompression(new Compression(Integer.parseInt(cmd.getOptionValue("z")), Compression.DEFAULT_LEVEL));
+            EventLog eventLog = new EventLog(System.out, System.err, EVENT_LOG_CAPACITY);
+            eventLog.setLevel(EventLog.parseLevel(cmd.getOptionValue("v", DEFAULT_LOG_LEVEL)));
+            if(cmd.hasOption("e"))
+                eventLog.setSampling(cmd.getOptionValue("e"));
+            server.setEventLog(eventLog);
+            if(cmd.hasOption("S")) {
+                if(!cmd.hasOption("C")) {
+                    System.err.println("- --shard needs the --cluster shard list");
+                    return;
+                }
+                server.setShard(cmd.getOptionValue("S"), Arrays.asList(cmd.getOptionValue("C").split(",")));
+            }
+            if(cmd.hasOption("l")) {
+                int segmentBytes = Integer.parseInt(cmd.getOptionValue("g", String.valueOf(DEFAULT_LOG_SEGMENT_BYTES)));
+                long retentionHours = Long.parseLong(cmd.getOptionValue("t", String.valueOf(DEFAULT_LOG_RETENTION_HOURS)));
+                File logDir = new File(cmd.getOptionValue("l"));
+                if(cmd.hasOption("S"))
+                    logDir = new File(logDir, cmd.getOptionValue("S"));
+                server.setChannelLogStore(new ChannelLogStore(logDir, segmentBytes,
+                        LOG_INDEX_INTERVAL_BYTES, retentionHours * 3600 * 1000));
+            }
+            if(cmd.hasOption("B")) {
+                int batchMessages = Integer.parseInt(cmd.getOptionValue("N", String.valueOf(DEFAULT_DELIVERY_BATCH_MESSAGES)));
+                long delayMicros = Math.round(Double.parseDouble(cmd.getOptionValue("B")) * 1000);
+                batcher = new OutboundBatcher(batchMessages, DELIVERY_BATCH_BYTES, delayMicros);
+                server.setOutboundBatcher(batcher);
+            }
+            if(cmd.hasOption("j")) {
+                long commitMillis = Long.parseLong(cmd.getOptionValue("k", String.valueOf(DEFAULT_COMMIT_INTERVAL_MILLIS)));
+                long snapshotSeconds = Long.parseLong(cmd.getOptionValue("i", String.valueOf(DEFAULT_SNAPSHOT_INTERVAL_SECONDS)));
+                File journalDir = new File(cmd.getOptionValue("j"));
+                if(cmd.hasOption("S"))
+                    journalDir = new File(journalDir, cmd.getOptionValue("S"));
+                server.setStateJournal(new StateJournal(journalDir, commitMillis), snapshotSeconds);
+            }
+        } catch (ParseException e) {
+            System.err.println("- " + e.getMessage());
+            new HelpFormatter().printHelp("RpcServer", options);
+            return;
+        } catch (NumberFormatException e) {
+            System.err.println("- Invalid number: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("- " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.err.println("- " + e.getMessage());
+            return;
+        }
+
+        if(routingMode.equalsIgnoreCase("direct")) {
+            server.setMessageRouter(new DirectMessageRouter(MESSAGE_EXCHANGE_NAME, batcher));
+        } else if(routingMode.equalsIgnoreCase("fanout")) {
+            server.setMessageRouter(new FanoutMessageRouter(MESSAGE_EXCHANGE_NAME, batcher));
+        } else {
+            System.err.println("- Unknown routing mode: " + routingMode);
+            return;
+        }
+
+        final RpcServer stoppingServer = server;
+        final EventLog eventLog = server.getEventLog();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                stoppingServer.shutdown();
+                eventLog.close();
+            }
+        }));
 
         try {
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost(HOSTNAME);
+            server.start(new AmqpTransport(hostname), workerCount, prefetchCount);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setMessageRouter(MessageRouter messageRouter) {
+        this.messageRouter = messageRouter;
+    }
+
+    public void setNicknameSpace(int size) {
+        nicknameAllocator = new NicknameAllocator(GENERATED_NICKNAME_PREFIX, size);
+    }
+
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public void setHistoryMemoryBytes(long historyMemoryBytes) {
+        this.historyMemoryBytes = historyMemoryBytes;
+    }
 
-            connection = factory.newConnection();
-            channel = connection.createChannel();
+    public void setChannelLogStore(ChannelLogStore channelLogStore) {
+        this.channelLogStore = channelLogStore;
+    }
 
-            channel.queueDeclare(RPC_QUEUE_NAME, false, false, false, null);
-            channel.queuePurge(RPC_QUEUE_NAME);
-            channel.basicQos(1);
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
 
-            QueueingConsumer consumer = new QueueingConsumer(channel);
-            channel.basicConsume(RPC_QUEUE_NAME, false, consumer);
+    /**
+     * Limits the chat messages of every user; a broadcast takes one token per
+     * channel it goes to. Rejected messages are answered with a failure.
+     */
+    public void setUserRateLimiter(RateLimiter userRateLimiter) {
+        this.userRateLimiter = userRateLimiter;
+    }
 
-            messageOutChannel = connection.createChannel();
-            messageOutChannel.exchangeDeclare(MESSAGE_EXCHANGE_NAME, "direct");
+    /**
+     * Limits the chat messages every channel accepts, whoever sends them.
+     */
+    public void setChannelRateLimiter(RateLimiter channelRateLimiter) {
+        this.channelRateLimiter = channelRateLimiter;
+    }
 
-            userMap =  new HashMap<String, User>();
-            channelMap =  new HashMap<String, Channel>();
-            messageListMap = new HashMap<String, List<Message>>();
-            channelMemberMap= new HashMap<String, List<String>>();
+    /**
+     * Stops consuming requests while the chat messages dispatched but not yet
+     * processed owe more than {@code maxOutboundBacklog} deliveries, and resumes
+     * once they owe half of it. Requests meanwhile wait on the broker. A negative
+     * value disables this.
+     */
+    public void setMaxOutboundBacklog(long maxOutboundBacklog) {
+        this.maxOutboundBacklog = maxOutboundBacklog;
+    }
 
-            System.out.println("- RPC server started");
+    /**
+     * Gives every login a lease that a PING renews. A session whose lease ran
+     * out is logged out as if it had sent LOGOUT, so that crashed clients stop
+     * counting as channel members. Clients must ping more often than every
+     * {@code leaseTimeoutSeconds}.
+     */
+    public void setLeaseTimeout(long leaseTimeoutSeconds) {
+        if(leaseTimeoutSeconds < 1)
+            throw new IllegalArgumentException("Lease timeout must be positive: " + leaseTimeoutSeconds);
+        leaseWheel = new LeaseWheel(leaseTimeoutSeconds * 1000, LEASE_TICK_MILLIS);
+    }
 
-            while (true) {
-                String response = null;
+    /**
+     * Logs the handler events to the given log instead of one at info level on
+     * the console. The log is started with the server and written until exit.
+     */
+    public void setEventLog(EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
 
-                QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+    public EventLog getEventLog() {
+        return eventLog;
+    }
 
-                AMQP.BasicProperties props = delivery.getProperties();
-                AMQP.BasicProperties replyProps = new AMQP.BasicProperties
-                        .Builder()
-                        .correlationId(props.getCorrelationId())
-                        .build();
+    /**
+     * Starts the batcher the message router was created with, so its expired
+     * batches are published on a channel of this server.
+     */
+    public void setOutboundBatcher(OutboundBatcher outboundBatcher) {
+        this.outboundBatcher = outboundBatcher;
+    }
 
-                String message = new String(delivery.getBody(), ENCODING);
+    /**
+     * Compresses chat messages, delivery batches and replies that reach the
+     * threshold of {@code compression}. Each message is compressed once, not
+     * once per recipient. Clients decompress whatever carries a content encoding.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
 
-                response = "" + processMessage(message);
+    /**
+     * Journals logins and memberships so that a restarted server picks them up
+     * again instead of starting empty. Replies to state changes are held back
+     * until the change is durable, and the state is snapshotted every
+     * {@code snapshotIntervalSeconds} to keep the journal short.
+     */
+    public void setStateJournal(StateJournal stateJournal, long snapshotIntervalSeconds) {
+        if(snapshotIntervalSeconds < 1)
+            throw new IllegalArgumentException("Snapshot interval must be positive: " + snapshotIntervalSeconds);
+        this.stateJournal = stateJournal;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
 
-                channel.basicPublish("", props.getReplyTo(), replyProps, response.getBytes(ENCODING));
-                channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+    /**
+     * Makes the server one shard of a cluster. It then consumes its own RPC and
+     * ingest queues, serves the channels and nicknames that {@code clusterShards}
+     * hash to {@code shardId}, and announces itself so that the other shards hand
+     * over what it now owns.
+     */
+    public void setShard(String shardId, Collection<String> clusterShards) {
+        if(!clusterShards.contains(shardId))
+            throw new IllegalArgumentException("Shard " + shardId + " is not part of the cluster " + clusterShards);
+        this.shardId = shardId;
+        this.ring = new ConsistentHashRing(clusterShards);
+        this.previousRing = ring.withoutNode(shardId);
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    /**
+     * Starts consuming requests from the given transport. Settings that are not
+     * passed here keep their defaults unless set beforehand.
+     */
+    public void start(Transport brokerTransport, int workerCount, int prefetchCount) {
+        try {
+            initialize(brokerTransport);
+            TransportChannel channel = transport.openChannel();
+            requestChannel = channel;
+            String rpcQueueName = ClusterProtocol.rpcQueue(shardId);
+            String ingestQueueName = ClusterProtocol.ingestQueue(shardId);
+
+            channel.queueDeclare(rpcQueueName, false, false, false);
+            // Requests left over from a previous run only make sense against the state they were sent to
+            if(stateJournal==null)
+                channel.queuePurge(rpcQueueName);
+            else
+                recoverState();
+            channel.queueDeclare(ingestQueueName, false, false, false);
+            channel.basicQos(prefetchCount);
+
+            dispatcher = new StripedExecutor(workerCount, shardId==null ? "rpc-worker" : "rpc-worker-" + shardId);
+
+            if(leaseWheel!=null)
+                startLeases();
+            if(channelLogStore!=null)
+                startLogMaintenance();
+            if(userRateLimiter!=null || channelRateLimiter!=null)
+                startRateLimitSweep();
+            synchronized (channel) {
+                consumeRequests();
             }
+            if(shardId!=null)
+                joinCluster();
+
+            System.out.println("- RPC server " + (shardId==null ? "" : "shard " + shardId + " ") + "started with "
+                    + workerCount + " worker(s), prefetch " + prefetchCount + " and " + messageRouter.getClass().getSimpleName());
+
+            exposeMetrics();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static String processMessage(String message) throws JsonProcessingException {
+    /**
+     * Stops consuming requests and waits for the workers to finish the ones
+     * already dispatched, then publishes the pending delivery batches and syncs
+     * the channel logs and the state journal. Requests delivered but not yet
+     * dispatched stay unacknowledged, so the broker hands them out again. The
+     * transport stays open.
+     */
+    public void shutdown() {
+        if(dispatcher==null || stopping) return;
+        stopping = true;
+        synchronized (requestChannel) {
+            try {
+                if(!consumptionPaused) {
+                    requestChannel.basicCancel(rpcConsumerTag);
+                    requestChannel.basicCancel(ingestConsumerTag);
+                }
+            } catch (IOException e) {
+                System.err.println("- Failed to stop consuming requests: " + e.getMessage());
+            }
+        }
+        if(leaseWheel!=null) leaseWheel.stop();
+
+        dispatcher.shutdown();
+        try {
+            if(!dispatcher.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                System.err.println("- Workers still busy after " + SHUTDOWN_TIMEOUT_SECONDS + " s, stopping anyway");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if(outboundBatcher!=null) outboundBatcher.close();
+        } catch (IOException e) {
+            System.err.println("- Failed to publish the pending delivery batches: " + e.getMessage());
+        }
+        if(channelLogStore!=null) channelLogStore.flush();
+        try {
+            if(stateJournal!=null) stateJournal.close();
+        } catch (IOException e) {
+            System.err.println("- Failed to close the state journal: " + e.getMessage());
+        }
+        System.out.println("- RPC server " + (shardId==null ? "" : "shard " + shardId + " ") + "stopped");
+    }
+
+    /**
+     * Starts the consumers of the RPC and ingest queues. Called with the
+     * request channel locked.
+     */
+    private void consumeRequests() throws IOException {
+        final TransportChannel channel = requestChannel;
+        rpcConsumerTag = channel.basicConsume(ClusterProtocol.rpcQueue(shardId), false, new DeliveryHandler() {
+            public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) {
+                dispatch(channel, deliveryTag, properties, body, false);
+            }
+        });
+        ingestConsumerTag = channel.basicConsume(ClusterProtocol.ingestQueue(shardId), false, new DeliveryHandler() {
+            public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) {
+                dispatch(channel, deliveryTag, properties, body, true);
+            }
+        });
+    }
+
+    /**
+     * Grants a lease to every user restored from the journal and starts expiring
+     * leases, each on the stripe of its user like a LOGOUT would be.
+     */
+    private void startLeases() {
+        for(String nickname:userMap.keySet())
+            grantLease(nickname);
+        leaseWheel.start(new LeaseWheel.ExpiryHandler() {
+            public void expired(final LeaseWheel.Lease lease) {
+                dispatcher.execute(lease.getKey(), new Runnable() {
+                    public void run() {
+                        expireSession(lease);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Periodically syncs the channel logs, drops the log segments past the
+     * retention period and forgets the logged out users whose missed messages
+     * went with them.
+     */
+    private void startLogMaintenance() {
+        ScheduledExecutorService maintainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "log-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maintainer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                try {
+                    channelLogStore.maintain(now);
+                } catch (IOException e) {
+                    System.err.println("- Channel log maintenance failed: " + e.getMessage());
+                }
+                for(User user:offlineUserMap.values()) {
+                    if(user.getLogoutTimestamp() < now - channelLogStore.getRetentionMillis())
+                        offlineUserMap.remove(user.getNickname(), user);
+                }
+            }
+        }, LOG_MAINTENANCE_INTERVAL_SECONDS, LOG_MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Periodically drops the rate limit buckets of users and channels that
+     * have been quiet long enough to refill them.
+     */
+    private void startRateLimitSweep() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rate-limit-sweep");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if(userRateLimiter!=null) userRateLimiter.expireIdle();
+                if(channelRateLimiter!=null) channelRateLimiter.expireIdle();
+            }
+        }, RATE_LIMIT_SWEEP_INTERVAL_SECONDS, RATE_LIMIT_SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void grantLease(String nickname) {
+        if(leaseWheel==null) return;
+        LeaseWheel.Lease previous = leases.put(nickname, leaseWheel.add(nickname));
+        if(previous!=null) leaseWheel.cancel(previous);
+    }
+
+    private void revokeLease(String nickname) {
+        if(leaseWheel==null) return;
+        LeaseWheel.Lease lease = leases.remove(nickname);
+        if(lease!=null) leaseWheel.cancel(lease);
+    }
+
+    /**
+     * Logs out the user of an expired lease unless it was renewed or replaced
+     * meanwhile. In a cluster the other shards are told to log the user out of
+     * the channels they serve.
+     */
+    private void expireSession(LeaseWheel.Lease lease) {
+        String nickname = lease.getKey();
+        if(leases.get(nickname)!=lease) return;
+        if(!lease.isExpired(System.nanoTime())) {
+            leaseWheel.reschedule(lease);
+            return;
+        }
+
+        leaseExpiredEvent.log(nickname);
+        expiredLeases.incrementAndGet();
+        logout(nickname);
+        if(shardId==null) return;
+
+        Request request = new Request();
+        request.setCommand("LOGOUT");
+        request.setNickname(nickname);
+        try {
+            byte[] body = WireCodecs.JSON.encodeRequest(request);
+            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+                    .contentType(WireCodecs.JSON.getContentType())
+                    .build();
+            for(String shard:ring.getNodes()) {
+                if(!shard.equals(shardId))
+                    publishChannel().basicPublish("", ClusterProtocol.rpcQueue(shard), props, body);
+            }
+        } catch (IOException e) {
+            System.err.println("- Failed to log " + nickname + " out of the other shards: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Renews the lease of a session. Without leases it only reports whether the
+     * user is logged in here.
+     */
+    private Response ping(String nickname) {
+        boolean alive;
+        if(leaseWheel==null) {
+            alive = nickname!=null && userMap.containsKey(nickname);
+        } else {
+            LeaseWheel.Lease lease = nickname==null ? null : leases.get(nickname);
+            alive = lease!=null;
+            if(alive) leaseWheel.renew(lease);
+        }
+        return alive ? new Response(true, "", nickname)
+                : new Response(false, "* Your session has expired, please login again", nickname);
+    }
+
+    /**
+     * Counts the deliveries a dispatched request owes and stops consuming
+     * requests when they exceed the maximum backlog.
+     */
+    private void reserveBacklog(long deliveries) {
+        if(maxOutboundBacklog < 0 || deliveries==0) return;
+        if(outboundBacklog.addAndGet(deliveries) <= maxOutboundBacklog || consumptionPaused) return;
+
+        synchronized (requestChannel) {
+            if(consumptionPaused || outboundBacklog.get() <= maxOutboundBacklog) return;
+            try {
+                requestChannel.basicCancel(rpcConsumerTag);
+                requestChannel.basicCancel(ingestConsumerTag);
+                consumptionPaused = true;
+                backpressurePauses.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("- Failed to pause request consumption: " + e.getMessage());
+            }
+        }
+    }
+
+    private void releaseBacklog(long deliveries) {
+        if(maxOutboundBacklog < 0 || deliveries==0) return;
+        if(outboundBacklog.addAndGet(-deliveries) > maxOutboundBacklog / 2 || !consumptionPaused) return;
+
+        synchronized (requestChannel) {
+            if(stopping || !consumptionPaused || outboundBacklog.get() > maxOutboundBacklog / 2) return;
+            try {
+                consumeRequests();
+                consumptionPaused = false;
+            } catch (IOException e) {
+                System.err.println("- Failed to resume request consumption: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of deliveries a request will publish if it succeeds.
+     */
+    private long expectedDeliveries(Request request) {
+        if(request==null || request.getCommand()==null) return 0;
+        if(isBatch(request)) {
+            long deliveries = 0;
+            if(request.getRequests()!=null) {
+                for(Request item:request.getRequests()) {
+                    if(!isBatch(item)) deliveries += expectedDeliveries(item);
+                }
+            }
+            return deliveries;
+        }
+        if(request.getCommand().equalsIgnoreCase("SEND"))
+            return request.getChannelName()==null ? 0 : membership.memberCount(request.getChannelName());
+        if(request.getCommand().equalsIgnoreCase("BROADCAST") && request.getNickname()!=null) {
+            long deliveries = 0;
+            for(String channelName:membership.channelsOf(request.getNickname()))
+                deliveries += membership.memberCount(channelName);
+            return deliveries;
+        }
+        return 0;
+    }
+
+    /**
+     * Sets up the server state on a transport without consuming any request, so
+     * the handlers can also be driven directly, e.g. by the benchmarks.
+     */
+    void initialize(Transport brokerTransport) throws IOException {
+        transport = brokerTransport;
+        if(messageRouter==null)
+            messageRouter = new DirectMessageRouter(MESSAGE_EXCHANGE_NAME);
+        if(nicknameAllocator==null)
+            nicknameAllocator = new NicknameAllocator(GENERATED_NICKNAME_PREFIX, DEFAULT_NICKNAME_SPACE);
+        messageOutChannel = new ThreadLocal<TransportChannel>();
+        initializeEventLog();
+
+        userMap = new ConcurrentHashMap<String, User>();
+        channelMap = new ConcurrentHashMap<String, Channel>();
+        membership = new MembershipIndex();
+        historyBudget = new HistoryBudget(historyMemoryBytes);
+        offlineUserMap.clear();
+
+        metrics = new ServerMetrics();
+        metrics.registerGauge("users", new ServerMetrics.Gauge() {
+            public long get() {
+                return userMap.size();
+            }
+        });
+        metrics.registerGauge("channels", new ServerMetrics.Gauge() {
+            public long get() {
+                return channelMap.size();
+            }
+        });
+        metrics.registerGauge("members", new ServerMetrics.Gauge() {
+            public long get() {
+                return membership.size();
+            }
+        });
+        metrics.registerGauge("rate_limited_users", new ServerMetrics.Gauge() {
+            public long get() {
+                return userRateLimiter==null ? 0 : userRateLimiter.getRejectedCount();
+            }
+        });
+        metrics.registerGauge("rate_limited_channels", new ServerMetrics.Gauge() {
+            public long get() {
+                return channelRateLimiter==null ? 0 : channelRateLimiter.getRejectedCount();
+            }
+        });
+        metrics.registerGauge("outbound_backlog", new ServerMetrics.Gauge() {
+            public long get() {
+                return outboundBacklog.get();
+            }
+        });
+        metrics.registerGauge("backpressure_pauses", new ServerMetrics.Gauge() {
+            public long get() {
+                return backpressurePauses.get();
+            }
+        });
+        metrics.registerGauge("leases", new ServerMetrics.Gauge() {
+            public long get() {
+                return leases.size();
+            }
+        });
+        metrics.registerGauge("leases_expired", new ServerMetrics.Gauge() {
+            public long get() {
+                return expiredLeases.get();
+            }
+        });
+        metrics.registerGauge("compressed", new ServerMetrics.Gauge() {
+            public long get() {
+                return compression==null ? 0 : compression.getCompressedCount();
+            }
+        });
+        metrics.registerGauge("compression_saved_bytes", new ServerMetrics.Gauge() {
+            public long get() {
+                return compression==null ? 0 : compression.getBytesSaved();
+            }
+        });
+        metrics.registerGauge("log_dropped", new ServerMetrics.Gauge() {
+            public long get() {
+                return eventLog.getDroppedCount();
+            }
+        });
+
+        messageRouter.declare(publishChannel());
+        if(outboundBatcher!=null) {
+            outboundBatcher.setCompression(compression);
+            outboundBatcher.start(new MeteredTransportChannel(transport.openChannel(), metrics), metrics);
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void initializeEventLog() {
+        if(eventLog==null)
+            eventLog = new EventLog(System.out, System.err, EVENT_LOG_CAPACITY);
+        loginEvent = eventLog.event("login", EventLog.INFO, "nickname");
+        nicknamesExhaustedEvent = eventLog.event("nickname_space_exhausted", EventLog.WARN);
+        joinEvent = eventLog.event("join", EventLog.INFO, "user", "channel");
+        leaveEvent = eventLog.event("leave", EventLog.INFO, "user", "channel");
+        leaveRejectedEvent = eventLog.event("leave_rejected", EventLog.WARN, "user", "channel");
+        logoutEvent = eventLog.event("logout", EventLog.INFO, "user");
+        sendEvent = eventLog.event("send", EventLog.DEBUG, "user", "channel");
+        sendRejectedEvent = eventLog.event("send_rejected", EventLog.WARN, "user", "channel");
+        broadcastEvent = eventLog.event("broadcast", EventLog.DEBUG, "user");
+        broadcastRejectedEvent = eventLog.event("broadcast_rejected", EventLog.WARN, "user");
+        historyEvent = eventLog.event("history", EventLog.DEBUG, "user", "channel");
+        rateLimitedEvent = eventLog.event("rate_limited", EventLog.WARN, "user", "channel");
+        leaseExpiredEvent = eventLog.event("lease_expired", EventLog.INFO, "user");
+        replayFailedEvent = eventLog.event("replay_failed", EventLog.ERROR, "user", "error");
+        unbindFailedEvent = eventLog.event("unbind_failed", EventLog.ERROR, "user", "channel", "error");
+        channelLogFailedEvent = eventLog.event("channel_log_failed", EventLog.ERROR, "channel", "error");
+        eventLog.start();
+    }
+
+    /**
+     * Loads the logins and memberships of the previous run from the state
+     * journal and starts taking snapshots. The broker keeps the routing of the
+     * restored members across a server restart, so nothing is rebound.
+     */
+    private void recoverState() throws IOException {
+        long start = System.nanoTime();
+        long replayed = stateJournal.recover(new StateJournal.StateHandler() {
+            public void register(String nickname) {
+                if(userMap.putIfAbsent(nickname, new User(nickname))==null)
+                    nicknameAllocator.reserve(nickname);
+            }
+
+            public void unregister(String nickname) {
+                if(userMap.remove(nickname)!=null)
+                    nicknameAllocator.release(nickname);
+            }
+
+            public void join(String nickname, String channelName) {
+                if(!channelMap.containsKey(channelName))
+                    channelMap.put(channelName, new Channel(channelName, new MessageHistory(historySize, historyBudget)));
+                membership.add(nickname, channelName);
+            }
+
+            public void leave(String nickname, String channelName) {
+                membership.remove(nickname, channelName);
+            }
+
+            public void logout(String nickname) {
+                unregister(nickname);
+                membership.removeUser(nickname);
+            }
+
+            public void dropChannel(String channelName) {
+                for(String nickname:membership.membersOf(channelName))
+                    membership.remove(nickname, channelName);
+                channelMap.remove(channelName);
+            }
+        });
+        System.out.println("- Restored " + userMap.size() + " user(s), " + channelMap.size() + " channel(s) and "
+                + membership.size() + " membership(s) in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                + replayed + " journal record(s) replayed");
+
+        ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "state-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // A long replay is folded into a snapshot right away so the next restart does not repeat it
+        snapshotter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                snapshotState();
+            }
+        }, replayed > 0 ? 0 : snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the current logins and memberships as a snapshot. The state keeps
+     * changing while it is written; the journal records after the snapshot
+     * point repair that on recovery.
+     */
+    private void snapshotState() {
+        long start = System.nanoTime();
+        try {
+            stateJournal.snapshot(new StateJournal.SnapshotSource() {
+                public void writeTo(StateJournal.SnapshotWriter writer) throws IOException {
+                    for(String nickname:userMap.keySet())
+                        writer.user(nickname);
+                    for(String channelName:channelMap.keySet())
+                        writer.channel(channelName, membership.membersOf(channelName));
+                }
+            });
+            System.out.println("- State snapshot written in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            System.err.println("- Failed to write state snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and, when a port is
+     * configured, serves them over HTTP. Failing to do either does not stop the
+     * server.
+     */
+    private void exposeMetrics() {
+        try {
+            ObjectName name = new ObjectName(shardId==null ? METRICS_OBJECT_NAME : METRICS_OBJECT_NAME + ",shard=" + shardId);
+            if(ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            System.err.println("- Could not register metrics MBean: " + e.getMessage());
+        }
+
+        if(metricsPort >= 0) {
+            try {
+                MetricsHttpServer httpServer = new MetricsHttpServer(metricsPort, metrics);
+                httpServer.start();
+                System.out.println("- Metrics served on http://127.0.0.1:" + httpServer.getPort() + "/metrics");
+            } catch (IOException e) {
+                System.err.println("- Could not start metrics endpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Listens for shards joining the cluster and announces this one. Shards that
+     * are already running add the newcomer to their ring and hand over what it
+     * now owns; announcing a shard that is already on the ring does nothing.
+     */
+    private void joinCluster() throws IOException {
+        TransportChannel channel = transport.openChannel();
+        channel.exchangeDeclare(ClusterProtocol.CLUSTER_EXCHANGE_NAME, "fanout");
+        String controlQueue = channel.queueDeclare();
+        channel.queueBind(controlQueue, ClusterProtocol.CLUSTER_EXCHANGE_NAME, "");
+        channel.basicConsume(controlQueue, true, new DeliveryHandler() {
+            public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) {
+                if(ClusterProtocol.SHARD_JOIN_TYPE.equals(properties.getType()))
+                    shardJoined(new String(body, StandardCharsets.UTF_8));
+            }
+        });
+
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .type(ClusterProtocol.SHARD_JOIN_TYPE)
+                .build();
+        channel.basicPublish(ClusterProtocol.CLUSTER_EXCHANGE_NAME, "", props, shardId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds a shard to the ring and queues the handoff of every channel and
+     * nickname that moved to it on the stripe of that channel or nickname.
+     * Requests already waiting on the stripe are still served here; later ones
+     * find the state gone and are forwarded to the new owner behind the handoff.
+     */
+    private void shardJoined(final String newShardId) {
+        if(ring.contains(newShardId)) return;
+        ring = ring.withNode(newShardId);
+        previousRing = ring.withoutNode(shardId);
+        System.out.println("- Shard " + newShardId + " joined the cluster, ring is now " + ring.getNodes());
+
+        int channels = 0;
+        for(final String channelName:channelMap.keySet()) {
+            if(!newShardId.equals(ring.ownerOf(channelName))) continue;
+            channels++;
+            dispatcher.execute(channelName, new Runnable() {
+                public void run() {
+                    handOffChannel(channelName, newShardId);
+                }
+            });
+        }
+        int users = 0;
+        for(final String nickname:userMap.keySet()) {
+            if(!newShardId.equals(ring.ownerOf(nickname))) continue;
+            users++;
+            dispatcher.execute(nickname, new Runnable() {
+                public void run() {
+                    handOffUser(nickname, newShardId);
+                }
+            });
+        }
+        System.out.println("- Handing " + channels + " channel(s) and " + users + " user(s) over to " + newShardId);
+    }
+
+    private void handOffChannel(String channelName, String newShardId) {
+        if(!channelMap.containsKey(channelName)) return;
+
+        List<String> members = membership.membersOf(channelName);
+        for(String nickname:members)
+            membership.remove(nickname, channelName);
+        Channel channel = channelMap.remove(channelName);
+        if(stateJournal!=null) stateJournal.logDropChannel(channelName);
+        List<Message> messages = channel.getHistory().page(Long.MAX_VALUE, Long.MAX_VALUE, historySize);
+        channel.getHistory().clear();
+
+        sendHandoff(ShardHandoff.forChannel(channelName, members, messages), newShardId);
+    }
+
+    private void handOffUser(String nickname, String newShardId) {
+        if(userMap.remove(nickname)==null) return;
+        nicknameAllocator.release(nickname);
+        revokeLease(nickname);
+        if(stateJournal!=null) stateJournal.logUnregister(nickname);
+        sendHandoff(ShardHandoff.forUser(nickname), newShardId);
+    }
+
+    private void sendHandoff(ShardHandoff handoff, String newShardId) {
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .type(ClusterProtocol.HANDOFF_TYPE)
+                .contentType(JsonWireCodec.CONTENT_TYPE)
+                .build();
+        try {
+            publishChannel().basicPublish("", ClusterProtocol.rpcQueue(newShardId), props, handoff.encode());
+        } catch (IOException e) {
+            System.err.println("- Failed to hand over to " + newShardId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes over a channel or nickname from another shard. Requests for a channel
+     * may have reached this shard before its handoff; their messages are kept
+     * after the handed-over history.
+     */
+    private void acceptHandoff(ShardHandoff handoff) throws IOException {
+        if(handoff.getNickname()!=null) {
+            if(userMap.putIfAbsent(handoff.getNickname(), new User(handoff.getNickname()))==null) {
+                nicknameAllocator.reserve(handoff.getNickname());
+                if(stateJournal!=null) stateJournal.logNick(handoff.getNickname());
+                grantLease(handoff.getNickname());
+            }
+            return;
+        }
+
+        String channelName = handoff.getChannelName();
+        MessageHistory history = new MessageHistory(historySize, historyBudget);
+        if(handoff.getMessages()!=null) {
+            for(Message message:handoff.getMessages())
+                history.restore(message);
+        }
+        Channel existing = channelMap.get(channelName);
+        if(existing!=null) {
+            for(Message message:existing.getHistory().page(Long.MAX_VALUE, Long.MAX_VALUE, historySize))
+                history.append(message.getSender(), message.getText(), message.getTimestamp());
+            existing.getHistory().clear();
+        }
+        channelMap.put(channelName, new Channel(channelName, history));
+
+        if(handoff.getMembers()!=null) {
+            for(String nickname:handoff.getMembers()) {
+                if(membership.add(nickname, channelName, stateJournal))
+                    messageRouter.memberJoined(publishChannel(), channelName, nickname);
+            }
+        }
+        System.out.println("- Took over #" + channelName + " with " + membership.memberCount(channelName) + " member(s)");
+    }
+
+    /**
+     * Hands a request to its stripe. One-way requests come from the ingest queue:
+     * only chat lines are accepted there, and a reply is sent only when the request
+     * is rejected.
+     */
+    private void dispatch(final TransportChannel channel, final long deliveryTag,
+                          final AMQP.BasicProperties props, final byte[] body, final boolean oneWay) {
+        // Left unacknowledged for the broker to redeliver
+        if(stopping) return;
+        if(ClusterProtocol.HANDOFF_TYPE.equals(props.getType())) {
+            dispatchHandoff(channel, deliveryTag, body);
+            return;
+        }
+
+        final WireCodec codec = WireCodecs.forContentType(props.getContentType());
         Request request = null;
         try {
-            request = new ObjectMapper().readValue(message, Request.class);
+            request = codec.decodeRequest(Compression.decompress(props, body));
+        } catch (IOException ignore) {
+            // Malformed requests are answered by processMessage on the default stripe
+        } catch (RuntimeException ignore) {
+            // Likewise; a codec bug must not escape to the consumer and close its channel
+        }
+
+        final Request parsedRequest = request;
+        final long deliveries = expectedDeliveries(parsedRequest);
+        reserveBacklog(deliveries);
+        dispatcher.execute(stripeKey(parsedRequest), new Runnable() {
+            public void run() {
+                boolean completing = false;
+                boolean batched = false;
+                try {
+                    String target = forwardTarget(parsedRequest, isForwarded(props));
+                    if(target!=null) {
+                        forward(target, props, body, oneWay);
+                        return;
+                    }
+
+                    if(!oneWay && isBatch(parsedRequest) && rejectBatch(parsedRequest)==null) {
+                        completing = true;
+                        batched = true;
+                        final long start = System.nanoTime();
+                        runBatch(parsedRequest, 0, new ArrayList<Response>(parsedRequest.getRequests().size()), new BatchCompletion() {
+                            public void completed(Response response) {
+                                releaseBacklog(deliveries);
+                                metrics.recordRequest(commands.get("BATCH").metricIndex, response.isStatus(), System.nanoTime() - start);
+                                complete(channel, deliveryTag, codec, props, parsedRequest, response, oneWay);
+                            }
+                        });
+                        return;
+                    }
+
+                    Response response = oneWay && !isChatLine(parsedRequest)
+                            ? new Response(false, "* Only chat messages can be sent without a reply", null)
+                            : processMessage(parsedRequest);
+                    completing = true;
+                    complete(channel, deliveryTag, codec, props, parsedRequest, response, oneWay);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    if(!batched) releaseBacklog(deliveries);
+                    if(!completing) ack(channel, deliveryTag);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replies to a request and acknowledges it. Neither happens for a state
+     * change before the journal has made it durable.
+     */
+    private void complete(final TransportChannel channel, final long deliveryTag, final WireCodec codec,
+                          final AMQP.BasicProperties props, final Request request, final Response response, final boolean oneWay) {
+        Runnable finish = new Runnable() {
+            public void run() {
+                try {
+                    reply(codec, props, request, response, oneWay);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    ack(channel, deliveryTag);
+                }
+            }
+        };
+        if(stateJournal!=null && isStateChange(request))
+            stateJournal.afterCommit(stateJournal.getLastLsn(), finish);
+        else
+            finish.run();
+    }
+
+    private void reply(WireCodec codec, AMQP.BasicProperties props, Request request, Response response, boolean oneWay) throws IOException {
+        if(props.getReplyTo()==null || (oneWay && response.isStatus()))
+            return;
+        // A one-way broadcast goes to every shard; shards without any of the user's channels stay quiet
+        if(oneWay && shardId!=null && request!=null && "BROADCAST".equalsIgnoreCase(request.getCommand()))
+            return;
+
+        byte[] body = codec.encodeResponse(response);
+        byte[] compressed = compress(body);
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(props.getCorrelationId())
+                .contentType(props.getContentType())
+                .contentEncoding(compressed==null ? null : Compression.DEFLATE)
+                .type(oneWay ? INGEST_ERROR_TYPE : null)
+                .build();
+        publishChannel().basicPublish("", props.getReplyTo(), replyProps, compressed==null ? body : compressed);
+    }
+
+    private void dispatchHandoff(final TransportChannel channel, final long deliveryTag, byte[] body) {
+        final ShardHandoff handoff;
+        try {
+            handoff = ShardHandoff.decode(body);
         } catch (IOException e) {
-            Response response = new Response();
-            response.putStatus(false);
-            response.setMessage("* Server Encountered An Error On Processing Message!");
-            return new ObjectMapper().writeValueAsString(response);
-        }
-
-        if (request.getCommand().equalsIgnoreCase("NICK")) {
-            return login(request.getNickname());
-        } else if (request.getCommand().equalsIgnoreCase("JOIN")) {
-            return join(request.getNickname(), request.getChannelName());
-        } else if (request.getCommand().equalsIgnoreCase("LEAVE")) {
-            return leave(request.getNickname(), request.getChannelName());
-        } else if (request.getCommand().equalsIgnoreCase("LOGOUT")) {
-            return logout(request.getNickname());
-        } else if (request.getCommand().equalsIgnoreCase("EXIT")) {
-            return exit(request.getNickname());
-        } else if (request.getCommand().equalsIgnoreCase("SEND")) {
-            return sendMessage(request.getNickname(), request.getChannelName(), request.getMessage());
-        } else if (request.getCommand().equalsIgnoreCase("BROADCAST")) {
-            return broadcastMessage(request.getNickname(), request.getMessage());
+            System.err.println("- Dropped malformed handoff: " + e.getMessage());
+            ack(channel, deliveryTag);
+            return;
+        }
+
+        String key = handoff.getChannelName()!=null ? handoff.getChannelName() : handoff.getNickname();
+        dispatcher.execute(key, new Runnable() {
+            public void run() {
+                try {
+                    acceptHandoff(handoff);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    ack(channel, deliveryTag);
+                }
+            }
+        });
+    }
+
+    private static void ack(TransportChannel channel, long deliveryTag) {
+        try {
+            synchronized (channel) {
+                channel.basicAck(deliveryTag);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the shard a request has to be forwarded to, or null when it is
+     * served here. State held locally is always served here, so requests queued
+     * before a handoff still see it, and anything else goes to the owner on the
+     * ring. An owner that does not hold the state yet first asks the previous
+     * owner, which either still serves it or has already queued the handoff
+     * ahead of the request it sends back.
+     */
+    private String forwardTarget(Request request, boolean forwarded) {
+        if(shardId==null || request==null || request.getCommand()==null) return null;
+
+        String key;
+        if(ClusterProtocol.isChannelCommand(request.getCommand())) {
+            key = request.getChannelName();
+            if(key==null || channelMap.containsKey(key)) return null;
+        } else if(request.getCommand().equalsIgnoreCase("NICK") || request.getCommand().equalsIgnoreCase("PING")) {
+            key = request.getNickname();
+            if(key==null || key.isEmpty() || userMap.containsKey(key)) return null;
         } else {
-            Response response = new Response();
+            return null;
+        }
+
+        String owner = ring.ownerOf(key);
+        if(!owner.equals(shardId)) return owner;
+
+        ConsistentHashRing previous = previousRing;
+        return forwarded || previous==null ? null : previous.ownerOf(key);
+    }
+
+    private static boolean isForwarded(AMQP.BasicProperties props) {
+        return props.getHeaders()!=null && props.getHeaders().containsKey(ClusterProtocol.FORWARDED_BY_HEADER);
+    }
+
+    private void forward(String target, AMQP.BasicProperties props, byte[] body, boolean oneWay) throws IOException {
+        Map<String, Object> headers = props.getHeaders()==null
+                ? new HashMap<String, Object>() : new HashMap<String, Object>(props.getHeaders());
+        headers.put(ClusterProtocol.FORWARDED_BY_HEADER, shardId);
+        String queueName = oneWay ? ClusterProtocol.ingestQueue(target) : ClusterProtocol.rpcQueue(target);
+        publishChannel().basicPublish("", queueName, props.builder().headers(headers).build(), body);
+    }
+
+    private static boolean isStateChange(Request request) {
+        if(request==null || request.getCommand()==null) return false;
+        String command = request.getCommand();
+        if(isBatch(request) && request.getRequests()!=null) {
+            for(Request item:request.getRequests()) {
+                if(isStateChange(item)) return true;
+            }
+            return false;
+        }
+        return command.equalsIgnoreCase("NICK") || command.equalsIgnoreCase("JOIN") || command.equalsIgnoreCase("LEAVE")
+                || command.equalsIgnoreCase("LOGOUT") || command.equalsIgnoreCase("EXIT");
+    }
+
+    private static boolean isBatch(Request request) {
+        return request!=null && "BATCH".equalsIgnoreCase(request.getCommand());
+    }
+
+    private static boolean isChatLine(Request request) {
+        return request!=null && request.getCommand()!=null
+                && (request.getCommand().equalsIgnoreCase("SEND") || request.getCommand().equalsIgnoreCase("BROADCAST"));
+    }
+
+    /**
+     * Returns the publishing channel of the calling worker, reopening it if a
+     * failed broker operation has closed it.
+     */
+    private TransportChannel publishChannel() throws IOException {
+        TransportChannel channel = messageOutChannel.get();
+        if(channel==null || !channel.isOpen()) {
+            channel = new MeteredTransportChannel(transport.openChannel(), metrics);
+            messageOutChannel.set(channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Channel-scoped commands are ordered per channel so that SEND messages in a
+     * channel keep their order, everything else is ordered per user. A BROADCAST
+     * runs on its sender's stripe, so it may interleave with SENDs to the same
+     * channels.
+     */
+    private static String stripeKey(Request request) {
+        if(request==null || request.getCommand()==null) return null;
+
+        if(ClusterProtocol.isChannelCommand(request.getCommand()))
+            return request.getChannelName();
+        return request.getNickname();
+    }
+
+    Response processMessage(Request request) {
+        long start = System.nanoTime();
+        CommandHandler handler = request==null ? null : commandFor(request.getCommand());
+        Response response;
+        if(handler!=null) {
+            response = handler.handle(request);
+        } else {
+            response = new Response();
             response.putStatus(false);
-            response.setMessage("* Unknown Message Command!");
-            return new ObjectMapper().writeValueAsString(response);
+            response.setMessage(request==null || request.getCommand()==null
+                    ? "* Server Encountered An Error On Processing Message!" : "* Unknown Message Command!");
         }
+        metrics.recordRequest(handler==null ? ServerMetrics.indexOf(null) : handler.metricIndex,
+                response.isStatus(), System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Looks a command up in the command table. Clients send upper-case commands,
+     * so only other spellings pay for the case conversion.
+     */
+    private CommandHandler commandFor(String command) {
+        if(command==null) return null;
+        CommandHandler handler = commands.get(command);
+        return handler!=null ? handler : commands.get(command.toUpperCase(Locale.ROOT));
     }
 
-    private static String login(String nickname) {
-        System.out.println("- Login method invoked");
+    private Map<String, CommandHandler> createCommandTable() {
+        Map<String, CommandHandler> table = new HashMap<String, CommandHandler>();
+        table.put("NICK", new CommandHandler("NICK") {
+            Response handle(Request request) {
+                return login(request.getNickname());
+            }
+        });
+        table.put("JOIN", new CommandHandler("JOIN") {
+            Response handle(Request request) {
+                return join(request.getNickname(), request.getChannelName());
+            }
+        });
+        table.put("LEAVE", new CommandHandler("LEAVE") {
+            Response handle(Request request) {
+                return leave(request.getNickname(), request.getChannelName());
+            }
+        });
+        table.put("LOGOUT", new CommandHandler("LOGOUT") {
+            Response handle(Request request) {
+                return logout(request.getNickname());
+            }
+        });
+        table.put("EXIT", new CommandHandler("EXIT") {
+            Response handle(Request request) {
+                return exit(request.getNickname());
+            }
+        });
+        table.put("SEND", new CommandHandler("SEND") {
+            Response handle(Request request) {
+                return sendMessage(request.getNickname(), request.getChannelName(), request.getMessage());
+            }
+        });
+        table.put("BROADCAST", new CommandHandler("BROADCAST") {
+            Response handle(Request request) {
+                return broadcastMessage(request.getNickname(), request.getMessage());
+            }
+        });
+        table.put("HISTORY", new CommandHandler("HISTORY") {
+            Response handle(Request request) {
+                return history(request.getNickname(), request.getChannelName(), request.getBefore(),
+                        request.getBeforeTimestamp(), request.getLimit());
+            }
+        });
+        table.put("PING", new CommandHandler("PING") {
+            Response handle(Request request) {
+                return ping(request.getNickname());
+            }
+        });
+        table.put("REPLAY", new CommandHandler("REPLAY") {
+            Response handle(Request request) {
+                return replay(request.getNickname());
+            }
+        });
+        table.put("BATCH", new CommandHandler("BATCH") {
+            Response handle(Request request) {
+                return batch(request);
+            }
+        });
+        return table;
+    }
+
+    /**
+     * Runs the requests of a batch in order on the calling thread. Requests
+     * from the broker take {@link #runBatch} instead, which keeps every item on
+     * its own stripe.
+     */
+    private Response batch(Request batch) {
+        Response rejection = rejectBatch(batch);
+        if(rejection!=null) return rejection;
+
+        List<Response> responses = new ArrayList<Response>(batch.getRequests().size());
+        for(Request item:batch.getRequests())
+            responses.add(processBatchItem(item));
+        return Response.ofBatch(batch.getNickname(), responses);
+    }
+
+    /**
+     * Runs the requests of a batch one after the other, each on the stripe it
+     * would have been dispatched to on its own, and completes with the
+     * collected responses.
+     */
+    private void runBatch(final Request batch, final int index,
+                          final List<Response> responses, final BatchCompletion completion) {
+        if(index==batch.getRequests().size()) {
+            completion.completed(Response.ofBatch(batch.getNickname(), responses));
+            return;
+        }
+
+        final Request item = batch.getRequests().get(index);
+        dispatcher.execute(stripeKey(item), new Runnable() {
+            public void run() {
+                try {
+                    responses.add(processBatchItem(item));
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    responses.add(new Response(false, "* Server Encountered An Error On Processing Message!", null));
+                }
+                runBatch(batch, index + 1, responses, completion);
+            }
+        });
+    }
+
+    private static Response rejectBatch(Request batch) {
+        List<Request> items = batch.getRequests();
+        if(items==null || items.isEmpty())
+            return new Response(false, "* Empty batch", null);
+        if(items.size() > MAX_BATCH_SIZE)
+            return new Response(false, "* A batch holds at most " + MAX_BATCH_SIZE + " requests", null);
+        return null;
+    }
+
+    private Response processBatchItem(Request item) {
+        if(isBatch(item))
+            return new Response(false, "* Batches cannot be nested", null);
+        // The client splits batches by owning shard, so items are not passed on to a previous owner
+        if(forwardTarget(item, true)!=null)
+            return new Response(false, "* Request belongs to another shard, please retry", null);
+        return processMessage(item);
+    }
+
+    private Response login(String nickname) {
+        loginEvent.log(nickname);
         StringBuilder message = new StringBuilder();
+        String requestedNickname = nickname;
 
-        if(nickname==null || nickname.isEmpty() || userMap.containsKey(nickname)) {
-            if(userMap.containsKey(nickname)) message.append("* Username exist!\n");
-            nickname = generateRandomNickname();
+        if(nickname!=null && !nickname.isEmpty() && userMap.putIfAbsent(nickname, new User(nickname))==null) {
+            nicknameAllocator.reserve(nickname);
+        } else {
+            if(nickname!=null && !nickname.isEmpty()) message.append("* Username exist!\n");
+            do {
+                nickname = allocateNickname();
+                if(nickname==null) {
+                    nicknamesExhaustedEvent.log();
+                    return new Response(false, "* No random nickname left, please choose a nickname", null);
+                }
+            } while(userMap.putIfAbsent(nickname, new User(nickname))!=null);
             message.append("* Random user generated\n");
         }
         message.append("* Successfully logged in as " + nickname);
+        if(stateJournal!=null) stateJournal.logNick(nickname);
+        grantLease(nickname);
 
-        userMap.put(nickname, new User(nickname));
+        User previous = nickname.equals(requestedNickname) ? offlineUserMap.remove(nickname) : null;
+        if(previous!=null) {
+            int replayed = replayMissedMessages(previous);
+            if(replayed > 0) message.append("\n* " + replayed + " message(s) sent while you were away");
+        }
 
         Response response = new Response(true, message.toString(), nickname);
-        return response.toString();
+        return response;
     }
 
-    private static String generateRandomNickname() {
-        String newNickname;
-        Random random = new Random();
-        do {
-            newNickname = "user" + random.nextInt(MAX_GENERATED_RANDOM_ACCOUNT_INT);
-        } while(userMap.containsKey(newNickname));
+    /**
+     * Allocates a random nickname. A shard only hands out nicknames it owns, so
+     * that a later login with the same name reaches the shard that knows it.
+     */
+    private String allocateNickname() {
+        if(shardId==null) return nicknameAllocator.allocate();
 
-        return newNickname;
+        List<String> foreign = new ArrayList<String>();
+        try {
+            String nickname;
+            while((nickname = nicknameAllocator.allocate())!=null) {
+                if(ring.ownerOf(nickname).equals(shardId)) return nickname;
+                foreign.add(nickname);
+            }
+            return null;
+        } finally {
+            for(String nickname:foreign)
+                nicknameAllocator.release(nickname);
+        }
     }
 
-    public static String join(String nickname, String channelName) {
-        System.out.println("- " + nickname + " requested to join #" + channelName);
+    /**
+     * Replays what the channels of this server logged since the user's last
+     * logout. A single server does this on login; in a cluster the client sends
+     * REPLAY to the shards other than the one that logged the user in.
+     */
+    private Response replay(String nickname) {
+        User previous = nickname==null ? null : offlineUserMap.remove(nickname);
+        int replayed = previous==null ? 0 : replayMissedMessages(previous);
+        return new Response(true, replayed > 0 ? "* " + replayed + " message(s) sent while you were away" : "", nickname);
+    }
+
+    /**
+     * Streams what was logged in the user's former channels since the last logout
+     * straight to the user's queue.
+     */
+    private int replayMissedMessages(final User previous) {
+        if(channelLogStore==null) return 0;
+
+        final String nickname = previous.getNickname();
+        final int[] count = new int[1];
+        try {
+            final TransportChannel channel = publishChannel();
+            channel.queueDeclare(nickname, false, false, true);
+            for(final String channelName:previous.getJoinedChannel()) {
+                ChannelLog log = channelLogStore.find(channelName);
+                if(log==null) continue;
+
+                log.replay(previous.getLogoutTimestamp(), new ChannelLog.RecordHandler() {
+                    public void handle(Message message) throws IOException {
+                        byte[] body = ChatPayload.encode(channelName, message);
+                        byte[] compressed = compress(body);
+                        if(compressed!=null)
+                            channel.basicPublish("", nickname, ChatPayload.COMPRESSED_PROPERTIES, compressed);
+                        else
+                            channel.basicPublish("", nickname, ChatPayload.PROPERTIES, body);
+                        count[0]++;
+                    }
+                });
+            }
+        } catch (IOException e) {
+            replayFailedEvent.log(nickname, e.getMessage());
+        }
+        return count[0];
+    }
+
+    public Response join(String nickname, String channelName) {
+        joinEvent.log(nickname, channelName);
+        Response rejection = rejectMissingNames(nickname, channelName);
+        if(rejection!=null) return rejection;
 
-        List userChannelList = userMap.get(nickname).getJoinedChannel();
         StringBuilder message = new StringBuilder();
         Response response = new Response();
 
-        if(userChannelList.contains(channelName)) {
+        // Shards only see the logins of the nicknames they own; the client checks the login
+        if(shardId==null && !userMap.containsKey(nickname)) {
+            message.append("* Please login first!");
+            response.putStatus(false);
+        } else if(membership.contains(nickname, channelName)) {
             message.append("* You are already a member of #" + channelName);
             response.putStatus(false);
         } else {
+            try {
+                messageRouter.memberJoined(publishChannel(), channelName, nickname);
+            } catch (IOException e) {
+                e.printStackTrace();
+                response.putStatus(false);
+                response.setMessage("* Server Encountered An Error On Joining #" + channelName);
+                return response;
+            }
+
             if(!channelMap.containsKey(channelName)) {
-                channelMap.put(channelName, new Channel(channelName));
-                messageListMap.put(channelName, new ArrayList<Message>());
-                channelMemberMap.put(channelName, new ArrayList<String>());
+                channelMap.put(channelName, new Channel(channelName, new MessageHistory(historySize, historyBudget)));
                 message.append("* Created new channel #" + channelName + "\n");
             }
 
-            userChannelList.add(channelName);
-            channelMemberMap.get(channelName).add(nickname);
+            // LOGOUT runs on the user's stripe, so the login is checked again under the index lock
+            if(!membership.add(nickname, channelName, stateJournal, shardId==null ? userMap : null)) {
+                unroute(channelName, nickname);
+                response.putStatus(false);
+                response.setMessage("* Please login first!");
+                return response;
+            }
             message.append("* #" + channelName + " joined successfully");
             response.putStatus(true);
         }
 
         response.setMessage(message.toString());
-        return response.toString();
+        return response;
     }
 
-    public static String leave(String nickname, String channelName) {
-        System.out.println("- " + nickname + " request to leave #" + channelName);
+    public Response leave(String nickname, String channelName) {
+        leaveEvent.log(nickname, channelName);
+        Response rejection = rejectMissingNames(nickname, channelName);
+        if(rejection!=null) return rejection;
 
         StringBuilder message = new StringBuilder();
         Response response = new Response();
 
-        if(!userMap.get(nickname).getJoinedChannel().contains(channelName)) {
-            System.err.println("- Failed to leave channel. " + nickname + " is not a member of #" + channelName);
+        if(!membership.remove(nickname, channelName, stateJournal)) {
+            leaveRejectedEvent.log(nickname, channelName);
             message.append("* Failed to leave.\n* You are not a member of #" + channelName);
             response.putStatus(false);
         } else {
-            userMap.get(nickname).getJoinedChannel().remove(channelName);
-            channelMemberMap.get(channelName).remove(nickname);
+            unroute(channelName, nickname);
             response.putStatus(true);
             message.append("* You are no longer a member of #" + channelName);
         }
 
         response.setMessage(message.toString());
-        return response.toString();
+        return response;
     }
 
-    public static String logout(String nickname) {
-        System.out.println("- " + nickname + " requested to logout");
-        userMap.remove(nickname);
-        for (List<String> nicknameList : channelMemberMap.values()) {
-            nicknameList.remove(nickname);
+    public Response logout(String nickname) {
+        logoutEvent.log(nickname);
+        if(nickname==null || nickname.isEmpty())
+            return new Response(false, "* Please login first!", null);
+        User user = userMap.remove(nickname);
+        List<String> joinedChannels = membership.removeUser(nickname, stateJournal, user!=null);
+        if(user!=null) nicknameAllocator.release(nickname);
+        revokeLease(nickname);
+        for(String channelName:joinedChannels)
+            unroute(channelName, nickname);
+        // A shard remembers the channels it served even when another shard holds the login
+        if(user==null && shardId!=null && !joinedChannels.isEmpty())
+            user = new User(nickname);
+        if(user!=null) {
+            if(channelLogStore!=null) {
+                user.setJoinedChannel(joinedChannels);
+                user.setLogoutTimestamp(System.currentTimeMillis());
+                offlineUserMap.put(nickname, user);
+            }
         }
 
         Response response = new Response();
         response.putStatus(true);
         response.setMessage("* " + nickname + " have been logged out");
 
-        return response.toString();
+        return response;
+    }
+
+    /**
+     * Rejects a channel command without a nickname or channel name, which the
+     * index cannot look up, or returns null.
+     */
+    private static Response rejectMissingNames(String nickname, String channelName) {
+        if(nickname==null || nickname.isEmpty())
+            return new Response(false, "* Please login first!", null);
+        if(channelName==null || channelName.isEmpty())
+            return new Response(false, "* Please name a channel", nickname);
+        return null;
+    }
+
+    private void unroute(String channelName, String nickname) {
+        try {
+            messageRouter.memberLeft(publishChannel(), channelName, nickname);
+        } catch (IOException e) {
+            unbindFailedEvent.log(nickname, channelName, e.getMessage());
+        }
     }
 
-    public static String exit(String nickname) {
+    public Response exit(String nickname) {
         return logout(nickname);
     }
 
-    public static String sendMessage(String nickname, String channelName, String message) {
-        System.out.println("- " + nickname + " sends a message to #" + channelName);
+    public Response sendMessage(String nickname, String channelName, String message) {
+        sendEvent.log(nickname, channelName);
+        Response rejection = rejectMissingNames(nickname, channelName);
+        if(rejection!=null) return rejection;
+
         StringBuilder returnedMessage = new StringBuilder();
         Response response = new Response();
 
-        List<String> userChannelList = userMap.get(nickname).getJoinedChannel();
-        if(!userChannelList.contains(channelName)) {
-            System.err.println("- Failed to send " + nickname + " message to #" + channelName + ". User is not a member of the channel.");
+        if(!membership.contains(nickname, channelName)) {
+            sendRejectedEvent.log(nickname, channelName);
             returnedMessage.append("* You are not a member of #" + channelName);
             response.putStatus(false);
+        } else if(!acquireSendPermits(nickname, Collections.singletonList(channelName), returnedMessage)) {
+            response.putStatus(false);
         } else {
             try {
                 Message msg = new Message(nickname, message);
@@ -221,25 +1657,27 @@ public class RpcServer {
                 e.printStackTrace();
                 response.putStatus(false);
                 response.setMessage("* Server Encountered An Error On Publishing the Message");
-                return response.toString();
+                return response;
             }
             response.putStatus(true);
         }
 
         response.setMessage(returnedMessage.toString());
-        return response.toString();
+        return response;
     }
 
-    public static String broadcastMessage(String nickname, String message) {
-        System.out.println("- " + nickname + " broadcasts a message");
+    public Response broadcastMessage(String nickname, String message) {
+        broadcastEvent.log(nickname);
         StringBuilder returnedMessage = new StringBuilder();
         Response response = new Response();
 
-        List<String> userChannelList = userMap.get(nickname).getJoinedChannel();
+        List<String> userChannelList = membership.channelsOf(nickname);
         if(userChannelList.size()==0) {
-            System.err.println("- Failed to send " + nickname + " message. No channel found.");
+            broadcastRejectedEvent.log(nickname);
             returnedMessage.append("* Failed to send the message\n* You haven't join any channel yet");
             response.putStatus(false);
+        } else if(!acquireSendPermits(nickname, userChannelList, returnedMessage)) {
+            response.putStatus(false);
         } else {
             try {
                 Message msg = new Message(nickname, message);
@@ -248,28 +1686,152 @@ public class RpcServer {
                 e.printStackTrace();
                 response.putStatus(false);
                 response.setMessage("* Server Encountered An Error On Publishing the Message");
-                return response.toString();
+                return response;
             }
             response.putStatus(true);
         }
 
         response.setMessage(returnedMessage.toString());
-        return response.toString();
+        return response;
     }
 
-    public static void distributeMessage(Message message, List<String> userChannelList) throws IOException {
+    /**
+     * Takes a token per channel from the sender's bucket and one from the bucket
+     * of every channel, all or none. Appends the reason of a rejection to
+     * {@code rejection}.
+     */
+    private boolean acquireSendPermits(String nickname, List<String> channelNames, StringBuilder rejection) {
+        if(userRateLimiter!=null && !userRateLimiter.tryAcquire(nickname, channelNames.size())) {
+            rateLimitedEvent.log(nickname, null);
+            rejection.append("* You are sending messages too fast, please slow down");
+            return false;
+        }
+        if(channelRateLimiter==null) return true;
+
+        for(int i=0; i<channelNames.size(); i++) {
+            if(!channelRateLimiter.tryAcquire(channelNames.get(i), 1)) {
+                for(int j=0; j<i; j++)
+                    channelRateLimiter.release(channelNames.get(j), 1);
+                if(userRateLimiter!=null)
+                    userRateLimiter.release(nickname, channelNames.size());
+                rateLimitedEvent.log(nickname, channelNames.get(i));
+                rejection.append("* #" + channelNames.get(i) + " is receiving too many messages, please retry later");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Response history(String nickname, String channelName, Long before, Long beforeTimestamp, Integer limit) {
+        historyEvent.log(nickname, channelName);
+        Response rejection = rejectMissingNames(nickname, channelName);
+        if(rejection!=null) return rejection;
+
+        Response response = new Response();
+
+        if(!membership.contains(nickname, channelName)) {
+            response.putStatus(false);
+            response.setMessage("* You are not a member of #" + channelName);
+            return response;
+        }
+
+        // A handoff may have moved the channel away since the membership check
+        Channel channel = channelMap.get(channelName);
+        int pageSize = limit==null ? DEFAULT_HISTORY_PAGE_SIZE : Math.min(limit, historySize);
+        response.setMessages(channel==null ? Collections.<Message>emptyList() : channel.getHistory().page(
+                before==null ? Long.MAX_VALUE : before,
+                beforeTimestamp==null ? Long.MAX_VALUE : beforeTimestamp,
+                pageSize));
+        response.putStatus(true);
+        response.setMessage("");
+        return response;
+    }
+
+    /**
+     * Sends a broadcast to every channel of the list. When the router publishes
+     * per member, it is delivered once to each member however many of the
+     * channels they share with the sender; members in the same channels get
+     * the same bytes, listing those channels. Otherwise every channel gets one
+     * publish, which the broker copies to its members.
+     */
+    public void distributeMessage(Message message, List<String> userChannelList) throws IOException {
+        if(userChannelList.size()==1 || !messageRouter.publishesPerMember()) {
+            for(String channelName:userChannelList)
+                distributeMessage(message, channelName);
+            return;
+        }
+
+        List<String> channelNames = new ArrayList<String>(userChannelList.size());
+        List<Message> storedMessages = new ArrayList<Message>(userChannelList.size());
         for(String channelName:userChannelList) {
-            String enrichedMessage = "@" + channelName + " " + message.getSender() + ": " + message.getText();
-            for(String routingKey:channelMemberMap.get(channelName)) {
-                messageOutChannel.basicPublish(MESSAGE_EXCHANGE_NAME, routingKey, null, enrichedMessage.getBytes());
+            Message stored = store(message, channelName);
+            if(stored==null) continue;
+            channelNames.add(channelName);
+            storedMessages.add(stored);
+        }
+
+        Map<BitSet, List<String>> groups = membership.membersByChannelSet(channelNames);
+        int recipients = 0;
+        for(List<String> members:groups.values())
+            recipients += members.size();
+
+        metrics.recordFanout(recipients);
+        TransportChannel channel = publishChannel();
+        for(Map.Entry<BitSet, List<String>> group:groups.entrySet()) {
+            BitSet shared = group.getKey();
+            List<String> groupChannels = new ArrayList<String>(shared.cardinality());
+            List<Message> groupMessages = new ArrayList<Message>(shared.cardinality());
+            for(int i=shared.nextSetBit(0); i>=0; i=shared.nextSetBit(i + 1)) {
+                groupChannels.add(channelNames.get(i));
+                groupMessages.add(storedMessages.get(i));
             }
+            byte[] body = ChatPayload.encode(groupChannels, groupMessages);
+            byte[] compressed = compress(body);
+            if(compressed!=null)
+                messageRouter.publishToMembers(channel, group.getValue(), ChatPayload.COMPRESSED_PROPERTIES, compressed);
+            else
+                messageRouter.publishToMembers(channel, group.getValue(), ChatPayload.PROPERTIES, body);
         }
     }
 
-    public static void distributeMessage(Message message, String channelName) throws IOException {
-        String enrichedMessage = "@" + channelName + " " + message.getSender()+ ": " + message.getText();
-        for(String routingKey:channelMemberMap.get(channelName)) {
-            messageOutChannel.basicPublish(MESSAGE_EXCHANGE_NAME, routingKey, null, enrichedMessage.getBytes());
+    public void distributeMessage(Message message, String channelName) throws IOException {
+        Message stored = store(message, channelName);
+        if(stored==null) return;
+        // Encoded and compressed once; every recipient gets the same bytes
+        byte[] body = ChatPayload.encode(channelName, stored);
+        byte[] compressed = compress(body);
+        List<String> members = membership.membersOf(channelName);
+        metrics.recordFanout(members.size());
+        if(compressed!=null)
+            messageRouter.publish(publishChannel(), channelName, members, ChatPayload.COMPRESSED_PROPERTIES, compressed);
+        else
+            messageRouter.publish(publishChannel(), channelName, members, ChatPayload.PROPERTIES, body);
+    }
+
+    /**
+     * Returns the compressed body, or null when compression is off or not worth it.
+     */
+    private byte[] compress(byte[] body) {
+        return compression==null ? null : compression.compress(body);
+    }
+
+    /**
+     * Appends a message to the history and log of a channel and returns it with
+     * its sequence number there, or null when the channel is not served here.
+     */
+    private Message store(Message message, String channelName) {
+        Channel channel = channelMap.get(channelName);
+        // A broadcast can race with the handoff of one of its channels to another shard
+        if(channel==null) return null;
+
+        Message stored = channel.getHistory().append(message.getSender(), message.getText(), message.getTimestamp());
+        if(channelLogStore!=null) {
+            try {
+                channelLogStore.get(channelName).append(message);
+            } catch (IOException e) {
+                channelLogFailedEvent.log(channelName, e.getMessage());
+            }
         }
+        return stored;
     }
 }
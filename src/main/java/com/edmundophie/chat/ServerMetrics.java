@@ -0,0 +1,180 @@
+package com.edmundophie.chat;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, histograms and gauges of a running {@link RpcServer}. The record
+ * methods are called on the request path, so they only touch preallocated
+ * adders and histograms; formatting happens when the metrics are read, through
+ * JMX or the {@link MetricsHttpServer}.
+ */
+public class ServerMetrics implements DynamicMBean {
+    static final String[] COMMANDS = {"NICK", "JOIN", "LEAVE", "LOGOUT", "EXIT", "SEND", "BROADCAST", "HISTORY", "BATCH", "PING", "REPLAY", "OTHER"};
+
+    public interface Gauge {
+        long get();
+    }
+
+    private final LongAdder[] requestCounts = new LongAdder[COMMANDS.length];
+    private final LongAdder[] failureCounts = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram[] requestLatencies = new LatencyHistogram[COMMANDS.length];
+    private final LatencyHistogram fanoutSizes = new LatencyHistogram();
+    private final LatencyHistogram deliveryBatchSizes = new LatencyHistogram();
+    private final LongAdder publishCount = new LongAdder();
+    private final LongAdder publishFailures = new LongAdder();
+    private final LongAdder publishedBytes = new LongAdder();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private final long startNanos = System.nanoTime();
+
+    public ServerMetrics() {
+        for(int i=0; i<COMMANDS.length; i++) {
+            requestCounts[i] = new LongAdder();
+            failureCounts[i] = new LongAdder();
+            requestLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void recordRequest(String command, boolean succeeded, long elapsedNanos) {
+        recordRequest(indexOf(command), succeeded, elapsedNanos);
+    }
+
+    /**
+     * Records a request under the index {@link #indexOf} returned for its command.
+     */
+    public void recordRequest(int index, boolean succeeded, long elapsedNanos) {
+        requestCounts[index].increment();
+        if(!succeeded)
+            failureCounts[index].increment();
+        requestLatencies[index].record(elapsedNanos);
+    }
+
+    public void recordFanout(int recipients) {
+        fanoutSizes.record(recipients);
+    }
+
+    public void recordDeliveryBatch(int messages) {
+        deliveryBatchSizes.record(messages);
+    }
+
+    public void recordPublish(int bytes) {
+        publishCount.increment();
+        publishedBytes.add(bytes);
+    }
+
+    public void recordPublishFailure() {
+        publishFailures.increment();
+    }
+
+    public synchronized void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the current value of every metric by name, in a stable order.
+     * Latencies are in microseconds.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        double uptimeSeconds = (System.nanoTime() - startNanos) / 1e9;
+        values.put("uptime_seconds", uptimeSeconds);
+
+        for(int i=0; i<COMMANDS.length; i++) {
+            String prefix = "rpc." + COMMANDS[i].toLowerCase() + ".";
+            LatencyHistogram latency = requestLatencies[i];
+            values.put(prefix + "count", requestCounts[i].sum());
+            values.put(prefix + "failures", failureCounts[i].sum());
+            values.put(prefix + "latency_mean_us", latency.getMean() / 1000.0);
+            values.put(prefix + "latency_p50_us", latency.getValueAtPercentile(50) / 1000.0);
+            values.put(prefix + "latency_p99_us", latency.getValueAtPercentile(99) / 1000.0);
+            values.put(prefix + "latency_p999_us", latency.getValueAtPercentile(99.9) / 1000.0);
+            values.put(prefix + "latency_max_us", latency.getMax() / 1000.0);
+        }
+
+        values.put("fanout.count", fanoutSizes.getTotalCount());
+        values.put("fanout.recipients_mean", fanoutSizes.getMean());
+        values.put("fanout.recipients_p50", fanoutSizes.getValueAtPercentile(50));
+        values.put("fanout.recipients_p99", fanoutSizes.getValueAtPercentile(99));
+        values.put("fanout.recipients_max", fanoutSizes.getMax());
+
+        values.put("delivery_batch.count", deliveryBatchSizes.getTotalCount());
+        values.put("delivery_batch.messages_mean", deliveryBatchSizes.getMean());
+        values.put("delivery_batch.messages_p99", deliveryBatchSizes.getValueAtPercentile(99));
+        values.put("delivery_batch.messages_max", deliveryBatchSizes.getMax());
+
+        long published = publishCount.sum();
+        values.put("publish.count", published);
+        values.put("publish.rate_per_second", uptimeSeconds > 0 ? published / uptimeSeconds : 0);
+        values.put("publish.bytes", publishedBytes.sum());
+        values.put("publish.failures", publishFailures.sum());
+
+        synchronized (this) {
+            for(Map.Entry<String, Gauge> gauge:gauges.entrySet())
+                values.put("gauge." + gauge.getKey(), gauge.getValue().get());
+        }
+        return values;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if(value==null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = snapshot();
+        AttributeList list = new AttributeList();
+        for(String attribute:attributes) {
+            if(values.containsKey(attribute))
+                list.add(new Attribute(attribute, values.get(attribute)));
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for(Map.Entry<String, Number> value:snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Chat server metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * Returns the index a command is recorded under; unknown commands share the
+     * last one.
+     */
+    static int indexOf(String command) {
+        if(command!=null) {
+            for(int i=0; i<COMMANDS.length - 1; i++) {
+                if(COMMANDS[i].equalsIgnoreCase(command)) return i;
+            }
+        }
+        return COMMANDS.length - 1;
+    }
+}
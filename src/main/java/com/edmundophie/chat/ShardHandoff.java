@@ -0,0 +1,81 @@
+package com.edmundophie.chat;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * State that a shard hands to the new owner of a channel or a nickname after
+ * the ring has changed. A channel handoff carries the members and the kept
+ * history of the channel, a user handoff only the nickname registration.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ShardHandoff {
+    private static final ObjectReader READER = JsonWireCodec.mapper().readerFor(ShardHandoff.class);
+    private static final ObjectWriter WRITER = JsonWireCodec.mapper().writer();
+
+    private String channelName;
+    private List<String> members;
+    private List<Message> messages;
+    private String nickname;
+
+    public ShardHandoff() {
+    }
+
+    public static ShardHandoff forChannel(String channelName, List<String> members, List<Message> messages) {
+        ShardHandoff handoff = new ShardHandoff();
+        handoff.channelName = channelName;
+        handoff.members = members;
+        handoff.messages = messages;
+        return handoff;
+    }
+
+    public static ShardHandoff forUser(String nickname) {
+        ShardHandoff handoff = new ShardHandoff();
+        handoff.nickname = nickname;
+        return handoff;
+    }
+
+    public String getChannelName() {
+        return channelName;
+    }
+
+    public void setChannelName(String channelName) {
+        this.channelName = channelName;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    public void setMembers(List<String> members) {
+        this.members = members;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<Message> messages) {
+        this.messages = messages;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    public byte[] encode() throws IOException {
+        return WRITER.writeValueAsBytes(this);
+    }
+
+    public static ShardHandoff decode(byte[] body) throws IOException {
+        return READER.readValue(body);
+    }
+}
@@ -0,0 +1,484 @@
+package com.edmundophie.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the session state of a server (logins and channel
+ * memberships) with periodic snapshots, so a restarted server gets its state
+ * back without every client logging in and joining again.
+ *
+ * Records are appended to an in-memory batch and a committer thread writes and
+ * syncs the batch every commit interval, so concurrent changes share one sync.
+ * Every record gets a log sequence number; {@link #afterCommit} runs an action
+ * once a record is durable. A snapshot starts a new journal file and writes the
+ * full state next to it; journal files and snapshots it makes obsolete are
+ * deleted. Replaying records on top of a snapshot is idempotent, so snapshots
+ * are taken while the server keeps changing its state.
+ */
+public class StateJournal {
+    private static final byte NICK = 1;
+    private static final byte UNREGISTER = 2;
+    private static final byte JOIN = 3;
+    private static final byte LEAVE = 4;
+    private static final byte LOGOUT = 5;
+    private static final byte DROP_CHANNEL = 6;
+    private static final byte SNAPSHOT_CHANNEL = 7;
+    private static final byte SNAPSHOT_END = 0;
+    private static final int SNAPSHOT_MAGIC = 0x43485331;
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    /**
+     * Receives the state read back from the snapshot and the journal.
+     */
+    public interface StateHandler {
+        void register(String nickname);
+
+        void unregister(String nickname);
+
+        void join(String nickname, String channelName);
+
+        void leave(String nickname, String channelName);
+
+        void logout(String nickname);
+
+        void dropChannel(String channelName);
+    }
+
+    /**
+     * Writes the current state into a snapshot.
+     */
+    public interface SnapshotSource {
+        void writeTo(SnapshotWriter writer) throws IOException;
+    }
+
+    public static class SnapshotWriter {
+        private final DataOutputStream out;
+
+        SnapshotWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void user(String nickname) throws IOException {
+            out.writeByte(NICK);
+            out.writeUTF(nickname);
+        }
+
+        public void channel(String channelName, Collection<String> members) throws IOException {
+            out.writeByte(SNAPSHOT_CHANNEL);
+            out.writeUTF(channelName);
+            out.writeInt(members.size());
+            for(String nickname:members)
+                out.writeUTF(nickname);
+        }
+    }
+
+    private static class PendingAction {
+        private final long lsn;
+        private final Runnable action;
+
+        PendingAction(long lsn, Runnable action) {
+            this.lsn = lsn;
+            this.action = action;
+        }
+    }
+
+    private final File dir;
+    private final ScheduledExecutorService committer;
+    private final Object fileLock = new Object();
+    private final List<PendingAction> pendingActions = new ArrayList<PendingAction>();
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private FileChannel file;
+    private long lastLsn;
+    private volatile long durableLsn;
+
+    public StateJournal(File dir, long commitIntervalMillis) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create journal directory " + dir);
+        if(commitIntervalMillis < 1)
+            throw new IllegalArgumentException("Commit interval must be positive: " + commitIntervalMillis);
+        this.dir = dir;
+
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "journal-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    commit();
+                } catch (Exception e) {
+                    System.err.println("- Journal commit failed: " + e.getMessage());
+                }
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the latest snapshot and the journal written after it into the
+     * handler and opens a new journal file for appending. Must be called once,
+     * before anything is appended. Returns the number of records replayed.
+     */
+    public long recover(StateHandler handler) throws IOException {
+        long snapshotLsn = 0;
+        File snapshot = latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if(snapshot!=null)
+            snapshotLsn = readSnapshot(snapshot, handler);
+
+        long lsn = snapshotLsn;
+        long replayed = 0;
+        for(File journal:list(JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            long start = lsnOf(journal, JOURNAL_PREFIX, JOURNAL_SUFFIX);
+            if(start > lsn + 1) {
+                System.err.println("- Journal gap before " + journal.getName() + ", ignoring it and later files");
+                break;
+            }
+            long[] result = replay(journal, start, snapshotLsn, handler);
+            lsn = Math.max(lsn, result[0]);
+            replayed += result[1];
+        }
+
+        synchronized (fileLock) {
+            synchronized (this) {
+                lastLsn = lsn;
+            }
+            durableLsn = lsn;
+            file = openJournal(lsn + 1);
+        }
+        return replayed;
+    }
+
+    public long logNick(String nickname) {
+        return append(NICK, nickname, null);
+    }
+
+    public long logUnregister(String nickname) {
+        return append(UNREGISTER, nickname, null);
+    }
+
+    public long logJoin(String nickname, String channelName) {
+        return append(JOIN, nickname, channelName);
+    }
+
+    public long logLeave(String nickname, String channelName) {
+        return append(LEAVE, nickname, channelName);
+    }
+
+    public long logLogout(String nickname) {
+        return append(LOGOUT, nickname, null);
+    }
+
+    public long logDropChannel(String channelName) {
+        return append(DROP_CHANNEL, channelName, null);
+    }
+
+    public synchronized long getLastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * Runs the action on the committer thread once every record up to
+     * {@code lsn} is durable, or right away if they already are.
+     */
+    public void afterCommit(long lsn, Runnable action) {
+        synchronized (pendingActions) {
+            if(lsn > durableLsn) {
+                pendingActions.add(new PendingAction(lsn, action));
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Starts a new journal file, writes the state given by the source and
+     * deletes the journal files and snapshots the new snapshot replaces.
+     */
+    public void snapshot(SnapshotSource source) throws IOException {
+        long snapshotLsn;
+        synchronized (fileLock) {
+            writeBatch();
+            file.close();
+            synchronized (this) {
+                snapshotLsn = lastLsn;
+            }
+            file = openJournal(snapshotLsn + 1);
+        }
+
+        File tmp = new File(dir, SNAPSHOT_PREFIX + String.format("%020d", snapshotLsn) + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotLsn);
+            source.writeTo(new SnapshotWriter(out));
+            out.writeByte(SNAPSHOT_END);
+            out.flush();
+            fileOut.getChannel().force(true);
+        } finally {
+            fileOut.close();
+        }
+        File snapshot = new File(dir, SNAPSHOT_PREFIX + String.format("%020d", snapshotLsn) + SNAPSHOT_SUFFIX);
+        if(!tmp.renameTo(snapshot))
+            throw new IOException("Unable to rename " + tmp + " to " + snapshot);
+
+        for(File old:list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if(lsnOf(old, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < snapshotLsn && !old.delete())
+                System.err.println("- Unable to delete " + old);
+        }
+        for(File old:list(JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if(lsnOf(old, JOURNAL_PREFIX, JOURNAL_SUFFIX) <= snapshotLsn && !old.delete())
+                System.err.println("- Unable to delete " + old);
+        }
+    }
+
+    public void close() throws IOException {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        synchronized (fileLock) {
+            if(file!=null) file.close();
+        }
+    }
+
+    private long append(byte type, String first, String second) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(payload);
+        try {
+            out.writeByte(type);
+            out.writeUTF(first);
+            if(second!=null) out.writeUTF(second);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Journal record too large", e);
+        }
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        synchronized (this) {
+            writeInt(batch, bytes.length);
+            writeInt(batch, (int) crc.getValue());
+            batch.write(bytes, 0, bytes.length);
+            return ++lastLsn;
+        }
+    }
+
+    private void commit() throws IOException {
+        long committed;
+        synchronized (fileLock) {
+            if(file==null) return;
+            committed = writeBatch();
+        }
+        if(committed > durableLsn)
+            durableLsn = committed;
+
+        List<PendingAction> ready = new ArrayList<PendingAction>();
+        synchronized (pendingActions) {
+            Iterator<PendingAction> it = pendingActions.iterator();
+            while(it.hasNext()) {
+                PendingAction pending = it.next();
+                if(pending.lsn <= durableLsn) {
+                    ready.add(pending);
+                    it.remove();
+                }
+            }
+        }
+        for(PendingAction pending:ready) {
+            try {
+                pending.action.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs the current batch; the caller holds the file lock.
+     * Returns the sequence number of the last record written.
+     */
+    private long writeBatch() throws IOException {
+        byte[] bytes;
+        long upTo;
+        synchronized (this) {
+            upTo = lastLsn;
+            if(batch.size()==0) return upTo;
+            bytes = batch.toByteArray();
+            batch = new ByteArrayOutputStream(Math.max(1024, bytes.length));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining())
+            file.write(buffer);
+        file.force(false);
+        return upTo;
+    }
+
+    private FileChannel openJournal(long startLsn) throws IOException {
+        File journal = new File(dir, JOURNAL_PREFIX + String.format("%020d", startLsn) + JOURNAL_SUFFIX);
+        FileChannel channel = new RandomAccessFile(journal, "rw").getChannel();
+        channel.position(channel.size());
+        return channel;
+    }
+
+    private static long readSnapshot(File snapshot, StateHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+        try {
+            if(in.readInt()!=SNAPSHOT_MAGIC)
+                throw new IOException("Not a snapshot: " + snapshot);
+            long lsn = in.readLong();
+            while(true) {
+                byte type = in.readByte();
+                if(type==SNAPSHOT_END) return lsn;
+                if(type==NICK) {
+                    handler.register(in.readUTF());
+                } else if(type==SNAPSHOT_CHANNEL) {
+                    String channelName = in.readUTF();
+                    int members = in.readInt();
+                    for(int i=0; i<members; i++)
+                        handler.join(in.readUTF(), channelName);
+                } else {
+                    throw new IOException("Unknown snapshot record " + type + " in " + snapshot);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Applies the records of one journal file that come after the snapshot and
+     * cuts the file after its last intact record. Returns the sequence number of
+     * that record and the number of records applied.
+     */
+    private static long[] replay(File journal, long startLsn, long snapshotLsn, StateHandler handler) throws IOException {
+        long lsn = startLsn - 1;
+        long applied = 0;
+        long validBytes = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16));
+        try {
+            CRC32 crc = new CRC32();
+            while(true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if(length < 1 || length > 1 << 20) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if((int) crc.getValue()!=checksum) break;
+
+                lsn++;
+                validBytes += 8 + length;
+                if(lsn <= snapshotLsn) continue;
+                apply(payload, handler);
+                applied++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if(validBytes < journal.length()) {
+            System.err.println("- Truncating torn journal tail of " + journal.getName() + " at " + validBytes);
+            RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+            try {
+                raf.setLength(validBytes);
+            } finally {
+                raf.close();
+            }
+        }
+        return new long[] {lsn, applied};
+    }
+
+    private static void apply(byte[] payload, StateHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch(type) {
+            case NICK:
+                handler.register(in.readUTF());
+                break;
+            case UNREGISTER:
+                handler.unregister(in.readUTF());
+                break;
+            case JOIN:
+                handler.join(in.readUTF(), in.readUTF());
+                break;
+            case LEAVE:
+                handler.leave(in.readUTF(), in.readUTF());
+                break;
+            case LOGOUT:
+                handler.logout(in.readUTF());
+                break;
+            case DROP_CHANNEL:
+                handler.dropChannel(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private File latest(String prefix, String suffix) {
+        File[] files = list(prefix, suffix);
+        return files.length==0 ? null : files[files.length - 1];
+    }
+
+    private File[] list(final String prefix, final String suffix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }
+        });
+        if(files==null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long lsnOf(File file, String prefix, String suffix) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,65 @@
+package com.edmundophie.chat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed set of single-threaded stripes. Tasks submitted with
+ * the same key always land on the same stripe and therefore run in submission
+ * order, while tasks with different keys may run in parallel.
+ */
+public class StripedExecutor {
+    private final ExecutorService[] stripes;
+
+    public StripedExecutor(int size, final String threadNamePrefix) {
+        if(size < 1)
+            throw new IllegalArgumentException("Stripe count must be positive: " + size);
+
+        stripes = new ExecutorService[size];
+        for(int i=0; i<size; i++) {
+            final int stripeIndex = i;
+            stripes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadNamePrefix + "-" + stripeIndex + "-" + count.getAndIncrement());
+                    thread.setDaemon(false);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public int size() {
+        return stripes.length;
+    }
+
+    public void execute(String key, Runnable task) {
+        stripes[indexFor(key)].execute(task);
+    }
+
+    public int indexFor(String key) {
+        if(key==null || stripes.length==1) return 0;
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+
+    public void shutdown() {
+        for(ExecutorService stripe:stripes)
+            stripe.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(ExecutorService stripe:stripes) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0 || !stripe.awaitTermination(remaining, TimeUnit.NANOSECONDS))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+package com.edmundophie.chat;
+
+import java.io.IOException;
+
+/**
+ * Connection to a message broker. {@link AmqpTransport} talks to RabbitMQ and
+ * {@link LocalBroker} runs the same routing inside the JVM.
+ */
+public interface Transport {
+    TransportChannel openChannel() throws IOException;
+
+    void close() throws IOException;
+}
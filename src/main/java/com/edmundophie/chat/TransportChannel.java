@@ -0,0 +1,44 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+
+/**
+ * The subset of AMQP channel operations the chat server and client use: the
+ * RPC and ingest queues, reply queues, and the message exchanges with their
+ * user queue bindings. Like an AMQP channel, a TransportChannel should not be
+ * shared between threads without external synchronization.
+ */
+public interface TransportChannel {
+    void exchangeDeclare(String exchange, String type) throws IOException;
+
+    void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete) throws IOException;
+
+    /**
+     * Declares an exclusive, auto-delete queue with a broker generated name.
+     */
+    String queueDeclare() throws IOException;
+
+    void queueBind(String queue, String exchange, String routingKey) throws IOException;
+
+    void queueUnbind(String queue, String exchange, String routingKey) throws IOException;
+
+    void queueDelete(String queue) throws IOException;
+
+    void queuePurge(String queue) throws IOException;
+
+    void basicQos(int prefetchCount) throws IOException;
+
+    void basicPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException;
+
+    String basicConsume(String queue, boolean autoAck, DeliveryHandler handler) throws IOException;
+
+    void basicCancel(String consumerTag) throws IOException;
+
+    void basicAck(long deliveryTag) throws IOException;
+
+    boolean isOpen();
+
+    void close() throws IOException;
+}
@@ -8,6 +8,7 @@ import java.util.List;
  */
 public class User {
     private String nickname;
+    // Channels the user was in when logging out; live membership is kept in MembershipIndex
     private List<String> joinedChannel;
     private long logoutTimestamp;
 
@@ -0,0 +1,66 @@
+package com.edmundophie.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Variable-length numbers and strings shared by {@link BinaryWireCodec} and
+ * {@link ChatPayload}. A number is written seven bits per byte, lowest first,
+ * with the high bit set on every byte but the last.
+ */
+final class Varints {
+    private Varints() {
+    }
+
+    static int size(long value) {
+        int size = 1;
+        while((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    static void write(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void write(ByteBuffer out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a number; a truncated one underflows the buffer.
+     */
+    static long read(ByteBuffer in) throws IOException {
+        long value = 0;
+        for(int shift=0; shift<64; shift+=7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80)==0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads {@code length} bytes of UTF-8 from a buffer backed by an array,
+     * rejecting lengths that are negative or reach past its end.
+     */
+    static String readUtf8(ByteBuffer in, long length) throws IOException {
+        if(length < 0 || length > in.remaining())
+            throw new IOException("String length " + length + " exceeds the " + in.remaining() + " bytes left");
+        String value = new String(in.array(), in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+        return value;
+    }
+}
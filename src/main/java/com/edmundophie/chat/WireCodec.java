@@ -0,0 +1,23 @@
+package com.edmundophie.chat;
+
+import java.io.IOException;
+
+/**
+ * Encodes the chat protocol objects for the wire. The codec of a delivery is
+ * identified by its AMQP content-type property, see {@link WireCodecs}.
+ */
+public interface WireCodec {
+    String getContentType();
+
+    byte[] encodeRequest(Request request) throws IOException;
+
+    Request decodeRequest(byte[] body) throws IOException;
+
+    byte[] encodeResponse(Response response) throws IOException;
+
+    Response decodeResponse(byte[] body) throws IOException;
+
+    byte[] encodeMessage(Message message) throws IOException;
+
+    Message decodeMessage(byte[] body) throws IOException;
+}
@@ -0,0 +1,25 @@
+package com.edmundophie.chat;
+
+/**
+ * Looks up the codec for an AMQP content-type. Deliveries without a content-type
+ * come from clients that predate the codec layer and are treated as JSON.
+ */
+public final class WireCodecs {
+    public static final WireCodec JSON = new JsonWireCodec();
+    public static final WireCodec BINARY = new BinaryWireCodec();
+
+    private WireCodecs() {
+    }
+
+    public static WireCodec forContentType(String contentType) {
+        if(contentType!=null && contentType.equalsIgnoreCase(BinaryWireCodec.CONTENT_TYPE))
+            return BINARY;
+        return JSON;
+    }
+
+    public static WireCodec forName(String name) {
+        if(name.equalsIgnoreCase("json")) return JSON;
+        if(name.equalsIgnoreCase("binary")) return BINARY;
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+}
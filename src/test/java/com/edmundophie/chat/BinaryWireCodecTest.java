@@ -0,0 +1,177 @@
+package com.edmundophie.chat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the binary codec decodes to the same objects as the JSON codec,
+ * compared through their JSON form, and rejects malformed frames with an
+ * IOException.
+ */
+public class BinaryWireCodecTest {
+    // Varint of -1: all 64 bits set
+    private static final byte[] MINUS_ONE = {-1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+
+    private final WireCodec binary = WireCodecs.BINARY;
+    private final WireCodec json = WireCodecs.JSON;
+
+    @Test
+    public void requestRoundTrips() throws IOException {
+        Request request = request("SEND", "alice", "général", "héllo wörld, 你好 👋");
+        request.setBefore(42L);
+        request.setBeforeTimestamp(1445000000000L);
+        request.setLimit(0);
+        assertSameAsJson(request);
+    }
+
+    @Test
+    public void requestWithNullFieldsRoundTrips() throws IOException {
+        assertSameAsJson(new Request());
+        assertSameAsJson(request("NICK", null, null, ""));
+    }
+
+    @Test
+    public void batchRequestRoundTrips() throws IOException {
+        Request batch = request("BATCH", "alice", null, null);
+        batch.setRequests(Arrays.asList(request("JOIN", "alice", "a", null), request("SEND", "alice", "b", "ünïcode")));
+        assertSameAsJson(batch);
+
+        batch.setRequests(new ArrayList<Request>());
+        assertSameAsJson(batch);
+    }
+
+    @Test
+    public void responseRoundTrips() throws IOException {
+        assertSameAsJson(new Response(true, "* Successfully logged in as ålice", "ålice"));
+        assertSameAsJson(new Response(false, null, null));
+        assertSameAsJson(new Response());
+
+        Response history = new Response(true, "", "alice");
+        history.setMessages(Arrays.asList(message("bob", "first", 1), message("čarlie", null, 2)));
+        assertSameAsJson(history);
+
+        history.setMessages(new ArrayList<Message>());
+        assertSameAsJson(history);
+    }
+
+    @Test
+    public void batchResponseRoundTrips() throws IOException {
+        List<Response> items = Arrays.asList(new Response(true, "* joined", "alice"), new Response(false, "* no such channel", "alice"));
+        assertSameAsJson(Response.ofBatch("alice", items));
+    }
+
+    @Test
+    public void messageRoundTrips() throws IOException {
+        Message message = message("bob", "naïve café ☕", 7);
+        assertEquals(JsonWireCodec.toJson(json.decodeMessage(json.encodeMessage(message))),
+                JsonWireCodec.toJson(binary.decodeMessage(binary.encodeMessage(message))));
+        Message empty = new Message();
+        assertEquals(JsonWireCodec.toJson(json.decodeMessage(json.encodeMessage(empty))),
+                JsonWireCodec.toJson(binary.decodeMessage(binary.encodeMessage(empty))));
+    }
+
+    @Test
+    public void rejectsMalformedRequests() {
+        assertMalformedRequest(new byte[0]);
+        assertMalformedRequest(new byte[] {'R'});
+        // Truncated string
+        assertMalformedRequest(new byte[] {'Q', 5, 'a'});
+        // Negative string length
+        assertMalformedRequest(concat(new byte[] {'Q'}, MINUS_ONE));
+        // Negative optional number
+        assertMalformedRequest(concat(new byte[] {'Q', 0, 0, 0, 0}, MINUS_ONE));
+        // Request count of -1, encoded as 0
+        assertMalformedRequest(new byte[] {'Q', 0, 0, 0, 0, 0, 0, 0, 0});
+        // Negative request count
+        assertMalformedRequest(concat(new byte[] {'Q', 0, 0, 0, 0, 0, 0, 0}, MINUS_ONE));
+    }
+
+    @Test
+    public void rejectsMalformedResponses() {
+        assertMalformedResponse(new byte[] {'R'});
+        // Negative string length
+        assertMalformedResponse(concat(new byte[] {'R', 1}, MINUS_ONE));
+        // Negative message count
+        assertMalformedResponse(concat(new byte[] {'R', 1, 0, 0}, MINUS_ONE));
+        // Message count beyond the frame
+        assertMalformedResponse(new byte[] {'R', 1, 0, 0, 100});
+        // Response count of -1, encoded as 0
+        assertMalformedResponse(new byte[] {'R', 1, 0, 0, 0, 0});
+        // Negative response count
+        assertMalformedResponse(concat(new byte[] {'R', 1, 0, 0, 0}, MINUS_ONE));
+    }
+
+    @Test
+    public void rejectsMalformedChatPayloads() {
+        assertMalformedPayload(new byte[] {1});
+        assertMalformedPayload(concat(new byte[] {1}, MINUS_ONE));
+        assertMalformedPayload(new byte[] {1, 10, 'a'});
+        assertMalformedPayload(concat(new byte[] {2}, MINUS_ONE));
+        assertMalformedPayload(new byte[] {9});
+    }
+
+    private void assertSameAsJson(Request request) throws IOException {
+        assertEquals(JsonWireCodec.toJson(json.decodeRequest(json.encodeRequest(request))),
+                JsonWireCodec.toJson(binary.decodeRequest(binary.encodeRequest(request))));
+    }
+
+    private void assertSameAsJson(Response response) throws IOException {
+        assertEquals(JsonWireCodec.toJson(json.decodeResponse(json.encodeResponse(response))),
+                JsonWireCodec.toJson(binary.decodeResponse(binary.encodeResponse(response))));
+    }
+
+    private void assertMalformedRequest(byte[] body) {
+        try {
+            binary.decodeRequest(body);
+            fail("Decoded malformed request " + Arrays.toString(body));
+        } catch (IOException expected) {
+        }
+    }
+
+    private void assertMalformedResponse(byte[] body) {
+        try {
+            binary.decodeResponse(body);
+            fail("Decoded malformed response " + Arrays.toString(body));
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertMalformedPayload(byte[] body) {
+        try {
+            ChatPayload.decode(body);
+            fail("Decoded malformed chat payload " + Arrays.toString(body));
+        } catch (IOException expected) {
+        }
+    }
+
+    private static Request request(String command, String nickname, String channelName, String message) {
+        Request request = new Request();
+        request.setCommand(command);
+        request.setNickname(nickname);
+        request.setChannelName(channelName);
+        request.setMessage(message);
+        return request;
+    }
+
+    private static Message message(String sender, String text, long sequence) {
+        Message message = new Message();
+        message.setSender(sender);
+        message.setText(text);
+        message.setTimestamp(1445000000000L + sequence);
+        message.setSequence(sequence);
+        return message;
+    }
+
+    private static byte[] concat(byte[] head, byte[] tail) {
+        byte[] body = Arrays.copyOf(head, head.length + tail.length);
+        System.arraycopy(tail, 0, body, head.length, tail.length);
+        return body;
+    }
+}
@@ -0,0 +1,83 @@
+package com.edmundophie.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChannelLogTest {
+    private static final long RETENTION_MILLIS = 60000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("channel-log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File file:files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void logsMissingTextAsEmpty() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 4096, 256, RETENTION_MILLIS);
+        Message message = new Message();
+        message.setSender("bob");
+        message.setTimestamp(1000);
+        log.append(message);
+
+        List<Message> replayed = replay(log, 0);
+        assertEquals(1, replayed.size());
+        assertEquals("bob", replayed.get(0).getSender());
+        assertEquals("", replayed.get(0).getText());
+    }
+
+    @Test
+    public void dropsExpiredSegmentsOfQuietChannel() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 4096, 256, RETENTION_MILLIS);
+        log.append(message("first", 1000));
+
+        log.enforceRetention(1000 + RETENTION_MILLIS);
+        assertEquals(1, replay(log, 0).size());
+
+        log.enforceRetention(1001 + RETENTION_MILLIS);
+        assertEquals(0, replay(log, 0).size());
+        assertEquals(0, dir.listFiles().length);
+
+        // The next message starts a new segment after the dropped one
+        log.append(message("second", 2000 + RETENTION_MILLIS));
+        List<Message> replayed = replay(new ChannelLog(dir, 4096, 256, RETENTION_MILLIS), 0);
+        assertEquals(1, replayed.size());
+        assertEquals("second", replayed.get(0).getText());
+    }
+
+    private static Message message(String text, long timestamp) {
+        Message message = new Message("bob", text);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private static List<Message> replay(ChannelLog log, long since) throws IOException {
+        final List<Message> messages = new ArrayList<Message>();
+        log.replay(since, new ChannelLog.RecordHandler() {
+            public void handle(Message message) {
+                messages.add(new Message(message.getSender(), message.getText()));
+            }
+        });
+        return messages;
+    }
+}
@@ -0,0 +1,108 @@
+package com.edmundophie.chat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the preset dictionary pays off on the bodies it is meant for:
+ * short chat deliveries, SEND requests and HISTORY replies. The dictionary is
+ * written by hand rather than trained on a corpus, so this is what keeps it
+ * honest when either of them changes.
+ */
+public class CompressionTest {
+    // Not taken from the dictionary, so that it does not flatter the numbers
+    private static final String[] LINES = {
+            "anyone around? the staging deploy is stuck on the migration step again",
+            "I restarted the worker and it picked up the queue, looks fine now",
+            "can we move standup to 10:30 tomorrow, I have a dentist appointment",
+            "pushed the fix, CI should be green in a few minutes",
+            "nope, still seeing timeouts from the payment service in eu-west",
+            "lunch? thinking about the ramen place around the corner",
+            "here is the stack trace from last night, it fails right after the retry",
+            "ok merging once the second review is in",
+            "did the customer confirm the new export format works for them?",
+            "yes, they sent a thumbs up and asked for the same thing in csv",
+    };
+    private static final String[] SENDERS = {"alice", "bob", "carol", "dave42"};
+
+    @Test
+    public void dictionaryShrinksChatDeliveries() throws IOException {
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for(int i=0; i<LINES.length; i++) {
+            Message message = new Message(SENDERS[i % SENDERS.length], LINES[i]);
+            message.setTimestamp(1700000000000L + i * 1000);
+            message.setSequence(100 + i);
+            bodies.add(ChatPayload.encode("general", message));
+        }
+        assertSavesOverPlainDeflate(bodies, 0.05);
+    }
+
+    @Test
+    public void dictionaryShrinksJsonRequestsAndReplies() throws IOException {
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for(int i=0; i<LINES.length; i++) {
+            Request request = new Request();
+            request.setCommand("SEND");
+            request.setNickname(SENDERS[i % SENDERS.length]);
+            request.setChannelName("general");
+            request.setMessage(LINES[i]);
+            bodies.add(WireCodecs.JSON.encodeRequest(request));
+        }
+        for(int i=0; i + 3<=LINES.length; i+=3) {
+            List<Message> messages = new ArrayList<Message>();
+            for(int j=i; j<i + 3; j++) {
+                Message message = new Message(SENDERS[j % SENDERS.length], LINES[j]);
+                message.setTimestamp(1700000000000L + j * 1000);
+                message.setSequence(100 + j);
+                messages.add(message);
+            }
+            Response response = new Response(true, "", "alice");
+            response.setMessages(messages);
+            bodies.add(WireCodecs.JSON.encodeResponse(response));
+        }
+        assertSavesOverPlainDeflate(bodies, 0.15);
+    }
+
+    /**
+     * Compares the bytes sent with the dictionary against plain deflate at the
+     * same level, each falling back to the body when it does not shrink, and
+     * checks every compressed body round-trips.
+     */
+    private static void assertSavesOverPlainDeflate(List<byte[]> bodies, double minSaving) throws IOException {
+        Compression compression = new Compression(1, Compression.DEFAULT_LEVEL);
+        long withDictionary = 0;
+        long plain = 0;
+        for(byte[] body:bodies) {
+            byte[] compressed = compression.compress(body);
+            if(compressed==null) {
+                withDictionary += body.length;
+            } else {
+                withDictionary += compressed.length;
+                assertArrayEquals(body, Compression.decompress(ChatPayload.COMPRESSED_PROPERTIES, compressed));
+            }
+            plain += Math.min(body.length, plainDeflateLength(body));
+        }
+        double saving = 1 - (double) withDictionary / plain;
+        assertTrue("Dictionary saved " + Math.round(saving * 100) + "% over plain deflate ("
+                + withDictionary + " B against " + plain + " B)", saving >= minSaving);
+    }
+
+    private static int plainDeflateLength(byte[] body) {
+        Deflater deflater = new Deflater(Compression.DEFAULT_LEVEL);
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] out = new byte[body.length * 2 + 64];
+        int length = 0;
+        while(!deflater.finished())
+            length += deflater.deflate(out, length, out.length - length);
+        deflater.end();
+        return length;
+    }
+}
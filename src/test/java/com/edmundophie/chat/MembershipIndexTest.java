@@ -0,0 +1,158 @@
+package com.edmundophie.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the changes journaled through the index replay in the order they
+ * were applied, while joins and logouts of the same users race: every record
+ * must change the replayed state, and the replay must end in the live state.
+ */
+public class MembershipIndexTest {
+    private static final int USERS = 20;
+    private static final int CHANNELS = 4;
+    private static final int ROUNDS = 500;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("membership-journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File file:files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void journalReplaysToAppliedState() throws Exception {
+        final MembershipIndex live = new MembershipIndex();
+        final StateJournal journal = new StateJournal(dir, 5);
+        journal.recover(new ReplayingHandler(new MembershipIndex()));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        // One thread per channel joins and leaves, like the channel stripes
+        for(int c=0; c<CHANNELS; c++) {
+            final String channelName = "channel" + c;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    await(start);
+                    for(int i=0; i<ROUNDS; i++) {
+                        String nickname = "user" + i % USERS;
+                        if(i % 3==2) live.remove(nickname, channelName, journal);
+                        else live.add(nickname, channelName, journal);
+                    }
+                }
+            }));
+        }
+        // And one logs users out, like the user stripes
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                await(start);
+                for(int i=0; i<ROUNDS; i++)
+                    live.removeUser("user" + i * 7 % USERS, journal, false);
+            }
+        }));
+        for(Thread thread:threads)
+            thread.start();
+        start.countDown();
+        for(Thread thread:threads)
+            thread.join();
+        journal.close();
+
+        MembershipIndex recovered = new MembershipIndex();
+        ReplayingHandler handler = new ReplayingHandler(recovered);
+        StateJournal reopened = new StateJournal(dir, 5);
+        reopened.recover(handler);
+        reopened.close();
+
+        assertEquals(0, handler.outOfOrder);
+        assertEquals(live.size(), recovered.size());
+        for(int c=0; c<CHANNELS; c++)
+            assertEquals(sorted(live.membersOf("channel" + c)), sorted(recovered.membersOf("channel" + c)));
+    }
+
+    @Test
+    public void guardedAddSkipsUsersWhoLoggedOut() {
+        Map<String, Boolean> users = new ConcurrentHashMap<String, Boolean>();
+        users.put("alice", true);
+        MembershipIndex index = new MembershipIndex();
+        assertTrue(index.add("alice", "general", null, users));
+
+        // Logged out between the JOIN's first check and its write
+        users.remove("alice");
+        index.removeUser("alice");
+        assertFalse(index.add("alice", "random", null, users));
+        assertEquals(0, index.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<String> sorted(List<String> names) {
+        List<String> copy = new ArrayList<String>(names);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static class ReplayingHandler implements StateJournal.StateHandler {
+        private final MembershipIndex index;
+        // Records that did not change the state, so they were journaled out of order
+        private int outOfOrder;
+
+        ReplayingHandler(MembershipIndex index) {
+            this.index = index;
+        }
+
+        public void register(String nickname) {
+        }
+
+        public void unregister(String nickname) {
+        }
+
+        public void join(String nickname, String channelName) {
+            if(!index.add(nickname, channelName)) outOfOrder++;
+        }
+
+        public void leave(String nickname, String channelName) {
+            if(!index.remove(nickname, channelName)) outOfOrder++;
+        }
+
+        public void logout(String nickname) {
+            // Only logouts that removed a membership are journaled here
+            if(index.removeUser(nickname).isEmpty()) outOfOrder++;
+        }
+
+        public void dropChannel(String channelName) {
+            for(String nickname:index.membersOf(channelName))
+                index.remove(nickname, channelName);
+        }
+    }
+}
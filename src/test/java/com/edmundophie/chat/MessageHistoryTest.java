@@ -0,0 +1,47 @@
+package com.edmundophie.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageHistoryTest {
+    // Every message below takes the 64 byte overhead plus 2 bytes per char
+    private static final long MESSAGE_BYTES = 64 + 2 * ("bob".length() + "message 00".length());
+
+    @Test
+    public void budgetEvictsOldestMessagesAcrossChannels() {
+        HistoryBudget budget = new HistoryBudget(4 * MESSAGE_BYTES);
+        MessageHistory quiet = new MessageHistory(100, budget);
+        MessageHistory busy = new MessageHistory(100, budget);
+
+        quiet.append("bob", "message 00", 1);
+        for(int i=1; i<=4; i++)
+            busy.append("bob", "message 0" + i, 1 + i);
+
+        // The quiet channel held the oldest message, so it paid for the fifth
+        assertEquals(0, quiet.size());
+        assertEquals(4, busy.size());
+        assertEquals(4 * MESSAGE_BYTES, budget.getUsedBytes());
+
+        quiet.append("bob", "message 05", 6);
+        assertEquals(1, quiet.size());
+        assertEquals(3, busy.size());
+        assertEquals("message 02", busy.page(Long.MAX_VALUE, Long.MAX_VALUE, 10).get(0).getText());
+    }
+
+    @Test
+    public void fullRingsKeepTheBudgetAccurate() {
+        HistoryBudget budget = new HistoryBudget(1000 * MESSAGE_BYTES);
+        MessageHistory history = new MessageHistory(10, budget);
+        for(int i=0; i<5000; i++)
+            history.append("bob", "message " + (10 + i % 90), i);
+
+        assertEquals(10, history.size());
+        assertEquals(10 * MESSAGE_BYTES, budget.getUsedBytes());
+
+        history.clear();
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(history.page(Long.MAX_VALUE, Long.MAX_VALUE, 10).isEmpty());
+    }
+}
@@ -0,0 +1,94 @@
+package com.edmundophie.chat;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the batches of one destination arrive in the order their
+ * messages were published, however each batch was closed.
+ */
+public class OutboundBatcherTest {
+    private LocalBroker broker;
+    private OutboundBatcher batcher;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private CountDownLatch remaining;
+
+    @Before
+    public void setUp() throws IOException {
+        broker = new LocalBroker();
+        TransportChannel channel = broker.openChannel();
+        channel.queueDeclare("alice", false, false, true);
+        channel.basicConsume("alice", true, new DeliveryHandler() {
+            public void handleDelivery(long deliveryTag, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                for(ChatPayload payload:ChatPayload.payloads(properties, body)) {
+                    received.add(payload.getMessage().getText());
+                    remaining.countDown();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if(batcher!=null) batcher.close();
+        broker.close();
+    }
+
+    @Test
+    public void keepsOrderOfFullExpiredAndCompressedBatches() throws Exception {
+        batcher = new OutboundBatcher(4, 65536, 2000);
+        batcher.start(broker.openChannel(), null);
+        Compression compression = new Compression(64, Compression.DEFAULT_LEVEL);
+        // Publishers use their own channels, like the server's workers
+        TransportChannel[] workers = {broker.openChannel(), broker.openChannel(), broker.openChannel()};
+
+        List<String> sent = new ArrayList<String>();
+        remaining = new CountDownLatch(200);
+        for(int i=0; i<200; i++) {
+            StringBuilder text = new StringBuilder("message ").append(i);
+            boolean large = i % 17==0;
+            if(large) {
+                for(int j=0; j<20; j++)
+                    text.append(" and some more text to compress");
+            }
+            sent.add(text.toString());
+            byte[] body = ChatPayload.encode("general", new Message("bob", text.toString()));
+            byte[] compressed = large ? compression.compress(body) : null;
+            if(compressed!=null)
+                batcher.publish(workers[i % workers.length], "", "alice", ChatPayload.COMPRESSED_PROPERTIES, compressed);
+            else
+                batcher.publish(workers[i % workers.length], "", "alice", ChatPayload.PROPERTIES, body);
+            // Let some batches expire before they fill up
+            if(i % 7==0) Thread.sleep(3);
+        }
+
+        assertTrue(remaining.await(5, TimeUnit.SECONDS));
+        assertEquals(sent, new ArrayList<String>(received));
+    }
+
+    @Test
+    public void flushesBatchOpenedWhileFlusherIsIdle() throws Exception {
+        batcher = new OutboundBatcher(100, 65536, 1000);
+        batcher.start(broker.openChannel(), null);
+        // Long enough for the flusher to find nothing pending and wait
+        Thread.sleep(50);
+
+        remaining = new CountDownLatch(1);
+        batcher.publish(broker.openChannel(), "", "alice", ChatPayload.PROPERTIES,
+                ChatPayload.encode("general", new Message("bob", "hello")));
+        assertTrue(remaining.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("hello"), new ArrayList<String>(received));
+    }
+}
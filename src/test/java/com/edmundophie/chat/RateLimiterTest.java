@@ -0,0 +1,32 @@
+package com.edmundophie.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    @Test
+    public void drainedBucketsOutliveTheSweep() {
+        RateLimiter limiter = new RateLimiter(1, 2);
+        assertTrue(limiter.tryAcquire("alice", 2));
+
+        assertEquals(0, limiter.expireIdle());
+        assertFalse(limiter.tryAcquire("alice", 1));
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void refilledBucketsAreExpired() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1e6, 2);
+        assertTrue(limiter.tryAcquire("alice", 2));
+        assertTrue(limiter.tryAcquire("general", 1));
+        Thread.sleep(10);
+
+        assertEquals(2, limiter.expireIdle());
+        assertEquals(0, limiter.size());
+        // A key that comes back starts with a full bucket
+        assertTrue(limiter.tryAcquire("alice", 2));
+    }
+}
@@ -0,0 +1,71 @@
+package com.edmundophie.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RpcClientTest {
+    private LocalBroker broker;
+    private RpcServer server;
+    private RpcClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new LocalBroker();
+        server = new RpcServer();
+        server.start(broker, 2, 16);
+        client = new RpcClient(broker, 5000, WireCodecs.JSON);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.shutdown();
+        broker.close();
+    }
+
+    @Test
+    public void logoutAfterLoginLeavesClientUsable() throws Exception {
+        client.login("NICK", "alice");
+        assertEquals("alice", client.getNickname());
+
+        client.logout("LOGOUT");
+        assertEquals("", client.getNickname());
+        assertFalse(ping("alice").isStatus());
+
+        // The message channel survived, so the same nickname can log in again
+        client.login("NICK", "alice");
+        assertEquals("alice", client.getNickname());
+        assertTrue(ping("alice").isStatus());
+        client.logout("EXIT");
+        assertEquals("", client.getNickname());
+    }
+
+    @Test
+    public void requestsWithoutNamesGetAnErrorReply() throws Exception {
+        client.login("NICK", "alice");
+        String[] commands = {"SEND", "JOIN", "LEAVE", "HISTORY"};
+        for(String command:commands) {
+            Request request = new Request();
+            request.setCommand(command);
+            request.setNickname("alice");
+            request.setMessage("hello");
+            assertFalse(command + " without a channel", client.call(request).isStatus());
+
+            request.setNickname(null);
+            request.setChannelName("general");
+            assertFalse(command + " without a nickname", client.call(request).isStatus());
+        }
+    }
+
+    private Response ping(String nickname) throws Exception {
+        Request request = new Request();
+        request.setCommand("PING");
+        request.setNickname(nickname);
+        return client.call(request);
+    }
+}